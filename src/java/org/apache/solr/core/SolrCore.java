@@ -41,6 +41,7 @@ import org.xmlpull.v1.XmlPullParserFactory;
 import javax.xml.xpath.XPathConstants;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.*;
@@ -66,6 +67,7 @@ public final class SolrCore {
   private final String dataDir;
   private final String index_path;
   private final UpdateHandler updateHandler;
+  private AddPipeline addPipeline;  // null unless configured
   private static final long startTime = System.currentTimeMillis();
 
   public long getStartTime() { return startTime; }
@@ -120,6 +122,7 @@ public final class SolrCore {
 
   void initIndex() {
     try {
+      BackgroundOptimizer.recover(getIndexDir());
       File dirFile = new File(getIndexDir());
       boolean indexExists = dirFile.canRead();
 
@@ -210,6 +213,14 @@ public final class SolrCore {
                 SolrConfig.config.get("updateHandler/@class", DirectUpdateHandler.class.getName())
         );
 
+        int pipelineThreads = SolrConfig.config.getInt("updateHandler/pipeline/@threads", 0);
+        if (pipelineThreads > 0) {
+          addPipeline = new AddPipeline(updateHandler, schema, pipelineThreads,
+                  SolrConfig.config.getInt("updateHandler/pipeline/@queueSize", 100),
+                  SolrConfig.config.getInt("updateHandler/pipeline/@batchSize", 10));
+          log.info("Adding documents with " + pipelineThreads + " threads");
+        }
+
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
@@ -229,6 +240,13 @@ public final class SolrCore {
     } catch (Exception e) {
       SolrException.log(log,e);
     }
+    if (addPipeline != null) {
+      try {
+        addPipeline.close();
+      } catch (Exception e) {
+        SolrException.log(log,e);
+      }
+    }
     try {
       updateHandler.close();
     } catch (Exception e) {
@@ -263,6 +281,34 @@ public final class SolrCore {
     }
   }
 
+  /**
+   * Returns a searcher that also sees the changes that aren't committed
+   * yet if the update handler supports it, or else the registered searcher.
+   * The reference count is incremented.
+   * @see UpdateHandler#getRealtimeSearcher
+   */
+  public RefCounted<SolrIndexSearcher> getRealtimeSearcher() {
+    final RefCounted<SolrIndexSearcher> main = getSearcher();
+    if (main == null || updateHandler == null) return main;
+    final RefCounted<SolrIndexSearcher> realtime;
+    try {
+      realtime = updateHandler.getRealtimeSearcher(main.get());
+    } catch (IOException e) {
+      main.decref();
+      throw new SolrException(500, "Error opening realtime searcher", e);
+    }
+    if (realtime == null) return main;
+
+    // the realtime searcher reads the registered one's index, which stays
+    // open as long as the request uses it
+    return new RefCounted<SolrIndexSearcher>(realtime.get()) {
+      public void close() {
+        realtime.decref();
+        main.decref();
+      }
+    }.incref();
+  }
+
   /**
    * Get a {@link SolrIndexSearcher} or start the process of creating a new one.
    * <p>
@@ -691,44 +737,56 @@ public final class SolrCore {
 
         DocumentBuilder builder = new DocumentBuilder(schema);
         SchemaField uniqueKeyField = schema.getUniqueKeyField();
+        // documents are added by worker threads if a pipeline is configured
+        AddPipeline.Session session = addPipeline==null ? null : addPipeline.newSession(cmd);
         int eventType=0;
         // accumulate responses
         List<String> added = new ArrayList<String>(10);
-        while(true) {
-          // this may be our second time through the loop in the case
-          // that there are multiple docs in the add... so make sure that
-          // objects can handle that.
+        boolean ok=false;
+        try {
+          while(true) {
+            // this may be our second time through the loop in the case
+            // that there are multiple docs in the add... so make sure that
+            // objects can handle that.
+
+            cmd.indexedId = null;  // reset the id for this add
 
-          cmd.indexedId = null;  // reset the id for this add
+            if (eventType !=0) {
+              eventType=xpp.getEventType();
+              if (eventType==XmlPullParser.END_DOCUMENT) break;
+            }
+            // eventType = xpp.next();
+            eventType = xpp.nextTag();
+            if (eventType == XmlPullParser.END_TAG || eventType == XmlPullParser.END_DOCUMENT) break;  // should match </add>
+
+            if (session != null) {
+              InputDocument doc = new InputDocument();
+              readDoc(null,doc,xpp);
+              log.finest("queueing doc...");
+              session.add(doc);
+            } else {
+              readDoc(builder,null,xpp);
+              builder.endDoc();
+              cmd.doc = builder.getDoc();
+              log.finest("adding doc...");
+              updateHandler.addDoc(cmd);
+              if (uniqueKeyField!=null)
+                added.add(schema.printableUniqueKey(cmd.doc));
+            }
 
-          if (eventType !=0) {
-            eventType=xpp.getEventType();
-            if (eventType==XmlPullParser.END_DOCUMENT) break;
+          } // end while
+          if (session != null) session.finish();
+          ok=true;
+        } finally {
+          // the workers may have added docs after the one that failed
+          if (session != null) {
+            session.close();
+            added = session.getAdded();
           }
-          // eventType = xpp.next();
-          eventType = xpp.nextTag();
-          if (eventType == XmlPullParser.END_TAG || eventType == XmlPullParser.END_DOCUMENT) break;  // should match </add>
-
-          readDoc(builder,xpp);
-          builder.endDoc();
-          cmd.doc = builder.getDoc();
-          log.finest("adding doc...");
-          updateHandler.addDoc(cmd);
-          String docId = null;
-          if (uniqueKeyField!=null)
-            docId = schema.printableUniqueKey(cmd.doc);
-          added.add(docId);
-          
-        } // end while
+          if (!ok) log.info("added id={" + joinIds(added) + "} before the error");
+        }
         // write log and result
-        StringBuilder out = new StringBuilder();
-        for (String docId: added)
-          if(docId != null)
-            out.append(docId + ",");
-        String outMsg = out.toString();
-        if(outMsg.length() > 0)
-          outMsg = outMsg.substring(0, outMsg.length() - 1);
-        log.info("added id={" + outMsg  + "} in " + (System.currentTimeMillis()-startTime) + "ms");
+        log.info("added id={" + joinIds(added) + "} in " + (System.currentTimeMillis()-startTime) + "ms");
         writer.write("<result status=\"0\"></result>");
 
     } // end add
@@ -749,6 +807,8 @@ public final class SolrCore {
             } else if ("waitSearcher".equals(attrName)) {
               cmd.waitSearcher = StrUtils.parseBoolean(attrVal);
               sawWaitSearcher=true;
+            } else if ("background".equals(attrName) && cmd.optimize) {
+              cmd.background = StrUtils.parseBoolean(attrVal);
             } else {
               log.warning("unexpected attribute commit/@" + attrName);
             }
@@ -808,28 +868,54 @@ public final class SolrCore {
           }
         }
 
-        int eventType = xpp.nextTag();
-        currTag = xpp.getName();
-        String val = xpp.nextText();
-
-        if ("id".equals(currTag)) {
-          cmd.id =  val;
-          updateHandler.delete(cmd);
-          log.info("delete(id " + val + ") 0 " +
-                   (System.currentTimeMillis()-startTime));
-        } else if ("query".equals(currTag)) {
-          cmd.query =  val;
-          updateHandler.deleteByQuery(cmd);
-          log.info("deleteByQuery(query " + val + ") 0 " +
-                   (System.currentTimeMillis()-startTime));
-        } else {
-          log.warning("unexpected XML tag /delete/"+currTag);
-          throw new SolrException(400,"unexpected XML tag /delete/"+currTag);
+        // any number of <id> and <query> elements may be given, and are
+        // deleted in document order.  Each run of consecutive ids is deleted
+        // with a single call.
+        List<String> tags = new ArrayList<String>();
+        List<String> vals = new ArrayList<String>();
+        while (xpp.nextTag() == XmlPullParser.START_TAG) {
+          currTag = xpp.getName();
+          if (!"id".equals(currTag) && !"query".equals(currTag)) {
+            log.warning("unexpected XML tag /delete/"+currTag);
+            throw new SolrException(400,"unexpected XML tag /delete/"+currTag);
+          }
+          tags.add(currTag);
+          vals.add(xpp.nextText());
+        }
+        if (vals.isEmpty()) {
+          throw new SolrException(400,"missing id or query in delete");
         }
 
-        writer.write("<result status=\"0\"></result>");
+        for (int i=0; i<vals.size(); ) {
+          if ("query".equals(tags.get(i))) {
+            cmd.id = null;
+            cmd.query = vals.get(i++);
+            updateHandler.deleteByQuery(cmd);
+            log.info("deleteByQuery(query " + cmd.query + ") 0 " +
+                     (System.currentTimeMillis()-startTime));
+            continue;
+          }
+          int end = i+1;
+          while (end < vals.size() && "id".equals(tags.get(end))) end++;
+          cmd.query = null;
+          if (end-i > 1 && cmd.fromPending && cmd.fromCommitted) {
+            cmd.id = null;
+            updateHandler.delete(vals.subList(i, end));
+            log.info("delete(" + (end-i) + " ids) 0 " +
+                     (System.currentTimeMillis()-startTime));
+            i = end;
+          } else {
+            // the bulk delete only deletes both pending and committed docs
+            for (; i<end; i++) {
+              cmd.id = vals.get(i);
+              updateHandler.delete(cmd);
+              log.info("delete(id " + cmd.id + ") 0 " +
+                       (System.currentTimeMillis()-startTime));
+            }
+          }
+        }
 
-        while (xpp.nextTag() != XmlPullParser.END_TAG);
+        writer.write("<result status=\"0\"></result>");
 
       } catch (SolrException e) {
         log(e);
@@ -859,10 +945,75 @@ public final class SolrCore {
 
   }
 
-  private void readDoc(DocumentBuilder builder, XmlPullParser xpp) throws IOException, XmlPullParserException {
+  /**
+   * Processes an add request in the binary update format
+   * (see {@link BinaryUpdateReader}), writing the XML result to <code>writer</code>.
+   */
+  public void update(InputStream in, Writer writer) {
+    long startTime=System.currentTimeMillis();
+
+    try {
+      log.finest("SolrCore.update(binary add)");
+      BinaryUpdateReader reader = new BinaryUpdateReader(in);
+      AddUpdateCommand cmd = new AddUpdateCommand();
+      reader.getAddOptions(cmd);
+
+      DocumentBuilder builder = new DocumentBuilder(schema);
+      SchemaField uniqueKeyField = schema.getUniqueKeyField();
+      AddPipeline.Session session = addPipeline==null ? null : addPipeline.newSession(cmd);
+      int numAdded = 0;
+      boolean ok = false;
+      try {
+        if (session != null) {
+          InputDocument doc;
+          while ((doc = reader.readDoc()) != null) {
+            session.add(doc);
+          }
+          session.finish();
+        } else {
+          while ((cmd.doc = reader.readDoc(builder)) != null) {
+            cmd.indexedId = null;
+            updateHandler.addDoc(cmd);
+            numAdded++;
+          }
+        }
+        ok = true;
+      } finally {
+        if (session != null) {
+          session.close();
+          numAdded = session.getNumAdded();
+        }
+        if (!ok) log.info("added " + numAdded + " docs before the error");
+      }
+      // ids aren't logged, to avoid building the strings for large requests
+      log.info("added " + numAdded + " docs in " + (System.currentTimeMillis()-startTime) + "ms");
+      writer.write("<result status=\"0\"></result>");
+
+    } catch (SolrException e) {
+      log(e);
+      log.info("update "+e.code+" "+(System.currentTimeMillis()-startTime));
+      writeResult(writer,e);
+    } catch (Throwable e) {
+      log(e);
+      writeResult(writer,e);
+    }
+  }
+
+  private static String joinIds(List<String> ids) {
+    StringBuilder out = new StringBuilder();
+    for (String docId: ids) {
+      if (out.length() > 0) out.append(',');
+      out.append(docId);
+    }
+    return out.toString();
+  }
+
+  // reads the doc into builder, or into doc if it isn't null, so that a
+  // pipeline worker can build it
+  private void readDoc(DocumentBuilder builder, InputDocument doc, XmlPullParser xpp) throws IOException, XmlPullParserException {
     // xpp should be at <doc> at this point
 
-    builder.startDoc();
+    if (doc == null) builder.startDoc();
 
     int attrcount = xpp.getAttributeCount();
     float docBoost = 1.0f;
@@ -872,12 +1023,15 @@ public final class SolrCore {
       String attrVal = xpp.getAttributeValue(i);
       if ("boost".equals(attrName)) {
         docBoost = Float.parseFloat(attrVal);
-        builder.setBoost(docBoost);
       } else {
         log.warning("Unknown attribute doc/@" + attrName);
       }
     }
-    if (docBoost != 1.0f) builder.setBoost(docBoost);
+    if (doc != null) {
+      doc.setBoost(docBoost);
+    } else if (docBoost != 1.0f) {
+      builder.setBoost(docBoost);
+    }
 
     // while (findNextTag(xpp,"field") != XmlPullParser.END_DOCUMENT) {
 
@@ -920,7 +1074,9 @@ public final class SolrCore {
                                         // need this line for isNull???
       // Don't add fields marked as null (for now at least)
       if (!isNull) {
-        if (boost != 1.0f) {
+        if (doc != null) {
+          doc.addField(name,val,boost);
+        } else if (boost != 1.0f) {
           builder.addField(name,val,boost);
         } else {
           builder.addField(name,val);
@@ -334,12 +334,20 @@ public class DisMaxRequestHandler
       
       DocListAndSet results = new DocListAndSet();
       NamedList facetInfo = null;
-      if (params.getBool(FACET,false)) {
+      NamedList statsInfo = null;
+      boolean facet = params.getBool(FACET,false);
+      boolean stats = params.getBool(STATS,false);
+      if (facet || stats) {
         results = s.getDocListAndSet(query, restrictions,
                                      SolrPluginUtils.getSort(req),
                                      req.getStart(), req.getLimit(),
                                      flags);
-        facetInfo = getFacetInfo(req, rsp, results.docSet);
+        if (facet) {
+          req.getContext().put(SimpleFacets.CONTEXT_QUERY_KEY, query);
+          req.getContext().put(SimpleFacets.CONTEXT_FILTERS_KEY, restrictions);
+          facetInfo = getFacetInfo(req, rsp, results.docSet);
+        }
+        if (stats) statsInfo = getStatsInfo(req, rsp, results.docSet);
       } else {
         results.docList = s.getDocList(query, restrictions,
                                        SolrPluginUtils.getSort(req),
@@ -352,6 +360,7 @@ public class DisMaxRequestHandler
 
       
       if (null != facetInfo) rsp.add("facet_counts", facetInfo);
+      if (null != statsInfo) rsp.add("stats", statsInfo);
 
 
             
@@ -403,18 +412,59 @@ public class DisMaxRequestHandler
    * Fetches information about Facets for this request.
    *
    * Subclasses may with to override this method to provide more 
-   * advanced faceting behavior.
+   * advanced faceting behavior.  The query and filters that produced
+   * <code>mainSet</code> are taken from the request context, if set.
    * @see SimpleFacets#getFacetCounts
+   * @see SimpleFacets#CONTEXT_QUERY_KEY
    */
+  @SuppressWarnings("unchecked")
   protected NamedList getFacetInfo(SolrQueryRequest req, 
                                    SolrQueryResponse rsp, 
                                    DocSet mainSet) {
 
+    Map<Object,Object> context = req.getContext();
+    return getFacetInfo(req, rsp, mainSet,
+                        (Query)context.get(SimpleFacets.CONTEXT_QUERY_KEY),
+                        (List<Query>)context.get(SimpleFacets.CONTEXT_FILTERS_KEY));
+  }
+
+  /**
+   * Fetches information about Facets for this request, given the query
+   * and filters that produced <code>mainSet</code> so that facet counts
+   * may be cached, or null if they may not be.
+   *
+   * @see SimpleFacets#FACET_CACHE
+   */
+  protected NamedList getFacetInfo(SolrQueryRequest req, 
+                                   SolrQueryResponse rsp, 
+                                   DocSet mainSet,
+                                   Query query,
+                                   List<Query> filters) {
+
     SimpleFacets f = new SimpleFacets(req.getSearcher(), 
                                       mainSet, 
-                                      req.getParams());
+                                      req.getParams(),
+                                      query,
+                                      filters);
     return f.getFacetCounts();
   }
+
+  /**
+   * Fetches statistics of fields for this request.
+   *
+   * Subclasses may wish to override this method to provide more
+   * advanced statistics.
+   * @see SimpleStats#getStatsCounts
+   */
+  protected NamedList getStatsInfo(SolrQueryRequest req,
+                                   SolrQueryResponse rsp,
+                                   DocSet mainSet) {
+
+    SimpleStats s = new SimpleStats(req.getSearcher(),
+                                    mainSet,
+                                    req.getParams());
+    return s.getStatsCounts();
+  }
   
   
 }
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import org.apache.lucene.search.Query;
+
+import java.util.List;
+import java.util.Map;
+
+/** A hash key encapsulating a query, a list of filters, a facet field and
+ * the facet params in effect for that field.
+ *
+ * @version $Id$
+ * @see FacetCacheRegenerator
+ */
+public final class FacetCacheKey {
+  final Query query;
+  final List<Query> filters;
+  final String field;
+  final Map<String,String> fieldParams;
+
+  private final int hc;  // cached hashCode
+
+  /**
+   * @param query the main query
+   * @param filters filters applied to the main query, may be null
+   * @param field the facet field
+   * @param fieldParams the facet params in effect for <code>field</code>,
+   * keyed by their non field specific name.
+   */
+  public FacetCacheKey(Query query, List<Query> filters, String field, Map<String,String> fieldParams) {
+    this.query = query;
+    this.filters = filters;
+    this.field = field;
+    this.fieldParams = fieldParams;
+
+    int h = query.hashCode();
+    if (filters != null) h ^= filters.hashCode();
+    h = h*31 + field.hashCode();
+    h = h*31 + fieldParams.hashCode();
+    hc = h;
+  }
+
+  /** The facet params that should be used to recompute the counts for this key */
+  public SolrParams getParams() {
+    return new MapSolrParams(fieldParams);
+  }
+
+  public int hashCode() {
+    return hc;
+  }
+
+  public boolean equals(Object o) {
+    if (o==this) return true;
+    if (!(o instanceof FacetCacheKey)) return false;
+    FacetCacheKey other = (FacetCacheKey)o;
+    if (this.hc != other.hc) return false;
+    if (!this.field.equals(other.field)) return false;
+    if (!this.fieldParams.equals(other.fieldParams)) return false;
+    if (!this.query.equals(other.query)) return false;
+    if (this.filters==null) return other.filters==null;
+    return this.filters.equals(other.filters);
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+
+/**
+ * Regenerates entries of the facet field count cache (see
+ * {@link SimpleFacets#FACET_CACHE}) by re-running the query and filters of
+ * each {@link FacetCacheKey} against the new searcher and recounting.
+ *
+ * @version $Id$
+ */
+public class FacetCacheRegenerator implements CacheRegenerator {
+  public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+    FacetCacheKey key = (FacetCacheKey)oldKey;
+    DocSet docs = newSearcher.getDocListAndSet(key.query, key.filters, null, 0, 0).docSet;
+    new SimpleFacets(newSearcher, docs, key.getParams()).cacheTermCounts(newCache, key);
+    return true;
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import org.apache.lucene.search.FieldCache;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.util.NamedList;
+
+import java.util.ArrayList;
+
+/**
+ * A NamedList of term =&gt; count pairs backed directly by an array of
+ * counts indexed by the ordinals of a FieldCache StringIndex.
+ * <p>
+ * Names are converted to their readable form only when they are asked for,
+ * so response writers (which access the pairs in order) can stream an
+ * unlimited number of facet constraints without first materializing a
+ * String and an Integer for every term.  Sequential access by index is
+ * constant time; random access scans from the nearest preceding position.
+ * The pairs are copied into the list the first time it is modified.
+ * </p>
+ *
+ * @version $Id$
+ * @see SimpleFacets#getFieldCacheCounts
+ */
+public class FieldCacheTermCounts extends NamedList {
+  private final FieldType ft;
+  private final String[] lookup;
+  private final int[] count;
+  private final int startOrd;
+  private final int endOrd;
+  private final boolean zeros;
+  private final boolean missing;
+  private final int numTerms;
+
+  // cursor that maps the last requested index to its ordinal
+  private int lastIdx;
+  private int lastOrd;
+
+  // set once the pairs are copied into nvPairs, which then back the list
+  private boolean copied;
+
+  /**
+   * @param ft the type of the field, used to convert terms to readable form
+   * @param si the StringIndex <code>count</code> is relative to
+   * @param count document counts indexed by ordinal, with the missing count at 0.
+   * This array is owned by the new instance and must not be modified.
+   * @param startOrd the first ordinal to include
+   * @param endOrd one past the last ordinal to include
+   * @param zeros include terms with a zero count
+   * @param missing append the count of documents with no term, under a null name
+   */
+  public FieldCacheTermCounts(FieldType ft, FieldCache.StringIndex si, int[] count, int startOrd, int endOrd, boolean zeros, boolean missing) {
+    this.ft = ft;
+    this.lookup = si.lookup;
+    this.count = count;
+    this.startOrd = startOrd;
+    this.endOrd = Math.max(startOrd, endOrd);
+    this.zeros = zeros;
+    this.missing = missing;
+
+    int n;
+    if (zeros) {
+      n = this.endOrd - startOrd;
+    } else {
+      n = 0;
+      for (int i=startOrd; i<this.endOrd; i++) {
+        if (count[i] != 0) n++;
+      }
+    }
+    numTerms = n;
+    lastIdx = -1;
+    lastOrd = startOrd-1;
+  }
+
+  public int size() {
+    if (copied) return super.size();
+    return missing ? numTerms+1 : numTerms;
+  }
+
+  public String getName(int idx) {
+    if (copied) return super.getName(idx);
+    if (idx == numTerms && missing) return null;
+    return ft.indexedToReadable(lookup[ord(idx)]);
+  }
+
+  public Object getVal(int idx) {
+    if (copied) return super.getVal(idx);
+    if (idx == numTerms && missing) return count[0];
+    return count[ord(idx)];
+  }
+
+  public void add(String name, Object val) {
+    copy();
+    super.add(name, val);
+  }
+
+  public void setName(int idx, String name) {
+    copy();
+    super.setName(idx, name);
+  }
+
+  public void setVal(int idx, Object val) {
+    copy();
+    super.setVal(idx, val);
+  }
+
+  public boolean addAll(NamedList nl) {
+    copy();
+    return super.addAll(nl);
+  }
+
+  /**
+   * Returns false if the missing count, which JSON writes under an empty
+   * name, may clash with the name of a term.  The names are otherwise
+   * distinct, unless the list was modified.
+   */
+  public boolean hasDistinctNames() {
+    if (copied) return false;
+    return !missing || numTerms == 0 || getName(0).length() > 0;
+  }
+
+  /** returns the ordinal of the term at <code>idx</code> */
+  private synchronized int ord(int idx) {
+    if (idx < 0 || idx >= numTerms) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + size());
+    }
+    if (zeros) return startOrd + idx;
+
+    if (idx < lastIdx) {
+      lastIdx = -1;
+      lastOrd = startOrd-1;
+    }
+    while (lastIdx < idx) {
+      while (count[++lastOrd] == 0);
+      lastIdx++;
+    }
+    return lastOrd;
+  }
+
+  // copies the pairs into nvPairs, before it is modified
+  private void copy() {
+    if (copied) return;
+    int sz = size();
+    for (int i=0; i<sz; i++) {
+      super.add(getName(i), getVal(i));
+    }
+    copied = true;
+  }
+
+  /** Returns a modifiable copy of this list */
+  public NamedList clone() {
+    if (copied) return super.clone();
+    int sz = size();
+    ArrayList<Object> newList = new ArrayList<Object>(sz<<1);
+    for (int i=0; i<sz; i++) {
+      newList.add(getName(i));
+      newList.add(getVal(i));
+    }
+    return new NamedList(newList);
+  }
+}
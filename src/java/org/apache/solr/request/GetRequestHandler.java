@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.util.NamedList;
+import org.apache.solr.util.SolrPluginUtils;
+import org.apache.solr.util.StrUtils;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrException;
+
+/**
+ * Returns the stored fields of documents by uniqueKey, without parsing or
+ * executing a query.
+ * <p>
+ * The ids are given by any number of <code>id</code> params, and/or a
+ * comma separated list in <code>ids</code>.  Each is resolved to a
+ * document number with {@link SolrIndexSearcher#getDocId}, which uses the
+ * idCache if one is configured.  The documents found are returned in the
+ * order of the index, which is the order their stored fields are read in.
+ * </p>
+ * <p>
+ * With <code>realtime=true</code> and a realtime update handler, the
+ * ids are looked up in the realtime searcher, so documents that aren't
+ * committed yet are returned too, and committed documents that the
+ * pending deletes remove are left out.  The <code>fl</code> param and the
+ * <code>defaults</code>, <code>appends</code> and <code>invariants</code>
+ * configuration are handled as by {@link StandardRequestHandler}.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class GetRequestHandler implements SolrRequestHandler, SolrInfoMBean {
+
+  public static final String ID = "id";
+  public static final String IDS = "ids";
+
+  // statistics
+  long numRequests;
+  long numErrors;
+  long numIds;
+  long numFound;
+  SolrParams defaults;
+  SolrParams appends;
+  SolrParams invariants;
+
+  public void init(NamedList args) {
+    Object o = args.get("defaults");
+    if (o != null && o instanceof NamedList) {
+      defaults = SolrParams.toSolrParams((NamedList)o);
+    }
+    o = args.get("appends");
+    if (o != null && o instanceof NamedList) {
+      appends = SolrParams.toSolrParams((NamedList)o);
+    }
+    o = args.get("invariants");
+    if (o != null && o instanceof NamedList) {
+      invariants = SolrParams.toSolrParams((NamedList)o);
+    }
+  }
+
+  public void handleRequest(SolrQueryRequest req, SolrQueryResponse rsp) {
+    numRequests++;
+
+    try {
+      SolrPluginUtils.setDefaults(req,defaults,appends,invariants);
+      SolrParams p = req.getParams();
+
+      List<String> ids = new ArrayList<String>();
+      String[] idParams = p.getParams(ID);
+      if (idParams != null) ids.addAll(Arrays.asList(idParams));
+      String idList = p.get(IDS);
+      if (idList != null) ids.addAll(StrUtils.splitSmart(idList, ','));
+      if (ids.isEmpty()) throw new SolrException(400,"Missing id");
+
+      SchemaField key = req.getSchema().getUniqueKeyField();
+      if (key == null) throw new SolrException(400,"no uniqueKey field defined in the schema");
+      FieldType type = key.getType();
+
+      SolrPluginUtils.setReturnFields(req, rsp);
+
+      SolrIndexSearcher searcher = req.getSearcher();
+      int[] docs = new int[ids.size()];
+      int n = 0;
+      for (String id : ids) {
+        int doc = searcher.getDocId(type.toInternal(id.trim()));
+        if (doc >= 0) docs[n++] = doc;
+      }
+      // read the stored fields sequentially, skipping repeated ids
+      Arrays.sort(docs, 0, n);
+      int unique = 0;
+      for (int i=0; i<n; i++) {
+        if (unique == 0 || docs[unique-1] != docs[i]) docs[unique++] = docs[i];
+      }
+
+      numIds += ids.size();
+      numFound += unique;
+      rsp.add("response", new DocSlice(0, unique, docs, null, unique, 0.0f));
+
+    } catch (SolrException e) {
+      rsp.setException(e);
+      numErrors++;
+    } catch (Exception e) {
+      SolrException.log(SolrCore.log,e);
+      rsp.setException(e);
+      numErrors++;
+    }
+  }
+
+
+  //////////////////////// SolrInfoMBeans methods //////////////////////
+
+
+  public String getName() {
+    return GetRequestHandler.class.getName();
+  }
+
+  public String getVersion() {
+    return SolrCore.version;
+  }
+
+  public String getDescription() {
+    return "Returns documents by uniqueKey";
+  }
+
+  public Category getCategory() {
+    return Category.QUERYHANDLER;
+  }
+
+  public String getSourceId() {
+    return "$Id$";
+  }
+
+  public String getSource() {
+    return "$URL$";
+  }
+
+  public URL[] getDocs() {
+    return null;
+  }
+
+  public NamedList getStatistics() {
+    NamedList lst = new NamedList();
+    lst.add("requests", numRequests);
+    lst.add("errors", numErrors);
+    lst.add("ids", numIds);
+    lst.add("found", numFound);
+    return lst;
+  }
+}
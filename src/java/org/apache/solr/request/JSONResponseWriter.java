@@ -111,7 +111,11 @@ class JSONWriter extends TextResponseWriter {
     // Disad: this is ambiguous with a real single value that happens to be an array
     //
     // Both of these mappings have ambiguities.
-    HashMap<String,Integer> repeats = new HashMap<String,Integer>(4);
+    //
+    // The names of facet counts streamed from the FieldCache are known to
+    // be distinct, and aren't all kept to check.
+    HashMap<String,Integer> repeats = val instanceof FieldCacheTermCounts
+        && ((FieldCacheTermCounts)val).hasDistinctNames() ? null : new HashMap<String,Integer>(4);
 
     boolean first=true;
     for (int i=0; i<sz; i++) {
@@ -120,13 +124,13 @@ class JSONWriter extends TextResponseWriter {
 
       if (first) {
         first=false;
-        repeats.put(key,0);
+        if (repeats != null) repeats.put(key,0);
       } else {
         writer.write(',');
 
-        Integer repeatCount = repeats.get(key);
+        Integer repeatCount = repeats==null ? null : repeats.get(key);
         if (repeatCount==null) {
-          repeats.put(key,0);
+          if (repeats != null) repeats.put(key,0);
         } else {
           String newKey = key;
           int newCount = repeatCount;
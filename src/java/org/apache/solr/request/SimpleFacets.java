@@ -20,8 +20,10 @@ package org.apache.solr.request;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermFreqVector;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.*;
+import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrException;
 import org.apache.solr.request.SolrParams;
@@ -29,9 +31,15 @@ import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.BoolField;
+import org.apache.solr.schema.DateField;
+import org.apache.solr.schema.SortableIntField;
+import org.apache.solr.schema.SortableLongField;
+import org.apache.solr.schema.SortableFloatField;
+import org.apache.solr.schema.SortableDoubleField;
 import org.apache.solr.search.*;
 import org.apache.solr.util.NamedList;
 import org.apache.solr.util.BoundedTreeSet;
+import org.apache.solr.util.OpenBitSet;
 
 import java.io.IOException;
 import java.util.*;
@@ -44,12 +52,66 @@ import java.util.*;
  */
 public class SimpleFacets {
 
+  /**
+   * Name of the optional user cache (configured in solrconfig.xml) used to
+   * cache facet field counts.
+   * @see FacetCacheRegenerator
+   */
+  public static final String FACET_CACHE = "facetCache";
+
+  /**
+   * The request context keys of the query and filters that produced the
+   * docs a request handler facets on, set by the handler so that the
+   * counts may be cached.
+   * @see #FACET_CACHE
+   */
+  public static final String CONTEXT_QUERY_KEY = "SimpleFacets.query";
+  public static final String CONTEXT_FILTERS_KEY = "SimpleFacets.filters";
+
+  /** The most ranges a range facet may have; requests for more are rejected */
+  public static final int MAX_RANGES = 10000;
+
+  /**
+   * The facet params that affect the counts returned for a single field,
+   * and that are therefore part of a {@link FacetCacheKey}.
+   */
+  protected static final String[] FIELD_CACHE_PARAMS = {
+    SolrParams.FACET_LIMIT, SolrParams.FACET_ZEROS, SolrParams.FACET_MISSING,
+    SolrParams.FACET_PREFIX, SolrParams.FACET_METHOD,
+    SolrParams.FACET_SAMPLE_THRESHOLD, SolrParams.FACET_SAMPLE_SIZE,
+    SolrParams.FACET_SAMPLE_RECOUNT
+  };
+
+  /** facet.method value that counts using filters for each term */
+  public static final String METHOD_ENUM = "enum";
+  /** facet.method value that counts using the FieldCache */
+  public static final String METHOD_FC = "fc";
+  /** facet.method value that counts using the term vectors of the matching documents */
+  public static final String METHOD_TV = "tv";
+
+  /**
+   * The estimated cost of reading the term vector of one document, relative
+   * to visiting one term or document in the other methods.
+   */
+  private static final int tvDocCost = SolrConfig.config.getInt("query/facetTermVectors/@docCost", 64);
+  /** Term vectors are never used for more than this many documents */
+  private static final int tvMaxDocs = SolrConfig.config.getInt("query/facetTermVectors/@maxDocs", 1000);
+
+  /** z-score of the confidence level of sampled facet counts */
+  private static final double SAMPLE_Z = 1.96;
+  /** the confidence level corresponding to SAMPLE_Z */
+  private static final float SAMPLE_CONFIDENCE = 0.95f;
+
   /** The main set of documents all facet counts should be relative to */
   protected DocSet docs;
   /** Configuration params behavior should be driven by */
   protected SolrParams params;
   /** Searcher to use for all calculations */
   protected SolrIndexSearcher searcher;
+  /** The query that produced docs, or null if unknown */
+  protected Query query;
+  /** The filters that produced docs, may be null */
+  protected List<Query> filters;
 
 
   public SimpleFacets(SolrIndexSearcher searcher,
@@ -60,6 +122,22 @@ public class SimpleFacets {
     this.params = params;
   }
 
+  /**
+   * Creates a SimpleFacets whose field counts may be cached, keyed on the
+   * <code>query</code> and <code>filters</code> that produced <code>docs</code>.
+   *
+   * @see #FACET_CACHE
+   */
+  public SimpleFacets(SolrIndexSearcher searcher,
+                      DocSet docs,
+                      SolrParams params,
+                      Query query,
+                      List<Query> filters) {
+    this(searcher, docs, params);
+    this.query = query;
+    this.filters = filters;
+  }
+
   /**
    * Looks at various Params to determing if any simple Facet Constraint count
    * computations are desired.
@@ -80,9 +158,25 @@ public class SimpleFacets {
 
       res.add("facet_queries", getFacetQueryCounts());
 
-      res.add("facet_fields", getFacetFieldCounts());
+      NamedList fieldCounts = getFacetFieldCounts();
+      res.add("facet_fields", fieldCounts);
+
+      if (params.getParams(SolrParams.FACET_RANGE) != null) {
+        res.add("facet_ranges", getFacetRangeCounts());
+      }
+
+      if (params.getParams(SolrParams.FACET_PIVOT) != null) {
+        res.add("facet_pivot", getFacetPivotCounts());
+      }
+
+      NamedList sampling = getFacetSamplingInfo(fieldCounts);
+      if (sampling.size() > 0) res.add("facet_sampling", sampling);
 
     } catch (Exception e) {
+      // such as too many ranges, rejected with the whole request
+      if (e instanceof SolrException && ((SolrException)e).code() == 400) {
+        throw (SolrException)e;
+      }
       SolrException.logOnce(SolrCore.log, "Exception during facet counts", e);
       res.add("exception", SolrException.toStr(e));
     }
@@ -108,35 +202,357 @@ public class SimpleFacets {
 
     String[] facetQs = params.getParams(SolrParams.FACET_QUERY);
     if (null != facetQs && 0 != facetQs.length) {
-      for (String q : facetQs) {
-        res.add(q, searcher.numDocs(qp.parse(q), docs));
+      Query[] queries = new Query[facetQs.length];
+      int[] counts = new int[facetQs.length];
+      boolean[] counted = new boolean[facetQs.length];
+
+      // group range queries by field so that several ranges over the same
+      // field can be counted together in a single pass over the FieldCache.
+      Map<String,List<Integer>> rangesByField = new HashMap<String,List<Integer>>();
+      for (int i=0; i<facetQs.length; i++) {
+        queries[i] = qp.parse(facetQs[i]);
+        if (queries[i] instanceof ConstantScoreRangeQuery) {
+          String f = ((ConstantScoreRangeQuery)queries[i]).getField();
+          List<Integer> lst = rangesByField.get(f);
+          if (lst == null) {
+            lst = new ArrayList<Integer>();
+            rangesByField.put(f, lst);
+          }
+          lst.add(i);
+        }
+      }
+
+      for (Map.Entry<String,List<Integer>> entry : rangesByField.entrySet()) {
+        List<Integer> idx = entry.getValue();
+        // a single range is better served (and cached) by the filterCache
+        if (idx.size() < 2) continue;
+        SchemaField sf = searcher.getSchema().getFieldOrNull(entry.getKey());
+        if (sf == null || !canUseFieldCache(sf)) continue;
+
+        ConstantScoreRangeQuery[] ranges = new ConstantScoreRangeQuery[idx.size()];
+        for (int i=0; i<ranges.length; i++) {
+          ranges[i] = (ConstantScoreRangeQuery)queries[idx.get(i)];
+        }
+        int[] rangeCounts = getFieldCacheRangeCounts(searcher, docs, entry.getKey(), ranges);
+        for (int i=0; i<ranges.length; i++) {
+          counts[idx.get(i)] = rangeCounts[i];
+          counted[idx.get(i)] = true;
+        }
+      }
+
+      for (int i=0; i<facetQs.length; i++) {
+        res.add(facetQs[i], counted[i] ? counts[i] : searcher.numDocs(queries[i], docs));
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * Returns true if the values of the field may be counted using the
+   * FieldCache: the field must be indexed and have at most one indexed
+   * token per document.
+   */
+  protected static boolean canUseFieldCache(SchemaField sf) {
+    return sf.indexed() && !sf.multiValued() && !sf.getType().isTokenized();
+  }
+
+  /**
+   * Counts the number of documents in <code>docs</code> matching each of
+   * a set of range queries over the same field in a single pass, using the
+   * FieldCache rather than a DocSet per range.
+   * The field must have at most one indexed token per document.
+   *
+   * @return the counts, in the same order as <code>ranges</code>
+   */
+  public static int[] getFieldCacheRangeCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, ConstantScoreRangeQuery[] ranges) throws IOException {
+    FieldCache.StringIndex si = FieldCache.DEFAULT.getStringIndex(searcher.getReader(), fieldName);
+    String[] lookup = si.lookup;
+    int nTerms = lookup.length;
+
+    // convert each range to an inclusive range of term ordinals [lo,hi]
+    // ordinal 0 is reserved for documents without a value.
+    int[] lo = new int[ranges.length];
+    int[] hi = new int[ranges.length];
+    for (int i=0; i<ranges.length; i++) {
+      ConstantScoreRangeQuery r = ranges[i];
+      lo[i] = r.getLowerVal()==null ? 1
+              : findOrd(lookup, r.getLowerVal(), !r.includesLower());
+      hi[i] = r.getUpperVal()==null ? nTerms-1
+              : findOrd(lookup, r.getUpperVal(), r.includesUpper()) - 1;
+    }
+
+    int[] res = new int[ranges.length];
+    int[] order = si.order;
+
+    if ((long)docs.size() * ranges.length < nTerms) {
+      // the result set is small relative to the number of terms, so
+      // check each document against each range directly.
+      DocIterator iter = docs.iterator();
+      while (iter.hasNext()) {
+        int ord = order[iter.nextDoc()];
+        if (ord == 0) continue;
+        for (int i=0; i<ranges.length; i++) {
+          if (ord >= lo[i] && ord <= hi[i]) res[i]++;
+        }
       }
+      return res;
     }
 
+    // count each term once, then sum the counts over each range with a
+    // single sweep over the count array, recording running totals at the
+    // range boundaries.
+    CountArrayPool pool = searcher.getCountArrayPool();
+    CountArrayPool.Counts counts = pool.acquire(fieldName, nTerms);
+    try {
+      DocIterator iter = docs.iterator();
+      while (iter.hasNext()) {
+        counts.inc(order[iter.nextDoc()]);
+      }
+
+      int[] bounds = new int[ranges.length*2];
+      for (int i=0; i<ranges.length; i++) {
+        bounds[i*2] = lo[i]-1;
+        bounds[i*2+1] = hi[i];
+      }
+      Arrays.sort(bounds);
+
+      // cumulative[k] = sum of counts[1..bounds[k]]
+      int[] cumulative = new int[bounds.length];
+      int[] count = counts.count;
+      int sum=0, ord=1;
+      for (int k=0; k<bounds.length; k++) {
+        for (; ord<=bounds[k]; ord++) sum += count[ord];
+        cumulative[k] = sum;
+      }
+
+      for (int i=0; i<ranges.length; i++) {
+        if (lo[i] > hi[i]) continue;
+        res[i] = cumulative[Arrays.binarySearch(bounds, hi[i])]
+               - cumulative[Arrays.binarySearch(bounds, lo[i]-1)];
+      }
+    } finally {
+      pool.release(fieldName, counts);
+    }
     return res;
   }
 
+  /**
+   * Returns the first ordinal (&gt;= 1) in <code>lookup</code> whose term
+   * is greater than <code>val</code>, or greater or equal if
+   * <code>exclusive</code> is false.
+   */
+  static int findOrd(String[] lookup, String val, boolean exclusive) {
+    int low = 1;
+    int high = lookup.length-1;
+    while (low <= high) {
+      int mid = (low+high) >>> 1;
+      int cmp = lookup[mid].compareTo(val);
+      if (cmp < 0 || (cmp == 0 && exclusive)) {
+        low = mid+1;
+      } else {
+        high = mid-1;
+      }
+    }
+    return low;
+  }
+
 
   public NamedList getTermCounts(String field) throws IOException {
     int limit = params.getFieldInt(field, params.FACET_LIMIT, 100);
     boolean zeros = params.getFieldBool(field, params.FACET_ZEROS, true);
     boolean missing = params.getFieldBool(field, params.FACET_MISSING, false);
+    String prefix = params.getFieldParam(field, params.FACET_PREFIX);
+
+    DocSet docs = this.docs;
+    int sampleSize = getSampleSize(field);
+    if (sampleSize > 0) {
+      docs = getSample(docs, sampleSize);
+    }
 
     NamedList counts;
-    SchemaField sf = searcher.getSchema().getField(field);
-    FieldType ft = sf.getType();
-    if (sf.multiValued() || ft.isTokenized() || ft instanceof BoolField) {
-      // Always use filters for booleans... we know the number of values is very small.
-      counts = getFacetTermEnumCounts(searcher,docs,field,limit,zeros,missing);
+    String method = getFacetMethod(field, docs, limit, zeros);
+    if (METHOD_TV.equals(method)) {
+      counts = getTermVectorCounts(searcher, docs, field, limit, zeros, missing, prefix);
+    } else if (METHOD_FC.equals(method)) {
+      counts = getFieldCacheCounts(searcher, docs, field, limit, zeros, missing, prefix);
     } else {
-      // TODO: future logic could use filters instead of the fieldcache if
-      // the number of terms in the field is small enough.
-      counts = getFieldCacheCounts(searcher, docs, field, limit, zeros, missing);
+      counts = getFacetTermEnumCounts(searcher,docs,field,limit,zeros,missing,prefix);
+    }
+
+    if (sampleSize > 0) {
+      if (params.getFieldBool(field, SolrParams.FACET_SAMPLE_RECOUNT, false)) {
+        counts = getExactCounts(field, counts);
+      } else {
+        counts = scaleCounts(counts, this.docs.size(), sampleSize);
+      }
     }
 
     return counts;
   }
 
+  /**
+   * Returns the number of documents that the counts for <code>field</code>
+   * should be computed over, or 0 if they should not be sampled.
+   *
+   * @see SolrParams#FACET_SAMPLE_THRESHOLD
+   * @see SolrParams#FACET_SAMPLE_SIZE
+   */
+  protected int getSampleSize(String field) {
+    int threshold = params.getFieldInt(field, SolrParams.FACET_SAMPLE_THRESHOLD, 0);
+    int ndocs = docs.size();
+    if (threshold <= 0 || ndocs <= threshold) return 0;
+    int size = params.getFieldInt(field, SolrParams.FACET_SAMPLE_SIZE, threshold);
+    return (size > 0 && size < ndocs) ? size : 0;
+  }
+
+  /**
+   * Returns a uniform sample of <code>size</code> documents from
+   * <code>docs</code>, taking evenly spaced documents so that the same
+   * set always yields the same sample (and the same counts).
+   */
+  public DocSet getSample(DocSet docs, int size) {
+    int ndocs = docs.size();
+    OpenBitSet bits = new OpenBitSet(searcher.getReader().maxDoc());
+    DocIterator iter = docs.iterator();
+    int taken = 0;
+    long next = 0;  // position in docs of the next document to take
+    for (int pos=0; taken<size && iter.hasNext(); pos++) {
+      int doc = iter.nextDoc();
+      if (pos == next) {
+        bits.fastSet(doc);
+        next = (long)(++taken) * ndocs / size;
+      }
+    }
+    return new BitDocSet(bits, taken);
+  }
+
+  /**
+   * Returns a copy of sampled <code>counts</code> scaled up to the full
+   * number of documents.
+   */
+  protected NamedList scaleCounts(NamedList counts, int ndocs, int sampleSize) {
+    double scale = (double)ndocs / sampleSize;
+    NamedList res = new NamedList();
+    for (int i=0; i<counts.size(); i++) {
+      int c = (Integer)counts.getVal(i);
+      res.add(counts.getName(i), (int)Math.round(c * scale));
+    }
+    return res;
+  }
+
+  /**
+   * Returns the exact counts over the full set of documents for the
+   * constraints in <code>counts</code> (as found by a sample), re-sorted
+   * by their exact count.
+   */
+  protected NamedList getExactCounts(String field, NamedList counts) throws IOException {
+    FieldType ft = searcher.getSchema().getFieldType(field);
+    List<CountPair<String,Integer>> exact = new ArrayList<CountPair<String,Integer>>(counts.size());
+    boolean missing = false;
+    for (int i=0; i<counts.size(); i++) {
+      String name = counts.getName(i);
+      if (name == null) {
+        missing = true;
+        continue;
+      }
+      Term t = new Term(field, ft.toInternal(name));
+      exact.add(new CountPair<String,Integer>(name, searcher.numDocs(new TermQuery(t), docs)));
+    }
+    Collections.sort(exact);
+
+    NamedList res = new NamedList();
+    for (CountPair<String,Integer> p : exact) {
+      res.add(p.key, p.val);
+    }
+    if (missing) {
+      res.add(null, getFieldMissingCount(searcher, docs, field));
+    }
+    return res;
+  }
+
+  /**
+   * Returns information about the sample used for each facet field whose
+   * counts were computed over a sample of the documents: the number of
+   * documents, the sample size, and unless they were re-counted, the margin
+   * of error of each count at a 95% confidence level.
+   *
+   * @param fieldCounts the counts returned by {@link #getFacetFieldCounts}
+   * @see SolrParams#FACET_SAMPLE_THRESHOLD
+   */
+  public NamedList getFacetSamplingInfo(NamedList fieldCounts) {
+    NamedList res = new NamedList();
+    int ndocs = docs.size();
+    for (int i=0; i<fieldCounts.size(); i++) {
+      String field = fieldCounts.getName(i);
+      int sampleSize = getSampleSize(field);
+      if (sampleSize == 0) continue;
+
+      NamedList info = new NamedList();
+      info.add("numDocs", ndocs);
+      info.add("sampleSize", sampleSize);
+      boolean exact = params.getFieldBool(field, SolrParams.FACET_SAMPLE_RECOUNT, false);
+      info.add("exact", exact);
+      if (!exact) {
+        info.add("confidence", SAMPLE_CONFIDENCE);
+        NamedList counts = (NamedList)fieldCounts.getVal(i);
+        NamedList errors = new NamedList();
+        for (int j=0; j<counts.size(); j++) {
+          int c = (Integer)counts.getVal(j);
+          errors.add(counts.getName(j), getMarginOfError(c, ndocs, sampleSize));
+        }
+        info.add("errors", errors);
+      }
+      res.add(field, info);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the margin of error of a count scaled up from a sample, using
+   * the normal approximation of the sampled proportion with a finite
+   * population correction.
+   */
+  public static int getMarginOfError(int count, int ndocs, int sampleSize) {
+    double p = (double)count / ndocs;
+    double fpc = ndocs > 1 ? (double)(ndocs - sampleSize) / (ndocs - 1) : 0;
+    double se = Math.sqrt(p * (1-p) / sampleSize * fpc);
+    return (int)Math.ceil(SAMPLE_Z * se * ndocs);
+  }
+
+  /**
+   * Returns the method that should be used to count the terms of
+   * <code>field</code>: the one requested via {@link SolrParams#FACET_METHOD}
+   * if it can be used, otherwise the one with the lowest estimated cost.
+   */
+  protected String getFacetMethod(String field, DocSet docs, int limit, boolean zeros) {
+    SchemaField sf = searcher.getSchema().getField(field);
+    FieldType ft = sf.getType();
+
+    boolean fc = !sf.multiValued() && !ft.isTokenized() && !(ft instanceof BoolField);
+    // term vectors only contain the terms of matching documents, so all the
+    // terms of the field can't be listed when zero counts are wanted.
+    boolean tv = sf.storeTermVector() && (limit >= 0 || !zeros);
+
+    String method = params.getFieldParam(field, SolrParams.FACET_METHOD);
+    if (METHOD_TV.equals(method) && tv) return METHOD_TV;
+    if (METHOD_FC.equals(method) && fc) return METHOD_FC;
+    if (METHOD_ENUM.equals(method)) return METHOD_ENUM;
+
+    // Both the term enumeration (one filter intersection per term) and the
+    // FieldCache (one pass over the count array) are roughly proportional
+    // to the size of the index, while term vectors are proportional to the
+    // number of matching documents.
+    int ndocs = docs.size();
+    if (tv && ndocs <= tvMaxDocs && (long)ndocs * tvDocCost < searcher.getReader().maxDoc()) {
+      return METHOD_TV;
+    }
+    // Always use filters for booleans... we know the number of values is very small.
+    // TODO: future logic could use filters instead of the fieldcache if
+    // the number of terms in the field is small enough.
+    return fc ? METHOD_FC : METHOD_ENUM;
+  }
+
 
   /**
    * Returns a list of value constraints and the associated facet counts 
@@ -152,13 +568,434 @@ public class SimpleFacets {
     NamedList res = new NamedList();
     String[] facetFs = params.getParams(SolrParams.FACET_FIELD);
     if (null != facetFs) {
+      SolrCache cache = query==null ? null : searcher.getCache(FACET_CACHE);
       for (String f : facetFs) {
-        res.add(f, getTermCounts(f));
+        if (cache == null) {
+          res.add(f, getTermCounts(f));
+          continue;
+        }
+        FacetCacheKey key = getFacetCacheKey(f);
+        NamedList counts = (NamedList)cache.get(key);
+        if (counts == null) {
+          counts = cacheTermCounts(cache, key);
+        }
+        res.add(f, counts);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Computes the counts for the field of <code>key</code>, and puts them
+   * in <code>cache</code> unless they are a {@link FieldCacheTermCounts}.
+   * Those are only returned for unlimited counts, and refer to a count for
+   * every term of the field; they are streamed by the response writers
+   * rather than kept.
+   *
+   * @see FacetCacheRegenerator
+   */
+  NamedList cacheTermCounts(SolrCache cache, FacetCacheKey key) throws IOException {
+    NamedList counts = getTermCounts(key.field);
+    if (!(counts instanceof FieldCacheTermCounts)) {
+      cache.put(key, counts);
+    }
+    return counts;
+  }
+
+  /**
+   * Returns the key used to cache the counts for <code>field</code>
+   * @see #FIELD_CACHE_PARAMS
+   */
+  protected FacetCacheKey getFacetCacheKey(String field) {
+    Map<String,String> fieldParams = new HashMap<String,String>();
+    for (String p : FIELD_CACHE_PARAMS) {
+      String val = params.getFieldParam(field, p);
+      if (val != null) fieldParams.put(p, val);
+    }
+    return new FacetCacheKey(query, filters, field, fieldParams);
+  }
+
+  /**
+   * Returns the nested value constraints and their counts for each
+   * pivot specified in the params.
+   *
+   * @see SolrParams#FACET_PIVOT
+   */
+  public NamedList getFacetPivotCounts() throws IOException {
+    NamedList res = new NamedList();
+    String[] pivots = params.getParams(SolrParams.FACET_PIVOT);
+    if (null != pivots) {
+      for (String pivot : pivots) {
+        String[] fields = pivot.split(",");
+        for (int i=0; i<fields.length; i++) fields[i] = fields[i].trim();
+        res.add(pivot, getPivotCounts(fields));
       }
     }
     return res;
   }
 
+  /**
+   * Returns the top values of the first of <code>fields</code>, each with
+   * its count and the (recursively computed) top values of the next field
+   * among the documents having that value.
+   * <p>
+   * The levels are counted one pass over <code>docs</code> at a time.  The
+   * first level uses a count array indexed by FieldCache ordinal, like a
+   * facet field; the next ones count sparsely, only the documents whose
+   * values were kept by the previous levels, which are pruned to their
+   * facet.limit before descending.
+   * </p>
+   */
+  public List<NamedList> getPivotCounts(String[] fields) throws IOException {
+    IndexSchema schema = searcher.getSchema();
+    FieldCache.StringIndex[] si = new FieldCache.StringIndex[fields.length];
+    for (int i=0; i<fields.length; i++) {
+      SchemaField sf = schema.getField(fields[i]);
+      if (!canUseFieldCache(sf)) {
+        throw new SolrException(400, "Can not pivot on multi-valued or tokenized field: " + fields[i]);
+      }
+      si[i] = FieldCache.DEFAULT.getStringIndex(searcher.getReader(), fields[i]);
+    }
+
+    int[] counts = new int[si[0].lookup.length];
+    DocIterator iter = docs.iterator();
+    while (iter.hasNext()) {
+      counts[si[0].order[iter.nextDoc()]]++;
+    }
+    PivotTop top = new PivotTop(fields[0]);
+    for (int ord=0; ord<counts.length; ord++) {
+      if (counts[ord] > 0) top.add(ord, counts[ord]);
+    }
+    PivotNode root = new PivotNode(-1, docs.size());
+    root.setChildren(top.getNodes());
+
+    List<PivotNode> level = root.children;
+    for (int i=1; i<fields.length; i++) {
+      iter = docs.iterator();
+      while (iter.hasNext()) {
+        int doc = iter.nextDoc();
+        PivotNode node = root;
+        for (int j=0; j<i && node != null; j++) {
+          node = node.getChild(si[j].order[doc]);
+        }
+        if (node != null) node.count(si[i].order[doc]);
+      }
+
+      List<PivotNode> next = new ArrayList<PivotNode>();
+      for (PivotNode node : level) {
+        top = new PivotTop(fields[i]);
+        if (node.counts != null) {
+          for (Map.Entry<Integer,int[]> e : node.counts.entrySet()) {
+            top.add(e.getKey(), e.getValue()[0]);
+          }
+          node.counts = null;
+        }
+        node.setChildren(top.getNodes());
+        next.addAll(node.children);
+      }
+      level = next;
+    }
+
+    return getPivotList(fields, si, 0, root);
+  }
+
+  private List<NamedList> getPivotList(String[] fields, FieldCache.StringIndex[] si, int level, PivotNode node) {
+    String field = fields[level];
+    FieldType ft = searcher.getSchema().getFieldType(field);
+    List<NamedList> res = new ArrayList<NamedList>(node.children.size());
+    for (PivotNode child : node.children) {
+      NamedList entry = new NamedList();
+      entry.add("field", field);
+      entry.add("value", child.ord == 0 ? null : ft.indexedToReadable(si[level].lookup[child.ord]));
+      entry.add("count", child.count);
+      if (level+1 < fields.length) {
+        entry.add("pivot", getPivotList(fields, si, level+1, child));
+      }
+      res.add(entry);
+    }
+    return res;
+  }
+
+  /** the top values of one pivot level below a particular value path, by count */
+  private class PivotTop {
+    final int limit;
+    final boolean missing;
+    final List<CountPair<Integer,Integer>> all;
+    final BoundedTreeSet<CountPair<Integer,Integer>> top;
+    int min;
+    int missingCount;
+
+    PivotTop(String field) {
+      limit = params.getFieldInt(field, SolrParams.FACET_LIMIT, 100);
+      missing = params.getFieldBool(field, SolrParams.FACET_MISSING, false);
+      all = limit < 0 ? new ArrayList<CountPair<Integer,Integer>>() : null;
+      top = limit > 0 ? new BoundedTreeSet<CountPair<Integer,Integer>>(limit) : null;
+    }
+
+    void add(int ord, int count) {
+      if (ord == 0) {
+        missingCount = count;
+      } else if (all != null) {
+        all.add(new CountPair<Integer,Integer>(ord, count));
+      } else if (top != null && count >= min) {
+        // ties are ranked by ordinal, which is index order
+        top.add(new CountPair<Integer,Integer>(ord, count));
+        if (top.size() >= limit) min = top.last().val;
+      }
+    }
+
+    List<PivotNode> getNodes() {
+      List<CountPair<Integer,Integer>> ranked;
+      if (all != null) {
+        ranked = all;
+        Collections.sort(ranked);
+      } else {
+        ranked = new ArrayList<CountPair<Integer,Integer>>();
+        if (top != null) ranked.addAll(top);
+      }
+      List<PivotNode> nodes = new ArrayList<PivotNode>(ranked.size()+1);
+      for (CountPair<Integer,Integer> p : ranked) {
+        nodes.add(new PivotNode(p.key, p.val));
+      }
+      // the count of documents without a value always comes last
+      if (missing && missingCount > 0) {
+        nodes.add(new PivotNode(0, missingCount));
+      }
+      return nodes;
+    }
+  }
+
+  /** a value of a pivot level, with the counts of the next level */
+  private static class PivotNode {
+    final int ord;
+    final int count;
+    // the counts of the next level by ordinal, while it is counted
+    HashMap<Integer,int[]> counts;
+    // the top values of the next level, once it is counted
+    List<PivotNode> children;
+    HashMap<Integer,PivotNode> childrenByOrd;
+
+    PivotNode(int ord, int count) {
+      this.ord = ord;
+      this.count = count;
+    }
+
+    void count(int ord) {
+      if (counts == null) counts = new HashMap<Integer,int[]>();
+      int[] count = counts.get(ord);
+      if (count == null) counts.put(ord, count = new int[1]);
+      count[0]++;
+    }
+
+    void setChildren(List<PivotNode> children) {
+      this.children = children;
+      childrenByOrd = new HashMap<Integer,PivotNode>(children.size()*2);
+      for (PivotNode child : children) childrenByOrd.put(child.ord, child);
+    }
+
+    /** the child for a value, if it was kept */
+    PivotNode getChild(int ord) {
+      return childrenByOrd.get(ord);
+    }
+  }
+
+  /**
+   * Returns a list of value ranges and the associated facet counts
+   * for each range facet field specified in the params.
+   *
+   * @see SolrParams#FACET_RANGE
+   */
+  public NamedList getFacetRangeCounts() throws IOException {
+    NamedList res = new NamedList();
+    String[] fields = params.getParams(SolrParams.FACET_RANGE);
+    if (null != fields) {
+      for (String f : fields) {
+        res.add(f, getFacetRangeCounts(f));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Returns the counts for each range of the specified range facet field,
+   * followed by the "gap" and the "end" of the last range.  Ranges include
+   * their lower bound and exclude their upper bound.  For single valued
+   * fields, all ranges are counted in a single pass over the FieldCache
+   * values of the field.
+   *
+   * @see #getFieldCacheRangeCounts
+   */
+  public NamedList getFacetRangeCounts(String f) throws IOException {
+    SchemaField sf = searcher.getSchema().getField(f);
+    FieldType ft = sf.getType();
+    if (!sf.indexed() || ft.isTokenized()) {
+      throw new SolrException(400, "Can not range facet on unindexed or tokenized field: " + f);
+    }
+
+    RangeEndpoints<?> endpoints;
+    if (ft instanceof DateField) {
+      endpoints = new DateRangeEndpoints((DateField)ft);
+    } else if (ft instanceof SortableIntField || ft instanceof SortableLongField) {
+      endpoints = new LongRangeEndpoints(ft);
+    } else if (ft instanceof SortableFloatField || ft instanceof SortableDoubleField) {
+      endpoints = new DoubleRangeEndpoints(ft);
+    } else {
+      throw new SolrException(400, "Can not range facet on field of type " + ft.getTypeName() + ": " + f);
+    }
+
+    return endpoints.getCounts(f,
+                               getRequiredFieldParam(f, SolrParams.FACET_RANGE_START),
+                               getRequiredFieldParam(f, SolrParams.FACET_RANGE_END),
+                               getRequiredFieldParam(f, SolrParams.FACET_RANGE_GAP));
+  }
+
+  private String getRequiredFieldParam(String field, String param) {
+    String val = params.getFieldParam(field, param);
+    if (null == val) {
+      throw new SolrException(400, "Missing required parameter: f." + field + "." + param + " (or default: " + param + ")");
+    }
+    return val;
+  }
+
+  /**
+   * Computes the endpoints of a sequence of ranges for a particular
+   * type of field, and counts them.
+   */
+  private abstract class RangeEndpoints<T extends Comparable<T>> {
+    protected final FieldType ft;
+
+    RangeEndpoints(FieldType ft) {
+      this.ft = ft;
+    }
+
+    /** parses an endpoint */
+    abstract T parse(String val);
+    /** adds the gap to an endpoint */
+    abstract T add(T val, String gap);
+    /** formats an endpoint in external form */
+    abstract String format(T val);
+    /** formats an endpoint in indexed form */
+    String toInternal(T val) {
+      return ft.toInternal(format(val));
+    }
+
+    NamedList getCounts(String f, String startS, String endS, String gap) throws IOException {
+      T start = parse(startS);
+      T end = parse(endS);
+      if (end.compareTo(start) < 0) {
+        throw new SolrException(400, "range facet end comes before start: " + endS + " < " + startS);
+      }
+
+      List<T> bounds = new ArrayList<T>();
+      T low = start;
+      bounds.add(low);
+      while (low.compareTo(end) < 0) {
+        T high = add(low, gap);
+        if (high.compareTo(low) <= 0) {
+          throw new SolrException(400, "range facet gap must be positive: " + gap);
+        }
+        bounds.add(high);
+        low = high;
+        if (bounds.size() > MAX_RANGES+1) {
+          throw new SolrException(400, "range facet on " + f + " has more than " + MAX_RANGES
+                  + " ranges: " + startS + " to " + endS + " by " + gap);
+        }
+      }
+
+      ConstantScoreRangeQuery[] ranges = new ConstantScoreRangeQuery[bounds.size()-1];
+      String lower = toInternal(bounds.get(0));
+      for (int i=0; i<ranges.length; i++) {
+        String upper = toInternal(bounds.get(i+1));
+        ranges[i] = new ConstantScoreRangeQuery(f, lower, upper, true, false);
+        lower = upper;
+      }
+      int[] counts;
+      if (canUseFieldCache(searcher.getSchema().getField(f))) {
+        counts = getFieldCacheRangeCounts(searcher, docs, f, ranges);
+      } else {
+        // a document may fall in more than one range
+        counts = new int[ranges.length];
+        for (int i=0; i<ranges.length; i++) {
+          counts[i] = searcher.numDocs(ranges[i], docs);
+        }
+      }
+
+      NamedList res = new NamedList();
+      for (int i=0; i<ranges.length; i++) {
+        res.add(format(bounds.get(i)), counts[i]);
+      }
+      res.add("gap", gap);
+      res.add("end", format(bounds.get(bounds.size()-1)));
+      return res;
+    }
+  }
+
+  private class DateRangeEndpoints extends RangeEndpoints<Date> {
+    // all math is relative to the same "NOW"
+    private final Date now = new Date();
+
+    DateRangeEndpoints(DateField ft) {
+      super(ft);
+    }
+    Date parse(String val) {
+      return ((DateField)ft).parseMath(now, val);
+    }
+    Date add(Date val, String gap) {
+      return ((DateField)ft).parseMath(val, "NOW" + gap);
+    }
+    String format(Date val) {
+      return ft.indexedToReadable(toInternal(val));
+    }
+    String toInternal(Date val) {
+      // strip trailing zeros from fractional seconds so that range endpoints
+      // sort correctly against values indexed without them
+      String s = ((DateField)ft).toInternal(val);
+      int end = s.length();
+      while (s.charAt(end-1) == '0') end--;
+      if (s.charAt(end-1) == '.') end--;
+      return s.substring(0, end);
+    }
+  }
+
+  private class LongRangeEndpoints extends RangeEndpoints<Long> {
+    LongRangeEndpoints(FieldType ft) {
+      super(ft);
+    }
+    Long parse(String val) {
+      try {
+        return Long.valueOf(val.trim());
+      } catch (NumberFormatException e) {
+        throw new SolrException(400, "Invalid range facet value: " + val, e);
+      }
+    }
+    Long add(Long val, String gap) {
+      return val + parse(gap);
+    }
+    String format(Long val) {
+      return val.toString();
+    }
+  }
+
+  private class DoubleRangeEndpoints extends RangeEndpoints<Double> {
+    DoubleRangeEndpoints(FieldType ft) {
+      super(ft);
+    }
+    Double parse(String val) {
+      try {
+        return Double.valueOf(val.trim());
+      } catch (NumberFormatException e) {
+        throw new SolrException(400, "Invalid range facet value: " + val, e);
+      }
+    }
+    Double add(Double val, String gap) {
+      return val + parse(gap);
+    }
+    String format(Double val) {
+      return ft instanceof SortableFloatField
+        ? Float.toString(val.floatValue()) : val.toString();
+    }
+  }
+
   /**
    * Returns a count of the documents in the set which do not have any 
    * terms for for the specified field.
@@ -178,22 +1015,74 @@ public class SimpleFacets {
    * The field must have at most one indexed token per document.
    */
   public static NamedList getFieldCacheCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int limit, boolean zeros, boolean missing) throws IOException {
+    return getFieldCacheCounts(searcher, docs, fieldName, limit, zeros, missing, null);
+  }
+
+  /**
+   * Use the Lucene FieldCache to get counts for each unique field value in <code>docs</code>
+   * that starts with <code>prefix</code> (if non-null).  Only the ordinals of the
+   * terms matching the prefix, found by binary searching the sorted terms, are counted.
+   * The field must have at most one indexed token per document.
+   *
+   * @see SolrParams#FACET_PREFIX
+   */
+  public static NamedList getFieldCacheCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int limit, boolean zeros, boolean missing, String prefix) throws IOException {
     // TODO: If the number of terms is high compared to docs.size(), and zeros==false,
     //  we should use an alternate strategy to avoid
     //  1) creating another huge int[] for the counts
     //  2) looping over that huge int[] looking for the rare non-zeros.
     //
-    // Yet another variation: if docs.size() is small and termvectors are stored,
-    // then use them instead of the FieldCache.
-    //
 
     FieldCache.StringIndex si = FieldCache.DEFAULT.getStringIndex(searcher.getReader(), fieldName);
-    int[] count = new int[si.lookup.length];
-    DocIterator iter = docs.iterator();
-    while (iter.hasNext()) {
-      count[si.order[iter.nextDoc()]]++;
+
+    int startOrd = 1;
+    int endOrd = si.lookup.length;
+    if (prefix != null) {
+      // the terms starting with prefix are the ordinals in [startOrd, endOrd)
+      startOrd = findOrd(si.lookup, prefix, false);
+      endOrd = findOrd(si.lookup, prefix + '\uffff', false);
+    }
+
+    if (limit < 0) {
+      // No need to rank the terms: hand the counts to the response writer
+      // as they are, and let it convert the terms as it writes them.
+      // The array is referenced by the result, so it can't be pooled.
+      int[] count = new int[si.lookup.length];
+      DocIterator iter = docs.iterator();
+      while (iter.hasNext()) {
+        count[si.order[iter.nextDoc()]]++;
+      }
+      return new FieldCacheTermCounts(searcher.getSchema().getFieldType(fieldName), si, count, startOrd, endOrd, zeros, missing);
+    }
+
+    CountArrayPool pool = searcher.getCountArrayPool();
+    CountArrayPool.Counts counts = pool.acquire(fieldName, si.lookup.length);
+    try {
+      DocIterator iter = docs.iterator();
+      if (prefix == null) {
+        while (iter.hasNext()) {
+          counts.inc(si.order[iter.nextDoc()]);
+        }
+        return getCountsList(searcher, fieldName, si, counts.count, startOrd, endOrd, limit, zeros, missing);
+      }
+
+      // only touching slots in the range (and "missing") keeps the release cheap
+      while (iter.hasNext()) {
+        int ord = si.order[iter.nextDoc()];
+        if (ord == 0 || (ord >= startOrd && ord < endOrd)) counts.inc(ord);
+      }
+      return getCountsList(searcher, fieldName, si, counts.count, startOrd, endOrd, limit, zeros, missing);
+    } finally {
+      pool.release(fieldName, counts);
     }
+  }
 
+  /**
+   * Converts an array of counts indexed by the ordinals of <code>si</code>
+   * into a list of the top <code>limit</code> constraints, considering only
+   * the ordinals in [<code>startOrd</code>, <code>endOrd</code>).
+   */
+  static NamedList getCountsList(SolrIndexSearcher searcher, String fieldName, FieldCache.StringIndex si, int[] count, int startOrd, int endOrd, int limit, boolean zeros, boolean missing) {
     FieldType ft = searcher.getSchema().getFieldType(fieldName);
     NamedList res = new NamedList();
 
@@ -208,7 +1097,7 @@ public class SimpleFacets {
     }
 
     int min=-1;  // the smallest value in the top 'N' values
-    for (int i=1; i<count.length; i++) {
+    for (int i=startOrd; i<endOrd; i++) {
       int c = count[i];
       if (c==0 && !zeros) continue;
       if (limit<0) {
@@ -245,6 +1134,19 @@ public class SimpleFacets {
    */
   public NamedList getFacetTermEnumCounts(SolrIndexSearcher searcher, DocSet docs, String field, int limit, boolean zeros, boolean missing)
     throws IOException {
+    return getFacetTermEnumCounts(searcher, docs, field, limit, zeros, missing, null);
+  }
+
+  /**
+   * Returns a list of terms in the specified field that start with
+   * <code>prefix</code> (if non-null) along with the corrisponding count of
+   * documents in the set that match that constraint.  The TermEnum is
+   * positioned at the prefix and stops at the first term without it.
+   *
+   * @see SolrParams#FACET_PREFIX
+   */
+  public NamedList getFacetTermEnumCounts(SolrIndexSearcher searcher, DocSet docs, String field, int limit, boolean zeros, boolean missing, String prefix)
+    throws IOException {
 
     /* :TODO: potential optimization...
     * cache the Terms with the highest docFreq and try them first
@@ -262,13 +1164,16 @@ public class SimpleFacets {
       counts = new BoundedTreeSet<CountPair<String,Integer>>(limit);
     }
 
-    TermEnum te = r.terms(new Term(field,""));
+    TermEnum te = r.terms(new Term(field, prefix==null ? "" : prefix));
     do {
       Term t = te.term();
 
       if (null == t || ! t.field().equals(field))
         break;
 
+      if (prefix != null && ! t.text().startsWith(prefix))
+        break;
+
       if (0 < te.docFreq()) { /* all docs may be deleted */
         int count = searcher.numDocs(new TermQuery(t),
                                      docs);
@@ -292,6 +1197,91 @@ public class SimpleFacets {
     return res;
   }
 
+  /**
+   * Returns a list of terms in the specified field along with the
+   * corrisponding count of documents in the set that match that constraint.
+   * This method reads the stored term vector of each document in the set,
+   * so it is only suitable for small sets.  Zero counts are only included
+   * to fill the <code>limit</code> (terms with no matching documents can't
+   * be found in their term vectors), so if <code>limit</code> is negative
+   * they are not included at all.
+   *
+   * @see SolrParams#FACET_LIMIT
+   * @see SolrParams#FACET_ZEROS
+   * @see SolrParams#FACET_MISSING
+   * @see SolrParams#FACET_PREFIX
+   */
+  public NamedList getTermVectorCounts(SolrIndexSearcher searcher, DocSet docs, String field, int limit, boolean zeros, boolean missing, String prefix)
+    throws IOException {
+
+    IndexReader r = searcher.getReader();
+    FieldType ft = searcher.getSchema().getFieldType(field);
+
+    // the terms of a term vector are unique, so each is counted once per doc
+    HashMap<String,int[]> termCounts = new HashMap<String,int[]>();
+    DocIterator iter = docs.iterator();
+    while (iter.hasNext()) {
+      TermFreqVector tfv = r.getTermFreqVector(iter.nextDoc(), field);
+      if (tfv == null) continue;
+      for (String term : tfv.getTerms()) {
+        if (prefix != null && !term.startsWith(prefix)) continue;
+        int[] count = termCounts.get(term);
+        if (count == null) {
+          termCounts.put(term, new int[]{1});
+        } else {
+          count[0]++;
+        }
+      }
+    }
+
+    Collection<CountPair<String,Integer>> counts;
+    if (limit < 0) {
+      // no counts to rank, return the terms in index order
+      List<CountPair<String,Integer>> sorted = new ArrayList<CountPair<String,Integer>>(termCounts.size());
+      for (Map.Entry<String,int[]> entry : termCounts.entrySet()) {
+        sorted.add(new CountPair<String,Integer>(entry.getKey(), entry.getValue()[0]));
+      }
+      Collections.sort(sorted, new Comparator<CountPair<String,Integer>>() {
+        public int compare(CountPair<String,Integer> a, CountPair<String,Integer> b) {
+          return a.key.compareTo(b.key);
+        }
+      });
+      counts = sorted;
+    } else {
+      counts = new BoundedTreeSet<CountPair<String,Integer>>(limit);
+      for (Map.Entry<String,int[]> entry : termCounts.entrySet()) {
+        counts.add(new CountPair<String,Integer>(entry.getKey(), entry.getValue()[0]));
+      }
+    }
+    if (0 <= limit && zeros && counts.size() < limit) {
+      // zero counts sort after all others, in index order
+      TermEnum te = r.terms(new Term(field, prefix==null ? "" : prefix));
+      try {
+        do {
+          Term t = te.term();
+          if (null == t || ! t.field().equals(field)) break;
+          if (prefix != null && ! t.text().startsWith(prefix)) break;
+          if (0 < te.docFreq() && !termCounts.containsKey(t.text())) {
+            counts.add(new CountPair<String,Integer>(t.text(), 0));
+          }
+        } while (counts.size() < limit && te.next());
+      } finally {
+        te.close();
+      }
+    }
+
+    NamedList res = new NamedList();
+    for (CountPair<String,Integer> p : counts) {
+      res.add(ft.indexedToReadable(p.key), p.val);
+    }
+
+    if (missing) {
+      res.add(null, getFieldMissingCount(searcher,docs,field));
+    }
+
+    return res;
+  }
+
   /**
    * A simple key=>val pair whose natural order is such that 
    * <b>higher</b> vals come before lower vals.
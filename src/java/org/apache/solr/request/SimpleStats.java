@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import org.apache.lucene.search.FieldCache;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrException;
+import org.apache.solr.schema.DateField;
+import org.apache.solr.schema.DoubleField;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.FloatField;
+import org.apache.solr.schema.IntField;
+import org.apache.solr.schema.LongField;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.SortableDoubleField;
+import org.apache.solr.schema.SortableFloatField;
+import org.apache.solr.schema.SortableIntField;
+import org.apache.solr.schema.SortableLongField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.NamedList;
+import org.apache.solr.util.NumberUtils;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A class that generates simple statistics (min, max, sum, count,
+ * missing, mean and standard deviation) of numeric and date fields
+ * over the documents of a request.
+ * <p>
+ * Values come from the FieldCache, so no stored fields are loaded, and
+ * each field (along with any facet fields its statistics are broken down
+ * by) is computed in a single pass over the documents.
+ * </p>
+ *
+ * @version $Id$
+ * @see SimpleFacets
+ */
+public class SimpleStats {
+
+  /** The main set of documents the statistics should be relative to */
+  protected DocSet docs;
+  /** Configuration params behavior should be driven by */
+  protected SolrParams params;
+  /** Searcher to use for all calculations */
+  protected SolrIndexSearcher searcher;
+
+  public SimpleStats(SolrIndexSearcher searcher,
+                     DocSet docs,
+                     SolrParams params) {
+    this.searcher = searcher;
+    this.docs = docs;
+    this.params = params;
+  }
+
+  /**
+   * Looks at various Params to determine if any statistics are desired.
+   *
+   * @see SolrParams#STATS
+   * @see SolrParams#STATS_FIELD
+   * @return a NamedList of statistics keyed by field, or null
+   */
+  public NamedList getStatsCounts() {
+
+    // if someone called this method, benefit of the doubt: assume true
+    if (!params.getBool(params.STATS,true))
+      return null;
+
+    NamedList res = new NamedList();
+    try {
+      NamedList fields = new NamedList();
+      String[] statsFs = params.getParams(SolrParams.STATS_FIELD);
+      if (null != statsFs) {
+        for (String f : statsFs) {
+          fields.add(f, getFieldStats(f));
+        }
+      }
+      res.add("stats_fields", fields);
+    } catch (Exception e) {
+      SolrException.logOnce(SolrCore.log, "Exception during stats", e);
+      res.add("exception", SolrException.toStr(e));
+    }
+    return res;
+  }
+
+  /**
+   * Returns the statistics of <code>field</code> over the documents, broken
+   * down by the values of each {@link SolrParams#STATS_FACET} field if any.
+   */
+  public NamedList getFieldStats(String field) throws IOException {
+    ValueSource vals = getValueSource(field);
+
+    String[] facetFs = params.getFieldParams(field, SolrParams.STATS_FACET);
+    int nfacets = facetFs==null ? 0 : facetFs.length;
+    FieldCache.StringIndex[] facetSi = new FieldCache.StringIndex[nfacets];
+    Stats[][] facetStats = new Stats[nfacets][];
+    for (int i=0; i<nfacets; i++) {
+      SchemaField sf = searcher.getSchema().getField(facetFs[i]);
+      if (!SimpleFacets.canUseFieldCache(sf)) {
+        throw new SolrException(400, "Can not compute stats facets on multi-valued or tokenized field: " + facetFs[i]);
+      }
+      facetSi[i] = FieldCache.DEFAULT.getStringIndex(searcher.getReader(), facetFs[i]);
+      facetStats[i] = new Stats[facetSi[i].lookup.length];
+    }
+
+    Stats stats = new Stats();
+    DocIterator iter = docs.iterator();
+    while (iter.hasNext()) {
+      int doc = iter.nextDoc();
+      int ord = vals.si.order[doc];
+      double val = ord==0 ? 0 : vals.get(ord);
+      stats.accumulate(ord!=0, val);
+      for (int i=0; i<nfacets; i++) {
+        int facetOrd = facetSi[i].order[doc];
+        Stats s = facetStats[i][facetOrd];
+        if (s == null) s = facetStats[i][facetOrd] = new Stats();
+        s.accumulate(ord!=0, val);
+      }
+    }
+
+    NamedList res = stats.getStatistics(vals);
+    if (nfacets > 0) {
+      NamedList facets = new NamedList();
+      for (int i=0; i<nfacets; i++) {
+        FieldType ft = searcher.getSchema().getFieldType(facetFs[i]);
+        NamedList facet = new NamedList();
+        // values in index order, documents without a value last
+        for (int ord=1; ord<facetStats[i].length; ord++) {
+          Stats s = facetStats[i][ord];
+          if (s != null) facet.add(ft.indexedToReadable(facetSi[i].lookup[ord]), s.getStatistics(vals));
+        }
+        if (facetStats[i][0] != null) facet.add(null, facetStats[i][0].getStatistics(vals));
+        facets.add(facetFs[i], facet);
+      }
+      res.add("facets", facets);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the source of the values of <code>field</code>.
+   * The field must be a single valued numeric or date field.
+   */
+  protected ValueSource getValueSource(String field) throws IOException {
+    SchemaField sf = searcher.getSchema().getField(field);
+    FieldType ft = sf.getType();
+    if (!SimpleFacets.canUseFieldCache(sf)) {
+      throw new SolrException(400, "Can not compute stats on multi-valued or tokenized field: " + field);
+    }
+
+    ValueSource vals;
+    if (ft instanceof SortableIntField) {
+      vals = new ValueSource() {
+        double parse(String term) { return NumberUtils.SortableStr2int(term, 0, term.length()); }
+      };
+    } else if (ft instanceof SortableLongField) {
+      vals = new ValueSource() {
+        double parse(String term) { return NumberUtils.SortableStr2long(term, 0, term.length()); }
+      };
+    } else if (ft instanceof SortableFloatField) {
+      vals = new ValueSource() {
+        double parse(String term) { return NumberUtils.SortableStr2float(term); }
+      };
+    } else if (ft instanceof SortableDoubleField) {
+      vals = new ValueSource() {
+        double parse(String term) { return NumberUtils.SortableStr2double(term); }
+      };
+    } else if (ft instanceof IntField || ft instanceof LongField
+               || ft instanceof FloatField || ft instanceof DoubleField) {
+      vals = new ValueSource() {
+        double parse(String term) { return Double.parseDouble(term); }
+      };
+    } else if (ft instanceof DateField) {
+      final DateField df = (DateField)ft;
+      vals = new ValueSource() {
+        double parse(String term) { return df.parseInternal(term).getTime(); }
+        Object format(double val) { return new Date((long)val); }
+      };
+    } else {
+      throw new SolrException(400, "Can not compute stats on field of type " + ft.getTypeName() + ": " + field);
+    }
+
+    vals.si = FieldCache.DEFAULT.getStringIndex(searcher.getReader(), field);
+    // Parse each term at most once: up front if most of them will be
+    // needed, otherwise when first seen.
+    int nterms = vals.si.lookup.length;
+    vals.parsed = new double[nterms];
+    vals.isParsed = new boolean[nterms];
+    if (docs.size() >= nterms) {
+      for (int ord=1; ord<nterms; ord++) vals.get(ord);
+    }
+    return vals;
+  }
+
+  /**
+   * Converts the terms of a field to numeric values, by FieldCache ordinal.
+   */
+  protected static abstract class ValueSource {
+    FieldCache.StringIndex si;
+    double[] parsed;
+    boolean[] isParsed;
+
+    /** the value of an indexed term */
+    abstract double parse(String term);
+
+    /** the external form of a min, max or mean value */
+    Object format(double val) {
+      return val;
+    }
+
+    double get(int ord) {
+      if (!isParsed[ord]) {
+        parsed[ord] = parse(si.lookup[ord]);
+        isParsed[ord] = true;
+      }
+      return parsed[ord];
+    }
+  }
+
+  /**
+   * accumulated statistics of a set of values.  The mean and the sum of
+   * squared differences from it are updated for each value (Welford's
+   * method), as a sum of squares loses the variance of large values that
+   * are close together to rounding.
+   */
+  protected static class Stats {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum;
+    double mean;
+    double m2;
+    int count;
+    int missing;
+
+    void accumulate(boolean exists, double val) {
+      if (!exists) {
+        missing++;
+        return;
+      }
+      if (val < min) min = val;
+      if (val > max) max = val;
+      sum += val;
+      count++;
+      double delta = val - mean;
+      mean += delta / count;
+      m2 += delta * (val - mean);
+    }
+
+    NamedList getStatistics(ValueSource vals) {
+      NamedList res = new NamedList();
+      res.add("min", count==0 ? null : vals.format(min));
+      res.add("max", count==0 ? null : vals.format(max));
+      res.add("sum", sum);
+      res.add("count", count);
+      res.add("missing", missing);
+      res.add("mean", count==0 ? null : vals.format(mean));
+      res.add("stddev", count<=1 ? 0.0 : Math.sqrt(m2 / (count-1)));
+      return res;
+    }
+  }
+}
@@ -100,6 +100,90 @@ public abstract class SolrParams {
    * facet field. Can be overriden on a per field basis.
    */
   public static final String FACET_MISSING = "facet.missing";
+  /**
+   * String option: only return facet field constraints whose indexed term
+   * starts with this prefix.  Can be overriden on a per field basis.
+   */
+  public static final String FACET_PREFIX = "facet.prefix";
+  /**
+   * String option: forces the method used to compute facet field counts,
+   * one of "enum" (filters for each term), "fc" (the FieldCache, single
+   * valued untokenized fields only) or "tv" (stored term vectors of the
+   * matching documents).  By default the method is chosen by estimated cost.
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_METHOD = "facet.method";
+  /**
+   * Integer option: when the set of documents being faceted on is larger
+   * than this, facet field counts are computed over a uniform sample of it
+   * and scaled up.  0 (the default) disables sampling.
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_SAMPLE_THRESHOLD = "facet.sample.threshold";
+  /**
+   * Integer option: the number of documents in a facet sample.
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_SAMPLE_SIZE = "facet.sample.size";
+  /**
+   * Boolean option indicating whether the constraints found using a sample
+   * should be re-counted exactly over the full set of documents.
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_SAMPLE_RECOUNT = "facet.sample.recount";
+
+  /**
+   * Any numeric or date field that the user wants counts for over a
+   * sequence of contiguous ranges (multi-value).
+   */
+  public static final String FACET_RANGE = "facet.range";
+  /**
+   * The lower bound of the first range for a {@link #FACET_RANGE} field.
+   * For date fields this may be a Date Math expression, ie: "NOW/DAY-7DAYS".
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_RANGE_START = "facet.range.start";
+  /**
+   * The upper bound of the last range for a {@link #FACET_RANGE} field.
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_RANGE_END = "facet.range.end";
+  /**
+   * The size of each range for a {@link #FACET_RANGE} field.  For date
+   * fields this is a Date Math expression to add, ie: "+1DAY".
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_RANGE_GAP = "facet.range.gap";
+
+  /**
+   * A comma separated list of fields, ie: "cat,manu", for which nested
+   * counts are wanted: the values of each field are counted within each
+   * of the top values of the previous field (multi-value).
+   * The facet.limit and facet.missing of each field apply to its level.
+   */
+  public static final String FACET_PIVOT = "facet.pivot";
+
+  /**
+   * Should field statistics be calculated?
+   */
+  public static final String STATS = "stats";
+  /**
+   * Any numeric or date field that the user wants statistics for
+   * (multi-value).
+   */
+  public static final String STATS_FIELD = "stats.field";
+  /**
+   * Any field whose values the user wants the statistics of a
+   * {@link #STATS_FIELD} broken down by (multi-value).
+   * Can be overriden on a per field basis.
+   */
+  public static final String STATS_FACET = "stats.facet";
+
+  /**
+   * Should the request also see the changes that aren't committed yet?
+   * Only possible if the update handler supports it, false by default.
+   */
+  public static final String REALTIME = "realtime";
 
 
   /** returns the String value of a param, or null if not set */
@@ -129,6 +213,14 @@ public abstract class SolrParams {
     return val!=null ? val : get(param);
   }
 
+  /** returns the values of the field parameter, "f.field.param", or
+   *  the values for "param" if that is not set.
+   */
+  public String[] getFieldParams(String field, String param) {
+    String[] val = getParams(fpname(field,param));
+    return val!=null ? val : getParams(param);
+  }
+
   /** Returns the Boolean value of the param, or null if not set */
   public Boolean getBool(String param) {
     String val = get(param);
@@ -149,7 +149,8 @@ public abstract class SolrQueryRequestBase implements SolrQueryRequest {
     // or there could be a setSearcher() method that Solr calls
 
     if (searcherHolder==null) {
-      searcherHolder = core.getSearcher();
+      searcherHolder = params.getBool(SolrParams.REALTIME, false)
+              ? core.getRealtimeSearcher() : core.getSearcher();
     }
 
     return searcherHolder.get();
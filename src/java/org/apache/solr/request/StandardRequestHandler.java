@@ -21,6 +21,7 @@ import org.apache.lucene.search.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.net.URL;
 
 import org.apache.solr.util.StrUtils;
@@ -122,14 +123,22 @@ public class StandardRequestHandler implements SolrRequestHandler, SolrInfoMBean
 
       DocListAndSet results = new DocListAndSet();
       NamedList facetInfo = null;
+      NamedList statsInfo = null;
       List<Query> filters = U.parseFilterQueries(req);
       SolrIndexSearcher s = req.getSearcher();
 
-      if (p.getBool(FACET,false)) {
+      boolean facet = p.getBool(FACET,false);
+      boolean stats = p.getBool(STATS,false);
+      if (facet || stats) {
         results = s.getDocListAndSet(query, filters, sort,
                                      p.getInt(START,0), p.getInt(ROWS,10),
                                      flags);
-        facetInfo = getFacetInfo(req, rsp, results.docSet);
+        if (facet) {
+          req.getContext().put(SimpleFacets.CONTEXT_QUERY_KEY, query);
+          req.getContext().put(SimpleFacets.CONTEXT_FILTERS_KEY, filters);
+          facetInfo = getFacetInfo(req, rsp, results.docSet);
+        }
+        if (stats) statsInfo = getStatsInfo(req, rsp, results.docSet);
       } else {
         results.docList = s.getDocList(query, filters, sort,
                                        p.getInt(START,0), p.getInt(ROWS,10),
@@ -142,6 +151,7 @@ public class StandardRequestHandler implements SolrRequestHandler, SolrInfoMBean
       rsp.add("response",results.docList);
 
       if (null != facetInfo) rsp.add("facet_counts", facetInfo);
+      if (null != statsInfo) rsp.add("stats", statsInfo);
 
       try {
         NamedList dbg = U.doStandardDebug(req, qs, query, results.docList);
@@ -182,19 +192,60 @@ public class StandardRequestHandler implements SolrRequestHandler, SolrInfoMBean
    * Fetches information about Facets for this request.
    *
    * Subclasses may with to override this method to provide more 
-   * advanced faceting behavior.
+   * advanced faceting behavior.  The query and filters that produced
+   * <code>mainSet</code> are taken from the request context, if set.
    * @see SimpleFacets#getFacetCounts
+   * @see SimpleFacets#CONTEXT_QUERY_KEY
    */
+  @SuppressWarnings("unchecked")
   protected NamedList getFacetInfo(SolrQueryRequest req, 
                                    SolrQueryResponse rsp, 
                                    DocSet mainSet) {
 
+    Map<Object,Object> context = req.getContext();
+    return getFacetInfo(req, rsp, mainSet,
+                        (Query)context.get(SimpleFacets.CONTEXT_QUERY_KEY),
+                        (List<Query>)context.get(SimpleFacets.CONTEXT_FILTERS_KEY));
+  }
+
+  /**
+   * Fetches information about Facets for this request, given the query
+   * and filters that produced <code>mainSet</code> so that facet counts
+   * may be cached, or null if they may not be.
+   *
+   * @see SimpleFacets#FACET_CACHE
+   */
+  protected NamedList getFacetInfo(SolrQueryRequest req, 
+                                   SolrQueryResponse rsp, 
+                                   DocSet mainSet,
+                                   Query query,
+                                   List<Query> filters) {
+
     SimpleFacets f = new SimpleFacets(req.getSearcher(), 
                                       mainSet, 
-                                      req.getParams());
+                                      req.getParams(),
+                                      query,
+                                      filters);
     return f.getFacetCounts();
   }
 
+  /**
+   * Fetches statistics of fields for this request.
+   *
+   * Subclasses may wish to override this method to provide more
+   * advanced statistics.
+   * @see SimpleStats#getStatsCounts
+   */
+  protected NamedList getStatsInfo(SolrQueryRequest req,
+                                   SolrQueryResponse rsp,
+                                   DocSet mainSet) {
+
+    SimpleStats s = new SimpleStats(req.getSearcher(),
+                                    mainSet,
+                                    req.getParams());
+    return s.getStatsCounts();
+  }
+
 
 
   //////////////////////// SolrInfoMBeans methods //////////////////////
@@ -112,6 +112,54 @@ public class DateField extends FieldType {
     return getThreadLocalDateFormat().format(val);
   }
 
+  /**
+   * Parses a String which is either "NOW" or a date in the external format,
+   * optionally followed by a Date Math expression that is evaluated relative
+   * to it, ie: "NOW/DAY-7DAYS" or "1995-12-31T23:59:59Z+1MONTH".
+   *
+   * @param now the Date to use for "NOW", or null for the current time
+   * @see DateMathParser
+   */
+  public Date parseMath(Date now, String val) {
+    DateMathParser p = new DateMathParser(UTC, Locale.US);
+    if (now != null) p.setNow(now);
+
+    String math;
+    if (val.startsWith("NOW")) {
+      math = val.substring(3);
+    } else {
+      int zz = val.indexOf('Z');
+      if (zz <= 0) {
+        throw new SolrException(400,"Invalid Date String:'" +val+'\'');
+      }
+      p.setNow(parseInternal(val.substring(0,zz)));
+      math = val.substring(zz+1);
+    }
+
+    try {
+      return p.parseMath(math);
+    } catch (ParseException e) {
+      throw new SolrException(400,"Invalid Date Math String:'" +val+'\'',e);
+    }
+  }
+
+  /** Parses a date in the internal (indexed) format */
+  public Date parseInternal(String indexedForm) {
+    // the format requires exactly three digits of fractional seconds
+    String s = indexedForm;
+    int dot = s.indexOf('.');
+    if (dot < 0) {
+      s = s + ".000";
+    } else {
+      for (int i=s.length()-dot-1; i<3; i++) s = s + '0';
+    }
+    try {
+      return getThreadLocalDateFormat().parse(s);
+    } catch (ParseException e) {
+      throw new SolrException(400,"Invalid Date String:'" +indexedForm+'\'',e);
+    }
+  }
+
   public String indexedToReadable(String indexedForm) {
     return indexedForm + 'Z';
   }
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.util.NamedList;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of <code>int[]</code> count arrays, keyed by field name, that
+ * allows term count arrays (such as those used for FieldCache based
+ * faceting) to be reused across requests instead of being allocated
+ * per request.
+ * <p>
+ * A pool is associated with a single {@link SolrIndexSearcher}, so the
+ * size of the arrays for a field never changes during the life of the pool.
+ * Arrays are cleared when they are released: if only a small number of slots
+ * were touched, then only those slots are reset, otherwise the whole array is.
+ *
+ * @version $Id$
+ */
+public class CountArrayPool implements SolrInfoMBean {
+
+  /* stats accumulated across all pool instances */
+  private static final AtomicLong cumulativeHits = new AtomicLong();
+  private static final AtomicLong cumulativeMisses = new AtomicLong();
+
+  private final int maxPerField;
+  private final HashMap<String,ArrayList<Counts>> pool = new HashMap<String,ArrayList<Counts>>();
+
+  // per instance stats, protected by the pool lock
+  private long hits;
+  private long misses;
+  private long discards;
+  private long partialClears;
+  private long fullClears;
+
+  /**
+   * @param maxPerField the maximum number of free arrays retained for any
+   * single field.  Arrays released beyond this limit are discarded.
+   */
+  public CountArrayPool(int maxPerField) {
+    this.maxPerField = maxPerField;
+  }
+
+  /**
+   * A count array that tracks which slots have been incremented from zero
+   * so that it can be cleared incrementally.  Instances are not threadsafe
+   * and should be used by a single request at a time.
+   */
+  public static final class Counts {
+    /** the counts, indexed by term ordinal */
+    public final int[] count;
+    private final int[] touched;
+    private int numTouched;
+    private boolean overflow;
+
+    Counts(int size) {
+      count = new int[size];
+      // Tracking every slot would double the memory used... once more
+      // than 1/8th of the slots are touched, a full clear is cheaper anyway.
+      touched = new int[(size>>>3) + 1];
+    }
+
+    /** Increments the count at <code>ord</code> */
+    public void inc(int ord) {
+      if (count[ord]++ == 0 && !overflow) {
+        if (numTouched < touched.length) {
+          touched[numTouched++] = ord;
+        } else {
+          overflow = true;
+        }
+      }
+    }
+
+    /** resets all counts to zero, returns true if only touched slots were cleared */
+    boolean clear() {
+      boolean partial = !overflow;
+      if (partial) {
+        for (int i=0; i<numTouched; i++) count[touched[i]] = 0;
+      } else {
+        Arrays.fill(count, 0);
+      }
+      numTouched = 0;
+      overflow = false;
+      return partial;
+    }
+  }
+
+  /**
+   * Returns a zeroed Counts instance for <code>field</code> whose count
+   * array has <code>size</code> slots.  The caller should return it via
+   * {@link #release} when finished.
+   */
+  public Counts acquire(String field, int size) {
+    synchronized (pool) {
+      ArrayList<Counts> free = pool.get(field);
+      if (free != null) {
+        for (int i=free.size()-1; i>=0; i--) {
+          if (free.get(i).count.length == size) {
+            hits++;
+            cumulativeHits.incrementAndGet();
+            return free.remove(i);
+          }
+        }
+      }
+      misses++;
+      cumulativeMisses.incrementAndGet();
+    }
+    return new Counts(size);
+  }
+
+  /**
+   * Clears <code>counts</code> and returns it to the pool for reuse.
+   * <code>counts</code> must not be used by the caller after this call.
+   */
+  public void release(String field, Counts counts) {
+    // clear outside of the lock... this is the expensive part
+    boolean partial = counts.clear();
+
+    synchronized (pool) {
+      if (partial) partialClears++; else fullClears++;
+      ArrayList<Counts> free = pool.get(field);
+      if (free == null) {
+        free = new ArrayList<Counts>(maxPerField);
+        pool.put(field, free);
+      }
+      if (free.size() < maxPerField) {
+        free.add(counts);
+      } else {
+        discards++;
+      }
+    }
+  }
+
+  /** Drops all pooled arrays */
+  public void clear() {
+    synchronized (pool) {
+      pool.clear();
+    }
+  }
+
+
+  //////////////////////// SolrInfoMBeans methods //////////////////////
+
+
+  public String getName() {
+    return CountArrayPool.class.getName();
+  }
+
+  public String getVersion() {
+    return SolrCore.version;
+  }
+
+  public String getDescription() {
+    return "Pool of facet count arrays (maxPerField=" + maxPerField + ")";
+  }
+
+  public Category getCategory() {
+    return Category.CACHE;
+  }
+
+  public String getSourceId() {
+    return "$Id$";
+  }
+
+  public String getSource() {
+    return "$URL$";
+  }
+
+  public URL[] getDocs() {
+    return null;
+  }
+
+  public NamedList getStatistics() {
+    NamedList lst = new NamedList();
+    synchronized (pool) {
+      int pooled=0;
+      for (ArrayList<Counts> free : pool.values()) pooled += free.size();
+      lst.add("hits", hits);
+      lst.add("misses", misses);
+      lst.add("discards", discards);
+      lst.add("partialClears", partialClears);
+      lst.add("fullClears", fullClears);
+      lst.add("fields", pool.size());
+      lst.add("pooled", pooled);
+    }
+    lst.add("cumulative_hits", cumulativeHits.get());
+    lst.add("cumulative_misses", cumulativeMisses.get());
+    return lst;
+  }
+
+  public String toString() {
+    return "countArrayPool" + getStatistics().toString();
+  }
+}
@@ -26,6 +26,7 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.PriorityQueue;
 import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrException;
 import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.core.SolrInfoRegistry;
 import org.apache.solr.schema.IndexSchema;
@@ -71,6 +72,7 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
   private final SolrCache filterCache;
   private final SolrCache queryResultCache;
   private final SolrCache documentCache;
+  private final SolrCache idCache;
 
   // map of generic caches - not synchronized since it's read-only after the constructor.
   private final HashMap<String, SolrCache> cacheMap;
@@ -80,6 +82,9 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
   private final SolrCache[] cacheList;
   private static final SolrCache[] noCaches = new SolrCache[0];
 
+  // reusable count arrays for faceting
+  private final CountArrayPool countArrayPool;
+
   /** Creates a searcher searching the index in the named directory. */
   public SolrIndexSearcher(IndexSchema schema, String name, String path, boolean enableCache) throws IOException {
     this(schema,name,IndexReader.open(path), true, enableCache);
@@ -115,6 +120,8 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
       if (queryResultCache!=null) clist.add(queryResultCache);
       documentCache = documentCacheConfig==null ? null : documentCacheConfig.newInstance();
       if (documentCache!=null) clist.add(documentCache);
+      idCache = idCacheConfig==null ? null : idCacheConfig.newInstance();
+      if (idCache!=null) clist.add(idCache);
 
       if (userCacheConfigs == null) {
         cacheMap = noGenericCaches;
@@ -135,10 +142,13 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
       filterCache=null;
       queryResultCache=null;
       documentCache=null;
+      idCache=null;
       cacheMap = noGenericCaches;
       cacheList= noCaches;
     }
 
+    countArrayPool = new CountArrayPool(countArrayPoolSize);
+
     // register self
     SolrInfoRegistry.getRegistry().put(this.name, this);
   }
@@ -156,6 +166,7 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
       cache.setState(SolrCache.State.LIVE);
       SolrInfoRegistry.getRegistry().put(cache.name(), cache);
     }
+    SolrInfoRegistry.getRegistry().put("countArrayPool", countArrayPool);
     registerTime=System.currentTimeMillis();
   }
 
@@ -187,6 +198,7 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
       for (SolrCache cache : cacheList) {
         cache.close();
       }
+      countArrayPool.clear();
     }
   }
 
@@ -194,6 +206,8 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
   public IndexReader getReader() { return reader; }
   /** Direct access to the IndexSchema for use with this searcher */
   public IndexSchema getSchema() { return schema; }
+  /** The pool of reusable count arrays associated with this searcher */
+  public CountArrayPool getCountArrayPool() { return countArrayPool; }
 
 
   // params for the "nutch" query optimizer
@@ -206,7 +220,9 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
   private static final CacheConfig filterCacheConfig = CacheConfig.getConfig("query/filterCache");
   private static final CacheConfig queryResultCacheConfig = CacheConfig.getConfig("query/queryResultCache");
   private static final CacheConfig documentCacheConfig = CacheConfig.getConfig("query/documentCache");
+  private static final CacheConfig idCacheConfig = CacheConfig.getConfig("query/idCache");
   private static final CacheConfig[] userCacheConfigs = CacheConfig.getMultipleConfigs("query/cache");
+  private static final int countArrayPoolSize = SolrConfig.config.getInt("query/countArrayPool/@maxPerField", 4);
 
 
   //
@@ -255,6 +271,24 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
   }
 
 
+  //
+  // Set a default regenerator on the id cache, which looks up the cached ids
+  // again as document numbers change
+  //
+  static {
+    if (idCacheConfig != null && idCacheConfig.getRegenerator() == null) {
+      idCacheConfig.setRegenerator(
+              new CacheRegenerator() {
+                public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+                  newSearcher.getDocId((String)oldKey);
+                  return true;
+                }
+              }
+      );
+    }
+  }
+
+
   private static boolean useFilterForSortedQuery=SolrConfig.config.getBool("query/useFilterForSortedQuery", false);
   private static int queryResultWindowSize=SolrConfig.config.getInt("query/queryResultWindowSize", 1);
 
@@ -432,6 +466,28 @@ public class SolrIndexSearcher extends Searcher implements SolrInfoMBean {
   }
 
 
+  /**
+   * Returns the number of the document with the uniqueKey value
+   * <code>indexedId</code> (in its indexed form), or -1 if there is none.
+   * Lookups are cached in the idCache, if configured.
+   */
+  public int getDocId(String indexedId) throws IOException {
+    if (idCache != null) {
+      Integer doc = (Integer)idCache.get(indexedId);
+      if (doc != null) return doc;
+    }
+
+    SchemaField key = schema.getUniqueKeyField();
+    if (key == null) throw new SolrException(400, "no uniqueKey field defined in the schema");
+    int doc = getFirstMatch(new Term(key.getName(), indexedId));
+
+    if (idCache != null) {
+      idCache.put(indexedId, doc);
+    }
+    return doc;
+  }
+
+
   /**
    * Compute and cache the DocSet that matches a query.
    * The normal usage is expected to be cacheDocSet(myQuery, null,false)
@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.core.SolrException;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adds the documents of a bulk update request using a pool of worker
+ * threads, so that building and analyzing documents isn't limited to the
+ * thread reading the request.
+ * <p>
+ * The reading thread hands each {@link InputDocument} to a {@link Session},
+ * which queues it for one of the workers through a bounded queue (so the
+ * reader blocks rather than buffering an entire request).  Each worker
+ * takes documents from its queue in batches, builds them, and adds each
+ * batch with a single {@link UpdateHandler#addDocs} call; the IndexWriter
+ * analyzes documents added by different threads concurrently.  The workers are only started
+ * once a request has more than <code>batchSize</code> documents; smaller
+ * requests are added by the reading thread.
+ * </p>
+ * <p>
+ * Documents are routed to workers by the indexed value of their uniqueKey,
+ * so all documents with the same id are added in the order they were read
+ * and overwriting works as it does for a sequential add.
+ * The first exception thrown while adding any document is reported to the
+ * reader.  The workers add no more documents after it, so the documents
+ * added are those that completed before it, which may come after the
+ * failed one in the request; see {@link Session#getAdded}.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class AddPipeline {
+  private final UpdateHandler updateHandler;
+  private final IndexSchema schema;
+  private final int threads;
+  private final int queueSize;
+  private final int batchSize;
+  private final ExecutorService executor;
+
+  /** marks the end of the documents for a worker */
+  private static final Queued END = new Queued(-1, null);
+
+  /**
+   * @param threads the number of workers used by each session
+   * @param queueSize the maximum number of documents queued for each worker
+   * @param batchSize the maximum number of documents a worker takes from its
+   * queue and adds at once, and the most a request added without workers may have
+   */
+  public AddPipeline(UpdateHandler updateHandler, IndexSchema schema, int threads, int queueSize, int batchSize) {
+    this.updateHandler = updateHandler;
+    this.schema = schema;
+    this.threads = threads;
+    this.queueSize = queueSize;
+    this.batchSize = batchSize;
+    // Threads are only created when needed, and are shared across sessions.
+    // A fixed size pool could deadlock with several concurrent sessions, each
+    // waiting for workers that are queued behind the workers of another.
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "AddPipeline-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Starts adding the documents of a single request, with the same
+   * overwrite options as <code>template</code>.
+   */
+  public Session newSession(AddUpdateCommand template) {
+    return new Session(template);
+  }
+
+  /** Stops all worker threads once they are idle */
+  public void close() {
+    executor.shutdown();
+  }
+
+  /** A document and its position in the request */
+  private static class Queued {
+    final int pos;
+    final InputDocument doc;
+
+    Queued(int pos, InputDocument doc) {
+      this.pos = pos;
+      this.doc = doc;
+    }
+  }
+
+  /**
+   * The documents of a single add request.  A session must be closed.
+   */
+  public class Session {
+    private final AddUpdateCommand template;
+    private final SchemaField uniqueKeyField = schema.getUniqueKeyField();
+    // the documents read until there are more than a batch, or null once
+    // the workers are started
+    private ArrayList<InputDocument> first = new ArrayList<InputDocument>(batchSize);
+    private ArrayList<BlockingQueue<Queued>> queues;
+    private CountDownLatch done;
+    private volatile Throwable exception;
+    // the printable ids (null without a uniqueKey) of the documents added,
+    // by their position in the request, synchronized on the session
+    private final TreeMap<Integer,String> added = new TreeMap<Integer,String>();
+    private int numRead;
+    private boolean closed;
+
+    Session(AddUpdateCommand template) {
+      this.template = template;
+    }
+
+    // the workers are started for the first document after a batch
+    private void start() {
+      queues = new ArrayList<BlockingQueue<Queued>>(threads);
+      done = new CountDownLatch(threads);
+      for (int i=0; i<threads; i++) {
+        BlockingQueue<Queued> queue = new ArrayBlockingQueue<Queued>(queueSize);
+        queues.add(queue);
+        executor.execute(new Worker(queue));
+      }
+      for (InputDocument doc : first) queue(doc);
+      first = null;
+    }
+
+    /**
+     * Queues <code>doc</code> to be added, blocking while the queue of the
+     * worker it belongs to is full.
+     * @throws Exception the first exception thrown adding a document of this session
+     */
+    public void add(InputDocument doc) throws IOException {
+      rethrow();
+      if (first != null) {
+        first.add(doc);
+        if (first.size() > batchSize) start();
+      } else {
+        queue(doc);
+      }
+    }
+
+    private void queue(InputDocument doc) {
+      int worker;
+      String id = uniqueKeyField==null ? null : doc.getFieldValue(uniqueKeyField.getName());
+      if (id == null) {
+        worker = numRead % threads;
+      } else {
+        try {
+          id = uniqueKeyField.getType().toInternal(id);
+        } catch (RuntimeException e) {
+          // the worker building the document will report it
+        }
+        worker = (id.hashCode() & 0x7fffffff) % threads;
+      }
+      put(queues.get(worker), new Queued(numRead++, doc));
+    }
+
+    /**
+     * Waits for all queued documents to be added, or adds them if the
+     * workers weren't started.
+     * @throws Exception the first exception thrown adding a document of this session
+     */
+    public void finish() throws IOException {
+      if (first != null && !closed) {
+        closed = true;
+        List<Queued> batch = new ArrayList<Queued>(first.size());
+        for (InputDocument doc : first) {
+          batch.add(new Queued(numRead++, doc));
+        }
+        addBatch(new DocumentBuilder(schema), batch);
+        return;
+      }
+      close();
+      rethrow();
+    }
+
+    /**
+     * Stops accepting documents and waits for the workers to finish.
+     * Exceptions are not reported, see {@link #finish}.
+     */
+    public void close() {
+      if (closed) return;
+      closed = true;
+      if (queues == null) return;
+      for (BlockingQueue<Queued> queue : queues) {
+        put(queue, END);
+      }
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SolrException(500, "Interrupted waiting for documents to be added", e);
+      }
+    }
+
+    /**
+     * The printable ids of the documents that were added, in the order
+     * they were read; call once the session is closed.  Documents without
+     * an id are counted by {@link #getNumAdded} only.
+     */
+    public synchronized List<String> getAdded() {
+      List<String> ids = new ArrayList<String>(added.size());
+      for (String id : added.values()) {
+        if (id != null) ids.add(id);
+      }
+      return ids;
+    }
+
+    /** The number of documents that were added; call once the session is closed */
+    public synchronized int getNumAdded() {
+      return added.size();
+    }
+
+    /** true once the workers are started, rather than adding the documents inline; for tests */
+    boolean isStarted() {
+      return queues != null;
+    }
+
+    private AddUpdateCommand newCommand() {
+      AddUpdateCommand cmd = new AddUpdateCommand();
+      cmd.allowDups = template.allowDups;
+      cmd.overwritePending = template.overwritePending;
+      cmd.overwriteCommitted = template.overwriteCommitted;
+      return cmd;
+    }
+
+    // builds the documents of batch, and adds those built before any that
+    // fails to build with a single call
+    private void addBatch(DocumentBuilder builder, List<Queued> batch) throws IOException {
+      List<AddUpdateCommand> cmds = new ArrayList<AddUpdateCommand>(batch.size());
+      List<String> ids = new ArrayList<String>(batch.size());
+      RuntimeException buildError = null;
+      for (Queued queued : batch) {
+        AddUpdateCommand cmd = newCommand();
+        try {
+          cmd.doc = queued.doc.build(builder);
+          ids.add(uniqueKeyField==null ? null : schema.printableUniqueKey(cmd.doc));
+        } catch (RuntimeException e) {
+          buildError = e;
+          break;
+        }
+        cmds.add(cmd);
+      }
+
+      int n = cmds.size();
+      try {
+        if (n > 0) updateHandler.addDocs(cmds);
+      } finally {
+        // the commands left are the one that failed and those after it
+        synchronized (this) {
+          for (int i=0; i<n-cmds.size(); i++) {
+            added.put(batch.get(i).pos, ids.get(i));
+          }
+        }
+      }
+      if (buildError != null) throw buildError;
+    }
+
+    private void put(BlockingQueue<Queued> queue, Queued doc) {
+      try {
+        queue.put(doc);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SolrException(500, "Interrupted queueing document", e);
+      }
+    }
+
+    // the other workers add no more documents once this is set
+    private synchronized void fail(Throwable e) {
+      if (exception == null) exception = e;
+    }
+
+    private void rethrow() throws IOException {
+      Throwable e = exception;
+      if (e == null) return;
+      if (e instanceof IOException) throw (IOException)e;
+      if (e instanceof RuntimeException) throw (RuntimeException)e;
+      if (e instanceof Error) throw (Error)e;
+      throw new SolrException(500, "Error adding document", e);
+    }
+
+    private class Worker implements Runnable {
+      private final BlockingQueue<Queued> queue;
+
+      Worker(BlockingQueue<Queued> queue) {
+        this.queue = queue;
+      }
+
+      public void run() {
+        DocumentBuilder builder = new DocumentBuilder(schema);
+
+        ArrayList<Queued> batch = new ArrayList<Queued>(batchSize);
+        try {
+          for (;;) {
+            batch.add(queue.take());
+            queue.drainTo(batch, batchSize-1);
+            // END is the last document queued for a worker
+            boolean end = batch.get(batch.size()-1) == END;
+            if (end) batch.remove(batch.size()-1);
+            // once a document has failed, just drain the queue
+            if (exception == null && !batch.isEmpty()) {
+              try {
+                addBatch(builder, batch);
+              } catch (Throwable e) {
+                fail(e);
+              }
+            }
+            if (end) return;
+            batch.clear();
+          }
+        } catch (InterruptedException e) {
+          fail(e);
+        } finally {
+          done.countDown();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,414 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.core.SolrException;
+import org.apache.solr.schema.IndexSchema;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * Optimizes the main index in a background thread, while documents keep
+ * being added and deleted.
+ * <p>
+ * The optimize starts from a snapshot of the index taken at a commit, and
+ * merges it into a single segment in a separate directory, writing at a
+ * limited rate (see {@link ThrottledDirectory}).  Segments of the main
+ * index are not merged while it runs, so the documents of the snapshot
+ * keep their ids and the documents added since all come after them.
+ * Once the merge is done, the next commit installs it:
+ * </p>
+ * <ul>
+ * <li>deletes the documents deleted since the snapshot from the optimized index,</li>
+ * <li>adds the documents added since the snapshot to it, and</li>
+ * <li>replaces the main index directory with it.</li>
+ * </ul>
+ * <p>
+ * The methods used by the update handler must be called while no writer
+ * is open on the main index, which is the case while it commits.
+ * Replacing the index directory relies on open searchers keeping their
+ * files open after they are renamed and deleted, which Windows doesn't
+ * allow.  The main index is renamed to <code>index.old</code> before the
+ * optimized one takes its place, and {@link #recover} finishes or undoes
+ * that at startup if it was interrupted.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class BackgroundOptimizer implements Runnable {
+  private static Logger log = Logger.getLogger(BackgroundOptimizer.class.getName());
+
+  public static final String IDLE = "idle";
+  public static final String MERGING = "merging";
+  public static final String MERGED = "merged";
+
+  private final UpdateHandler updateHandler;
+  private final String indexDir;
+  private final IndexSchema schema;
+  private final SolrIndexConfig config;
+  private final double maxMBPerSec;
+
+  // the state only changes synchronized on this
+  private volatile String state = IDLE;
+  private boolean cancelled;
+  private IndexReader snapshot;
+  private File optimizedDir;
+  private volatile ThrottledDirectory out;
+  private volatile long totalBytes;
+  private volatile long installed;
+  private Thread thread;
+
+  // if set, the merge thread waits for it before merging; for tests
+  CountDownLatch mergeLatch;
+
+  /**
+   * @param maxMBPerSec the maximum rate the optimized index is written at, or 0 for no limit
+   */
+  public BackgroundOptimizer(UpdateHandler updateHandler, String indexDir, IndexSchema schema, SolrIndexConfig config, double maxMBPerSec) {
+    this.updateHandler = updateHandler;
+    this.indexDir = indexDir;
+    this.schema = schema;
+    this.config = config;
+    this.maxMBPerSec = maxMBPerSec;
+  }
+
+  /**
+   * Starts optimizing the index as it is now.
+   * @return false if an optimize is already running
+   */
+  public synchronized boolean start() throws IOException {
+    if (state != IDLE) return false;
+    optimizedDir = new File(indexDir + ".optimize");
+    deleteDir(optimizedDir);
+    snapshot = IndexReader.open(indexDir);
+    totalBytes = dirSize(new File(indexDir));
+    // a compound file is written in addition to the segment files
+    if (config.useCompoundFile) totalBytes *= 2;
+    out = new ThrottledDirectory(FSDirectory.getDirectory(optimizedDir, true), maxMBPerSec);
+    cancelled = false;
+    state = MERGING;
+
+    thread = new Thread(this, "BackgroundOptimizer");
+    thread.setDaemon(true);
+    thread.start();
+    log.info("background optimize of " + snapshot.numDocs() + " docs started");
+    return true;
+  }
+
+  /** Merges the snapshot, and then commits to install it */
+  public void run() {
+    try {
+      if (mergeLatch != null) mergeLatch.await();
+      SolrIndexWriter writer = new SolrIndexWriter("BackgroundOptimizer", out, true, schema, config);
+      try {
+        writer.addIndexes(new IndexReader[] {snapshot});
+      } finally {
+        writer.close();
+      }
+    } catch (Throwable e) {
+      synchronized (this) {
+        if (!cancelled) SolrException.log(log, "background optimize failed", e);
+        cleanup();
+      }
+      return;
+    }
+
+    synchronized (this) {
+      if (cancelled) {
+        cleanup();
+        return;
+      }
+      state = MERGED;
+    }
+    log.info("background optimize merged, " + out.getBytesWritten() + " bytes written");
+
+    try {
+      CommitUpdateCommand cmd = new CommitUpdateCommand(false);
+      cmd.waitSearcher = false;
+      updateHandler.commit(cmd);
+    } catch (Exception e) {
+      // the next commit will install it
+      SolrException.log(log, "error committing background optimize", e);
+    }
+  }
+
+  /**
+   * Stops a running optimize, or drops one that isn't installed yet.  The
+   * segments of the main index may be merged again once the merge thread
+   * has stopped.
+   */
+  public synchronized void cancel() {
+    if (state == IDLE) return;
+    log.info("cancelling background optimize");
+    cancelled = true;
+    if (state == MERGING) {
+      // the merge thread cleans up once its writes fail
+      out.cancel();
+    } else {
+      cleanup();
+    }
+  }
+
+  /**
+   * Replaces the main index by the optimized one, if it is ready, with the
+   * changes made to the main index since the optimize started.
+   * The index must not be changed while this runs.
+   * @return true if the index was replaced
+   */
+  public synchronized boolean install() throws IOException {
+    if (state != MERGED) return false;
+    try {
+      IndexReader current = IndexReader.open(indexDir);
+      try {
+        int base = snapshot.maxDoc();
+
+        // The optimized index has the docs of the snapshot that weren't
+        // deleted, in the same order.
+        IndexReader optimized = IndexReader.open(optimizedDir);
+        int deletes=0;
+        try {
+          int doc=0;
+          for (int i=0; i<base; i++) {
+            if (snapshot.isDeleted(i)) continue;
+            if (current.isDeleted(i)) {
+              optimized.deleteDocument(doc);
+              deletes++;
+            }
+            doc++;
+          }
+        } finally {
+          optimized.close();
+        }
+
+        // The docs added since all come after those of the snapshot, as
+        // no segments were merged.  They are merged on their own, and
+        // those segments added to the optimized index as they are.
+        int adds = current.maxDoc() - base;
+        if (adds > 0) {
+          File addedDir = new File(indexDir + ".optimize-added");
+          deleteDir(addedDir);
+          SolrIndexWriter writer = new SolrIndexWriter("BackgroundOptimizer", addedDir.getPath(), true, schema, config);
+          try {
+            writer.addIndexes(new IndexReader[] {new DocRangeReader(current, base)});
+          } finally {
+            writer.close();
+          }
+          writer = new SolrIndexWriter("BackgroundOptimizer", optimizedDir.getPath(), false, schema, config);
+          try {
+            writer.addIndexesNoOptimize(new Directory[] {FSDirectory.getDirectory(addedDir, false)});
+          } finally {
+            writer.close();
+          }
+          deleteDir(addedDir);
+        }
+        log.info("background optimize applied " + deletes + " deletes and " + adds + " adds since it started");
+      } finally {
+        current.close();
+      }
+
+      // the renamed files must be on disk before the old ones are deleted
+      syncDir(optimizedDir);
+      File index = new File(indexDir);
+      File old = new File(indexDir + ".old");
+      deleteDir(old);
+      if (!index.renameTo(old)) {
+        throw new IOException("can't rename " + index + " to " + old);
+      }
+      if (!optimizedDir.renameTo(index)) {
+        old.renameTo(index);
+        throw new IOException("can't rename " + optimizedDir + " to " + index);
+      }
+      // open searchers keep their files open
+      deleteDir(old);
+      installed++;
+      log.info("background optimize installed");
+      return true;
+    } finally {
+      cleanup();
+    }
+  }
+
+  /**
+   * Finishes or undoes replacing the main index directory, if a crash
+   * interrupted it.  Must be called before the index is opened.
+   */
+  public static void recover(String indexDir) {
+    File index = new File(indexDir);
+    File old = new File(indexDir + ".old");
+    if (!old.exists()) return;
+    if (index.exists()) {
+      // the optimized index is in place, and the old one partly deleted
+      deleteDir(old);
+    } else if (old.renameTo(index)) {
+      log.warning("restored " + index + " after an interrupted background optimize");
+    } else {
+      throw new SolrException(500, "can't rename " + old + " to " + index);
+    }
+  }
+
+  /** Waits for the merge thread, which commits the merged index, to finish; for tests */
+  void join() throws InterruptedException {
+    Thread t;
+    synchronized (this) {
+      t = thread;
+    }
+    if (t != null) t.join();
+  }
+
+  // call synchronized
+  private void cleanup() {
+    try {
+      if (snapshot != null) snapshot.close();
+    } catch (IOException e) {
+      SolrException.log(log, e);
+    }
+    snapshot = null;
+    if (optimizedDir != null) deleteDir(optimizedDir);
+    state = IDLE;
+  }
+
+  /** One of IDLE, MERGING or MERGED */
+  public String getState() {
+    return state;
+  }
+
+  /** Segments of the main index must not be merged unless this is false */
+  public boolean isRunning() {
+    return state != IDLE;
+  }
+
+  /** The estimated fraction of the merge that is done */
+  public double getProgress() {
+    if (state == MERGED) return 1.0;
+    ThrottledDirectory dir = out;
+    if (state != MERGING || dir == null || totalBytes == 0) return 0.0;
+    return Math.min(1.0, (double)dir.getBytesWritten() / totalBytes);
+  }
+
+  /** The number of optimizes installed */
+  public long getInstalled() {
+    return installed;
+  }
+
+  public double getMaxMBPerSec() {
+    return maxMBPerSec;
+  }
+
+  private static long dirSize(File dir) {
+    long size = 0;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) size += f.length();
+    }
+    return size;
+  }
+
+  private static void syncDir(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File f : files) {
+      RandomAccessFile file = new RandomAccessFile(f, "rw");
+      try {
+        file.getFD().sync();
+      } finally {
+        file.close();
+      }
+    }
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File f : files) f.delete();
+    dir.delete();
+  }
+
+
+  /** The documents of a reader from <code>minDoc</code> on */
+  static class DocRangeReader extends FilterIndexReader {
+    private final int minDoc;
+    private final int numDocs;
+
+    DocRangeReader(IndexReader in, int minDoc) {
+      super(in);
+      this.minDoc = minDoc;
+      int n = 0;
+      for (int i=minDoc; i<in.maxDoc(); i++) {
+        if (!in.isDeleted(i)) n++;
+      }
+      numDocs = n;
+    }
+
+    public int numDocs() {
+      return numDocs;
+    }
+
+    public boolean isDeleted(int n) {
+      return n < minDoc || in.isDeleted(n);
+    }
+
+    public boolean hasDeletions() {
+      return minDoc > 0 || in.hasDeletions();
+    }
+
+    public TermDocs termDocs() throws IOException {
+      return new RangeTermPositions(in.termPositions());
+    }
+
+    public TermPositions termPositions() throws IOException {
+      return new RangeTermPositions(in.termPositions());
+    }
+
+    private class RangeTermPositions extends FilterTermPositions {
+      RangeTermPositions(TermPositions in) {
+        super(in);
+      }
+
+      public boolean next() throws IOException {
+        while (in.next()) {
+          if (in.doc() >= minDoc) return true;
+        }
+        return false;
+      }
+
+      public boolean skipTo(int target) throws IOException {
+        return in.skipTo(Math.max(target, minDoc));
+      }
+
+      public int read(int[] docs, int[] freqs) throws IOException {
+        int n = 0;
+        while (n < docs.length && next()) {
+          docs[n] = in.doc();
+          freqs[n] = in.freq();
+          n++;
+        }
+        return n;
+      }
+    }
+  }
+}
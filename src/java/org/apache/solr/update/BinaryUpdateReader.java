@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.document.Document;
+import org.apache.solr.core.SolrException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Reads an add request in the binary update format, as written by
+ * {@link BinaryUpdateWriter}.  This avoids the character decoding and tag
+ * matching of the XML format: field values are length prefixed UTF-8, and
+ * each field name is sent once per request and then referred to by number.
+ * <p>
+ * The request starts with a magic number, a version and the add options,
+ * and is followed by any number of records, each starting with a tag byte:
+ * </p>
+ * <ul>
+ * <li><code>NAME</code>: a field name, numbered in the order they are sent</li>
+ * <li><code>DOC</code>: the document boost and number of field values,
+ *  then for each value its name number, boost and UTF-8 bytes</li>
+ * <li><code>END</code>: the end of the request</li>
+ * </ul>
+ * <p>
+ * Integers other than the magic number are written as variable length
+ * ints, 7 bits per byte as Lucene does.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class BinaryUpdateReader {
+  /** The Content-Type of binary update requests */
+  public static final String CONTENT_TYPE = "application/x-solr-update";
+
+  static final int MAGIC = 0x534f4c52;  // "SOLR"
+  static final int VERSION = 1;
+
+  // record tags
+  static final int END = 0;
+  static final int NAME = 1;
+  static final int DOC = 2;
+
+  /** The longest field name or value accepted, in bytes */
+  public static final int MAX_VALUE_BYTES = 16*1024*1024;
+
+  // add options
+  static final int ALLOW_DUPS = 1;
+  static final int OVERWRITE_PENDING = 2;
+  static final int OVERWRITE_COMMITTED = 4;
+
+  private final DataInputStream in;
+  private final int options;
+  private final ArrayList<String> names = new ArrayList<String>();
+  private byte[] buf = new byte[256];
+  private boolean ended;
+
+  public BinaryUpdateReader(InputStream in) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    try {
+      if (this.in.readInt() != MAGIC) {
+        throw new SolrException(400, "not a binary update request");
+      }
+      int version = readVInt();
+      if (version != VERSION) {
+        throw new SolrException(400, "unsupported binary update version " + version);
+      }
+      options = readVInt();
+    } catch (EOFException e) {
+      throw truncated(e);
+    }
+  }
+
+  /** Sets the overwrite options of <code>cmd</code> as given by the request */
+  public void getAddOptions(AddUpdateCommand cmd) {
+    cmd.allowDups = (options & ALLOW_DUPS) != 0;
+    cmd.overwritePending = (options & OVERWRITE_PENDING) != 0;
+    cmd.overwriteCommitted = (options & OVERWRITE_COMMITTED) != 0;
+  }
+
+  /**
+   * Reads the next document, for building later.
+   * @return the document, or null at the end of the request
+   */
+  public InputDocument readDoc() throws IOException {
+    try {
+      if (!nextDoc()) return null;
+      InputDocument doc = new InputDocument();
+      doc.setBoost(in.readFloat());
+      int numFields = readVInt();
+      for (int i=0; i<numFields; i++) {
+        String name = readName();
+        float boost = in.readFloat();
+        doc.addField(name, readValue(), boost);
+      }
+      return doc;
+    } catch (EOFException e) {
+      throw truncated(e);
+    }
+  }
+
+  /**
+   * Reads the next document straight into <code>builder</code>.
+   * @return the built document, or null at the end of the request
+   */
+  public Document readDoc(DocumentBuilder builder) throws IOException {
+    try {
+      if (!nextDoc()) return null;
+      builder.startDoc();
+      float docBoost = in.readFloat();
+      if (docBoost != 1.0f) builder.setBoost(docBoost);
+      int numFields = readVInt();
+      for (int i=0; i<numFields; i++) {
+        String name = readName();
+        float boost = in.readFloat();
+        if (boost != 1.0f) {
+          builder.addField(name, readValue(), boost);
+        } else {
+          builder.addField(name, readValue());
+        }
+      }
+      builder.endDoc();
+      return builder.getDoc();
+    } catch (EOFException e) {
+      throw truncated(e);
+    }
+  }
+
+  // the request ended in the middle of a record, which is the client's error
+  private static SolrException truncated(EOFException e) {
+    return new SolrException(400, "truncated binary update request", e);
+  }
+
+  /** Reads up to the next document, returning false at the end of the request */
+  private boolean nextDoc() throws IOException {
+    while (!ended) {
+      int tag = in.read();
+      switch (tag) {
+        case DOC:
+          return true;
+        case NAME:
+          names.add(readValue());
+          break;
+        case END:
+          ended = true;
+          break;
+        case -1:
+          throw new SolrException(400, "binary update request ended without END");
+        default:
+          throw new SolrException(400, "unknown binary update record " + tag);
+      }
+    }
+    return false;
+  }
+
+  private String readName() throws IOException {
+    int idx = readVInt();
+    if (idx < 0 || idx >= names.size()) {
+      throw new SolrException(400, "undefined field name number " + idx);
+    }
+    return names.get(idx);
+  }
+
+  private String readValue() throws IOException {
+    int len = readVInt();
+    // the length is checked before allocating the buffer for it
+    if (len < 0 || len > MAX_VALUE_BYTES) {
+      throw new SolrException(400, "binary update value of " + len + " bytes, the most is " + MAX_VALUE_BYTES);
+    }
+    if (len > buf.length) buf = new byte[Math.max(len, buf.length*2)];
+    in.readFully(buf, 0, len);
+    return new String(buf, 0, len, "UTF-8");
+  }
+
+  private int readVInt() throws IOException {
+    int b = in.readByte();
+    int i = b & 0x7f;
+    for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+      b = in.readByte();
+      i |= (b & 0x7f) << shift;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Writes an add request in the binary update format read by
+ * {@link BinaryUpdateReader}, for clients posting documents with
+ * Content-Type {@link BinaryUpdateReader#CONTENT_TYPE}.
+ * <pre>
+ *   BinaryUpdateWriter writer = new BinaryUpdateWriter(out, false);
+ *   InputDocument doc = new InputDocument();
+ *   doc.addField("id", "1", 1.0f);
+ *   writer.addDoc(doc);
+ *   writer.close();
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class BinaryUpdateWriter {
+  private final DataOutputStream out;
+  private final HashMap<String,Integer> names = new HashMap<String,Integer>();
+
+  /** Starts a request with the default overwrite options for <code>allowDups</code> */
+  public BinaryUpdateWriter(OutputStream out, boolean allowDups) throws IOException {
+    this(out, allowDups, !allowDups, !allowDups);
+  }
+
+  public BinaryUpdateWriter(OutputStream out, boolean allowDups, boolean overwritePending, boolean overwriteCommitted) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.writeInt(BinaryUpdateReader.MAGIC);
+    writeVInt(BinaryUpdateReader.VERSION);
+    writeVInt((allowDups ? BinaryUpdateReader.ALLOW_DUPS : 0)
+            | (overwritePending ? BinaryUpdateReader.OVERWRITE_PENDING : 0)
+            | (overwriteCommitted ? BinaryUpdateReader.OVERWRITE_COMMITTED : 0));
+  }
+
+  public void addDoc(InputDocument doc) throws IOException {
+    int numFields = doc.size();
+    // names must be sent before the document that uses them
+    for (int i=0; i<numFields; i++) {
+      String name = doc.getName(i);
+      if (!names.containsKey(name)) {
+        names.put(name, names.size());
+        out.write(BinaryUpdateReader.NAME);
+        writeValue(name);
+      }
+    }
+
+    out.write(BinaryUpdateReader.DOC);
+    out.writeFloat(doc.getBoost());
+    writeVInt(numFields);
+    for (int i=0; i<numFields; i++) {
+      writeVInt(names.get(doc.getName(i)));
+      out.writeFloat(doc.getBoost(i));
+      writeValue(doc.getValue(i));
+    }
+  }
+
+  /** Ends the request and closes the underlying stream */
+  public void close() throws IOException {
+    out.write(BinaryUpdateReader.END);
+    out.close();
+  }
+
+  private void writeValue(String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    writeVInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private void writeVInt(int i) throws IOException {
+    while ((i & ~0x7f) != 0) {
+      out.writeByte((i & 0x7f) | 0x80);
+      i >>>= 7;
+    }
+    out.writeByte(i);
+  }
+}
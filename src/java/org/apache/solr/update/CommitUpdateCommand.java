@@ -24,6 +24,8 @@ public class CommitUpdateCommand extends UpdateCommand {
   public boolean optimize;
   public boolean waitFlush;
   public boolean waitSearcher=true;
+  // optimize in the background rather than before committing
+  public boolean background;
 
   public CommitUpdateCommand(boolean optimize) {
     super("commit");
@@ -33,6 +35,7 @@ public class CommitUpdateCommand extends UpdateCommand {
     return "commit(optimize="+optimize
             +",waitFlush="+waitFlush
             +",waitSearcher="+waitSearcher
+            +(background ? ",background=true" : "")
             +')';
   }
 }
@@ -25,25 +25,39 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.Query;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.logging.Level;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
 
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.QueryParsing;
+import org.apache.solr.util.BloomFilter;
 import org.apache.solr.util.NamedList;
+import org.apache.solr.util.RefCounted;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrException;
@@ -106,13 +120,27 @@ import org.apache.solr.core.SolrException;
         <TD>deleteByQuery</TD>
         <TD>true</TD>
         <TD>true</TD>
-        <TD>very slow*</TD>
+        <TD>fast*</TD>
   </TR>
 </TABLE>
 
-  <p>* deleteByQuery causes a commit to happen (close current index writer, open new index reader)
-  before it can be processed.  If deleteByQuery functionality is needed, it's best if they can
-  be batched and executed together so they may share the same index reader.
+  <p>* deleteByQuery commands are queued, and executed together at the next commit
+  using the same index reader as deletes by id.  Each only deletes documents added before it.
+
+  <p>Adds are not blocked while a commit flushes the index and opens the new searcher:
+  documents added during a commit are buffered in memory (up to <code>commitBuffer/@maxDocs</code>,
+  10000 by default) and added to the index right after it, as part of the next commit.
+
+  <p><code>&lt;optimize background="true"/&gt;</code> commits and then optimizes in a
+  background thread, see {@link BackgroundOptimizer}.  Segments aren't merged while it runs.
+
+  <p>Large segment merges may be deferred while the query load is high, see {@link MergeScheduler}.
+
+  <p>With <code>&lt;realtime/&gt;</code> configured, queries may ask to also search the documents
+  added and deleted since the last commit, see {@link RealtimeIndex}.
+
+  <p>With <code>&lt;updateLog/&gt;</code> configured, updates are logged before they return, and
+  the updates that weren't committed are replayed on startup, see {@link UpdateLog}.
 
  *
  * @author yonik
@@ -131,21 +159,78 @@ public class DirectUpdateHandler2 extends UpdateHandler {
   AtomicLong deleteByQueryCommandsCumulative= new AtomicLong();
   AtomicLong commitCommands= new AtomicLong();
   AtomicLong optimizeCommands= new AtomicLong();
+  AtomicLong autoCommits= new AtomicLong();
+  AtomicLong coalescedCommits= new AtomicLong();
+  AtomicLong bufferedAdds= new AtomicLong();
   AtomicLong numDocsDeleted= new AtomicLong();
   AtomicLong numDocsPending= new AtomicLong();
+  AtomicLong numDeleteQueriesPending= new AtomicLong();
   AtomicLong numErrors = new AtomicLong();
   AtomicLong numErrorsCumulative = new AtomicLong();
+  AtomicLong idFilterSkips = new AtomicLong();
+  AtomicLong idFilterFalsePositives = new AtomicLong();
+  AtomicLong updateLogReplayed = new AtomicLong();
 
   // tracks when auto-commit should occur
   protected final CommitTracker tracker;
+  protected final BackgroundOptimizer optimizer;
+  // defers large merges under query load, or null
+  protected final MergeScheduler mergeScheduler;
+  // logs the updates since the last commit, or null
+  protected final UpdateLog ulog;
+  // the docs added since the last commit, for realtime searchers, or null
+  protected final RealtimeIndex realtime;
+  // true while the constructor replays the log, so that the replayed
+  // updates aren't logged again (the old files are kept until the next
+  // commit) and don't trigger commits before the core is ready.
+  protected volatile boolean replaying;
 
   // The key is the id, the value (Integer) is the number
-  // of docs to save (delete all except the last "n" added)
-  protected final Map<String,Integer> pset;
+  // of docs to save (delete all except the last "n" added).
+  // The ids are split over several maps by hash, each protected by
+  // synchronizing on the map itself, so that adds and deletes of
+  // different ids don't contend with each other.  Use pset(id) to get the
+  // map for an id.  The maps are merged at commit.  A commit replaces
+  // the array (with iwCommit held) so changes made while it runs are kept
+  // for the next commit.
+  protected volatile Map<String,Integer>[] pset;
+
+  // the number of maps in pset, a power of two
+  protected final static int PSET_STRIPES = 16;
+
+  // deleteByQuery commands to execute at the next commit, in order.
+  // Protected by synchronizing on the list, and only added to with
+  // iwCommit held so that writerDocs is accurate.
+  protected final List<PendingDeleteQuery> pendingDeleteQueries = new ArrayList<PendingDeleteQuery>();
+
+  // the number of docs added since the last commit took the pending
+  // changes.  Those docs are the last ones in the index when it commits.
+  protected final AtomicLong writerDocs = new AtomicLong();
+
+  // While a commit flushes the changes made before it started, adds are
+  // buffered here rather than blocking, and then replayed into the next
+  // writer.  bufferAdds is only changed with iwCommit held, the buffer is
+  // protected by synchronizing on it.
+  protected final List<Document> commitBuffer = new ArrayList<Document>();
+  protected volatile boolean bufferAdds;
+  // adds block while this many docs are buffered
+  protected final int maxCommitBufferDocs;
 
   // commonly used constants for the count in the pset
   protected final static Integer ZERO = 0;
   protected final static Integer ONE = 1;
+  // marks an id known to be new since the last commit, with no documents
+  // to delete at commit (so its terms need not be looked up at all)
+  protected final static Integer NEW = -1;
+
+  // A superset of the uniqueKey values in the index, including those
+  // added since the last commit, or null if disabled.  An id that isn't
+  // in the filter has never been indexed, and needs no deletions.
+  protected volatile BloomFilter idFilter;
+  protected final int idFilterBitsPerId;
+  // the filter being rebuilt by a commit, which also gets all ids added
+  // while the commit runs, or null
+  protected volatile BloomFilter nextIdFilter;
 
   // iwCommit protects internal data and open/close of the IndexWriter and
   // is a mutex. Any use of the index writer should be protected by iwAccess, 
@@ -153,34 +238,261 @@ public class DirectUpdateHandler2 extends UpdateHandler {
   // mutually-exclusive with the iwCommit lock.
   protected final Lock iwAccess, iwCommit;
 
-  protected IndexWriter writer;
-  protected SolrIndexSearcher searcher;
+  // Only changed with iwCommit held, by a commit while adds are buffered,
+  // or with iwAccess held and synchronized on this (and then only to close
+  // the searcher and open the writer), so adds may check them without
+  // synchronization.
+  protected volatile IndexWriter writer;
+  protected volatile SolrIndexSearcher searcher;
+
+  // Group commit state, protected by commitLock: the number of commits
+  // started and finished, whether one is running, and the future for the
+  // searcher opened by the last one.
+  protected final Object commitLock = new Object();
+  protected long commitsStarted;
+  protected long commitsFinished;
+  protected boolean commitRunning;
+  protected Future lastCommitSearcher;
 
   public DirectUpdateHandler2(SolrCore core) throws IOException {
     super(core);
     /* A TreeMap is used to maintain the natural ordering of the document ids,
        which makes commits more efficient
      */
-    pset = new TreeMap<String,Integer>(); 
+    pset = newPset();
 
     ReadWriteLock rwl = new ReentrantReadWriteLock();
     iwAccess = rwl.readLock();
     iwCommit = rwl.writeLock();
 
     tracker = new CommitTracker();
+    optimizer = new BackgroundOptimizer(this, core.getIndexDir(), schema, SolrCore.mainIndexConfig,
+        SolrConfig.config.getFloat("updateHandler/backgroundOptimize/@maxMBPerSec", 0));
+
+    float maxQueriesPerSec = SolrConfig.config.getFloat("updateHandler/mergeScheduler/@maxQueriesPerSec", 0);
+    if (maxQueriesPerSec > 0) {
+      SolrIndexConfig config = SolrCore.mainIndexConfig;
+      int maxMergeDocs = config.maxMergeDocs != -1 ? config.maxMergeDocs : IndexWriter.DEFAULT_MAX_MERGE_DOCS;
+      int maxBufferedDocs = config.maxBufferedDocs != -1 ? config.maxBufferedDocs : IndexWriter.DEFAULT_MAX_BUFFERED_DOCS;
+      int deferMergeDocs = SolrConfig.config.getInt("updateHandler/mergeScheduler/@deferMergeDocs", 10000);
+      // the smallest merges are of maxBufferedDocs docs, so a lower limit
+      // would stop all merges rather than only the large ones
+      if (deferMergeDocs < maxBufferedDocs) {
+        throw new SolrException(500, "mergeScheduler deferMergeDocs=" + deferMergeDocs
+            + " must be at least maxBufferedDocs=" + maxBufferedDocs);
+      }
+      mergeScheduler = new MergeScheduler(this, core.getIndexDir(), maxMergeDocs,
+          maxQueriesPerSec, deferMergeDocs,
+          SolrConfig.config.getInt("updateHandler/mergeScheduler/@maxSegments", 100),
+          SolrConfig.config.getInt("updateHandler/mergeScheduler/@interval", 1000),
+          SolrConfig.config.getInt("updateHandler/mergeScheduler/@quietInterval", 10000));
+    } else {
+      mergeScheduler = null;
+    }
+
+    maxCommitBufferDocs = SolrConfig.config.getInt("updateHandler/commitBuffer/@maxDocs", 10000);
+
+    if (SolrConfig.config.getNode("updateHandler/realtime", false) != null) {
+      if (idField == null) {
+        throw new SolrException(500, "realtime search requires a uniqueKey field");
+      }
+      realtime = new RealtimeIndex(schema, SolrCore.mainIndexConfig,
+              SolrConfig.config.getInt("updateHandler/realtime/@interval", 0));
+    } else {
+      realtime = null;
+    }
+
+    idFilterBitsPerId = SolrConfig.config.getInt("updateHandler/idFilter/@bitsPerId", 10);
+    if (idFilterBitsPerId > 0 && idField != null) {
+      iwCommit.lock();
+      try {
+        openSearcher();
+        // every id term has a doc, so maxDoc bounds their number, and the
+        // filter is built in a single pass over them
+        IndexReader reader = searcher.getReader();
+        BloomFilter filter = new BloomFilter(Math.max(reader.maxDoc()*2, 10000), idFilterBitsPerId);
+        int numIds = addIdTerms(filter, reader);
+        idFilter = filter;
+        closeSearcher();
+        log.info("DirectUpdateHandler2 built id filter for " + numIds + " ids");
+      } finally {
+        iwCommit.unlock();
+      }
+    }
+
+    if (SolrConfig.config.getNode("updateHandler/updateLog", false) != null) {
+      String dir = SolrConfig.config.get("updateHandler/updateLog/@dir",
+          new File(core.getIndexDir()).getParent() + "/tlog");
+      ulog = new UpdateLog(new File(dir),
+          UpdateLog.parseSyncLevel(SolrConfig.config.get("updateHandler/updateLog/@sync", "flush")));
+      replayUpdateLog();
+    } else {
+      ulog = null;
+    }
   }
 
-  // must only be called when iwCommit lock held
+  //
+  // Replays the updates of the logs left by the last run, which weren't
+  // committed.  They are committed by the next commit.
+  //
+  protected void replayUpdateLog() throws IOException {
+    File[] logs = ulog.getOldLogs();
+    if (logs.length == 0) return;
+    replaying = true;
+    try {
+      UpdateLog.Replayer replayer = new UpdateLog.Replayer() {
+        public void add(AddUpdateCommand cmd) throws IOException {
+          // adds are logged before they are done, so a doc whose add failed
+          // is logged too, and is expected to fail again
+          try {
+            addDoc(cmd);
+          } catch (RuntimeException e) {
+            log.warning("skipping a logged add that failed: " + e);
+          }
+        }
+        public void delete(String indexedId) throws IOException {
+          iwAccess.lock();
+          try {
+            deletePending(indexedId);
+          } finally {
+            iwAccess.unlock();
+          }
+        }
+        public void deleteByQuery(String query) throws IOException {
+          DeleteUpdateCommand cmd = new DeleteUpdateCommand();
+          cmd.query = query;
+          cmd.fromPending = true;
+          cmd.fromCommitted = true;
+          DirectUpdateHandler2.this.deleteByQuery(cmd);
+        }
+      };
+      for (File file : logs) {
+        int n = UpdateLog.replay(file, replayer);
+        updateLogReplayed.addAndGet(n);
+        log.info("DirectUpdateHandler2 replayed " + n + " updates from " + file);
+      }
+    } finally {
+      replaying = false;
+    }
+  }
+
+  // segment files already written to disk; they don't change once written
+  private final HashSet<String> syncedFiles = new HashSet<String>();
+
+  //
+  // Writes the index files to disk before the logs of the updates in them
+  // are deleted, since closing the writer doesn't.  Only needed if the log
+  // is synced itself: otherwise both are lost the same way.
+  // Call with the writer closed.
+  //
+  protected void syncIndex() throws IOException {
+    if (ulog.getSyncLevel() != UpdateLog.SYNC_FSYNC) return;
+    File dir = new File(core.getIndexDir());
+    String[] names = dir.list();
+    if (names == null) return;
+    synchronized (syncedFiles) {
+      HashSet<String> current = new HashSet<String>();
+      for (String name : names) {
+        // segments, deletable and the .del files are rewritten
+        boolean writeOnce = name.startsWith("_") && !name.endsWith(".del");
+        if (writeOnce && syncedFiles.contains(name)) {
+          current.add(name);
+          continue;
+        }
+        RandomAccessFile file;
+        try {
+          file = new RandomAccessFile(new File(dir, name), "rw");
+        } catch (FileNotFoundException e) {
+          continue;  // deleted by a merge meanwhile
+        }
+        try {
+          file.getFD().sync();
+        } finally {
+          file.close();
+        }
+        if (writeOnce) current.add(name);
+      }
+      syncedFiles.retainAll(current);
+      syncedFiles.addAll(current);
+    }
+  }
+
+  protected Map<String,Integer>[] newPset() {
+    Map<String,Integer>[] maps = new Map[PSET_STRIPES];
+    for (int i=0; i<maps.length; i++) {
+      maps[i] = new TreeMap<String,Integer>();
+    }
+    return maps;
+  }
+
+  //
+  // Adds the uniqueKey terms in the index to the filter, and returns the
+  // number of terms.
+  //
+  protected int addIdTerms(BloomFilter filter, IndexReader reader) throws IOException {
+    String fieldname = idField.getName();
+    int numIds = 0;
+    TermEnum terms = reader.terms(new Term(fieldname,""));
+    try {
+      do {
+        Term t = terms.term();
+        if (t==null || !fieldname.equals(t.field())) break;
+        filter.add(t.text());
+        numIds++;
+      } while (terms.next());
+    } finally {
+      terms.close();
+    }
+    return numIds;
+  }
+
+  //
+  // Records that a document with the indexed id is being added, and
+  // returns true if the id has definitely never been indexed.
+  // call with iwAccess held and synchronized on the pset map for the id
+  //
+  protected boolean addToIdFilter(String indexedId) {
+    BloomFilter next = nextIdFilter;
+    if (next != null) next.add(indexedId);
+    BloomFilter filter = idFilter;
+    if (filter==null) return false;
+    if (filter.mightContain(indexedId)) return false;
+    filter.add(indexedId);
+    return true;
+  }
+
+  /** Returns the map in pset for <code>id</code>, synchronize on it before use */
+  protected final Map<String,Integer> pset(String id) {
+    return pset[id.hashCode() & (PSET_STRIPES-1)];
+  }
+
+  /** Returns the number of ids in pset, not synchronized */
+  protected int psetSize() {
+    int size=0;
+    for (Map<String,Integer> ids : pset) size += ids.size();
+    return size;
+  }
+
+  // called under synchronized(this) with only iwAccess held, by the first
+  // add after a commit; otherwise with iwCommit held, or while a commit
+  // buffers adds
   protected void openWriter() throws IOException {
     if (writer==null) {
       writer = createMainIndexWriter("DirectUpdateHandler2");
+      // the background optimize relies on doc ids not changing
+      if (optimizer.isRunning()) {
+        writer.setMaxMergeDocs(0);
+      } else if (mergeScheduler != null) {
+        mergeScheduler.setWriter(writer);
+      }
     }
   }
 
-  // must only be called when iwCommit lock held
+  // called with iwCommit held, or while a commit buffers adds, so no add
+  // is using the writer
   protected void closeWriter() throws IOException {
     try {
-      numDocsPending.set(0);
+      if (mergeScheduler != null) mergeScheduler.setWriter(null);
       if (writer!=null) writer.close();
     } finally {
       // if an exception causes the writelock to not be
@@ -206,18 +518,43 @@ public class DirectUpdateHandler2 extends UpdateHandler {
   }
 
   public int addDoc(AddUpdateCommand cmd) throws IOException {
-    addCommands.incrementAndGet();
-    addCommandsCumulative.incrementAndGet();
+    List<AddUpdateCommand> cmds = new ArrayList<AddUpdateCommand>(1);
+    cmds.add(cmd);
+    return addBatch(cmds);
+  }
+
+  /**
+   * Adds the documents of <code>cmds</code> under a single acquisition of
+   * iwAccess, syncing the update log and checking for an autocommit once
+   * for all of them.
+   */
+  public void addDocs(List<AddUpdateCommand> cmds) throws IOException {
+    if (!cmds.isEmpty()) addBatch(cmds);
+  }
+
+  // adds the documents of cmds, removing each command once it is done;
+  // returns the result of the last one
+  protected int addBatch(List<AddUpdateCommand> cmds) throws IOException {
+    addCommands.addAndGet(cmds.size());
+    addCommandsCumulative.addAndGet(cmds.size());
     int rc=-1;
+    int added=0;
+    boolean buffered=false;
+    long logPos=0;
+    boolean failed=true;
 
+    waitForCommitBuffer();
     iwAccess.lock();
     try {
-
-      // We can't using iwCommit to protect internal data here, since it would
-      // block other addDoc calls.  Hence, we synchronize to protect internal
-      // state.  This is safe as all other state-changing operations are
-      // protected with iwCommit (which iwAccess excludes from this block).
-      synchronized (this) {
+      while (!cmds.isEmpty()) {
+        AddUpdateCommand cmd = cmds.get(0);
+        rc = -1;
+
+        // We can't use iwCommit to protect internal data here, since it would
+        // block other addDoc calls.  The pending set is protected by the lock
+        // of the map for the id, so adds of different ids don't block each
+        // other.  This is safe as all other state-changing operations are
+        // protected with iwCommit (which iwAccess excludes from this block).
         if (!cmd.allowDups && !cmd.overwritePending && !cmd.overwriteCommitted) {
           throw new SolrException(400,"unsupported param combo:" + cmd);
           // this would need a reader to implement (to be able to check committed
@@ -225,7 +562,7 @@ public class DirectUpdateHandler2 extends UpdateHandler {
           // return addNoOverwriteNoDups(cmd);
         } else if (!cmd.allowDups && !cmd.overwritePending && cmd.overwriteCommitted) {
           rc = addConditionally(cmd);
-      } else if (!cmd.allowDups && cmd.overwritePending && !cmd.overwriteCommitted) {
+        } else if (!cmd.allowDups && cmd.overwritePending && !cmd.overwriteCommitted) {
           throw new SolrException(400,"unsupported param combo:" + cmd);
         } else if (!cmd.allowDups && cmd.overwritePending && cmd.overwriteCommitted) {
           rc = overwriteBoth(cmd);
@@ -240,38 +577,91 @@ public class DirectUpdateHandler2 extends UpdateHandler {
         }
         if (rc == -1)
           throw new SolrException(400,"unsupported param combo:" + cmd);
-        
-        if (rc == 1) {
-          // adding document -- prep writer
-          closeSearcher();
-          openWriter();
-          tracker.increment(1);          
+
+        if (rc != 1) {
+          // not added, go on with the next one
+          numErrors.incrementAndGet();
+          numErrorsCumulative.incrementAndGet();
+          cmds.remove(0);
+          continue;
+        }
+
+        // Logged before the doc is added, so that a doc is never added
+        // without being logged.  This is done with iwAccess held, so the
+        // log rolls over exactly where a commit takes the pending changes.
+        if (ulog != null && !replaying) logPos = ulog.add(cmd);
+
+        tracker.increment(1);
+
+        if (bufferAdds) {
+          // a commit is using the writer, the doc is added after it
+          synchronized (commitBuffer) {
+            commitBuffer.add(cmd.doc);
+          }
+          buffered = true;
         } else {
-          // exit prematurely
-          return rc;
+          // adding document -- prep writer.  Only the first add after a commit
+          // needs to synchronize: while iwAccess is held the searcher can only
+          // be closed and the writer only opened.
+          if (searcher!=null || writer==null) {
+            synchronized (this) {
+              closeSearcher();
+              openWriter();
+            }
+          }
+
+          // this is where most of the time should be spent, and it isn't
+          // synchronized, so documents are analyzed concurrently
+          writer.addDocument(cmd.doc);
         }
-      } // end synchronized block
+        writerDocs.incrementAndGet();
+        if (realtime != null) realtime.add(cmd.indexedId, cmd.doc);
+        if (mergeScheduler != null) mergeScheduler.added();
 
-      // this is the only unsynchronized code in the iwAccess block, which
-      // should account for most of the time
-      assert(rc == 1);
-      writer.addDocument(cmd.doc);
-      
+        numDocsPending.incrementAndGet();
+        added++;
+        cmds.remove(0);
+      }
+      failed = false;
     } finally {
       iwAccess.unlock();
-      if (rc!=1) {
+      if (failed) {
         numErrors.incrementAndGet();
         numErrorsCumulative.incrementAndGet();
-      } else {
-        numDocsPending.incrementAndGet();
       }
+      // outside of iwAccess, so other adds share the sync.  This is also
+      // done if a later command failed, as the ones before it were added.
+      if (logPos > 0) ulog.sync(logPos);
     }
 
+    if (added == 0 || buffered || replaying) return rc;
+
     // might need to commit (wait for searcher if so)
     checkCommit(true);
     return rc;
   }
 
+  // blocks while a commit is running and its buffer of adds is full
+  protected void waitForCommitBuffer() {
+    if (!bufferAdds) return;
+    synchronized (commitLock) {
+      while (bufferAdds && commitBufferSize() >= maxCommitBufferDocs) {
+        try {
+          commitLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SolrException(500,"interrupted waiting for commit", e);
+        }
+      }
+    }
+  }
+
+  protected int commitBufferSize() {
+    synchronized (commitBuffer) {
+      return commitBuffer.size();
+    }
+  }
+
 
   // could return the number of docs deleted, but is that always possible to know???
   public void delete(DeleteUpdateCommand cmd) throws IOException {
@@ -289,11 +679,58 @@ public class DirectUpdateHandler2 extends UpdateHandler {
       throw new SolrException(400,"operation not supported" + cmd);
     }
 
-    iwCommit.lock();
+    String indexedId = idFieldType.toInternal(cmd.id);
+    long logPos=0;
+    iwAccess.lock();
     try {
-      pset.put(idFieldType.toInternal(cmd.id), ZERO);
+      deletePending(indexedId);
+      if (ulog != null) logPos = ulog.delete(indexedId);
     } finally { 
-      iwCommit.unlock(); 
+      iwAccess.unlock(); 
+    }
+    if (logPos > 0) ulog.sync(logPos);
+  }
+
+  public void delete(Collection<String> ids) throws IOException {
+    deleteByIdCommands.addAndGet(ids.size());
+    deleteByIdCommandsCumulative.addAndGet(ids.size());
+
+    // convert all ids first, so that none are deleted if one is invalid
+    String[] indexedIds = new String[ids.size()];
+    int i=0;
+    for (String id : ids) {
+      indexedIds[i++] = idFieldType.toInternal(id);
+    }
+
+    // the documents are deleted at commit, when all pending ids are
+    // looked up in order
+    long logPos=0;
+    iwAccess.lock();
+    try {
+      for (String indexedId : indexedIds) {
+        deletePending(indexedId);
+        if (ulog != null) logPos = ulog.delete(indexedId);
+      }
+    } finally {
+      iwAccess.unlock();
+    }
+    if (logPos > 0) ulog.sync(logPos);
+  }
+
+  // marks all docs with the indexed id for deletion at commit.
+  // call with iwAccess held
+  protected void deletePending(String indexedId) {
+    Map<String,Integer> ids = pset(indexedId);
+    synchronized (ids) {
+      BloomFilter filter = idFilter;
+      if (filter != null && !filter.mightContain(indexedId)) {
+        // never indexed, so there is nothing to delete
+        idFilterSkips.incrementAndGet();
+      } else {
+        ids.put(indexedId, ZERO);
+        tracker.didChange();
+        if (realtime != null) realtime.changed(indexedId);
+      }
     }
   }
 
@@ -315,32 +752,25 @@ public class DirectUpdateHandler2 extends UpdateHandler {
      }
 
     boolean madeIt=false;
+    long logPos=0;
     try {
      Query q = QueryParsing.parseQuery(cmd.query, schema);
 
-     int totDeleted = 0;
+     // Record how many docs have been added so far, so that docs added
+     // after this command aren't deleted by it.  iwCommit waits for adds
+     // in progress, but is only held briefly.
      iwCommit.lock();
      try {
-       // we need to do much of the commit logic (mainly doing queued
-       // deletes since deleteByQuery can throw off our counts.
-       doDeletions();
-       
-       closeWriter();
-       openSearcher();
-
-       // if we want to count the number of docs that were deleted, then
-       // we need a new instance of the DeleteHitCollector
-       final DeleteHitCollector deleter = new DeleteHitCollector(searcher);
-       searcher.search(q, null, deleter);
-       totDeleted = deleter.deleted;
+       synchronized (pendingDeleteQueries) {
+         pendingDeleteQueries.add(new PendingDeleteQuery(q, writerDocs.get()));
+       }
+       numDeleteQueriesPending.incrementAndGet();
+       tracker.didChange();
+       if (ulog != null && !replaying) logPos = ulog.deleteByQuery(cmd.query);
      } finally {
        iwCommit.unlock();
      }
-
-     if (SolrCore.log.isLoggable(Level.FINE)) {
-       SolrCore.log.fine("docs deleted by query:" + totDeleted);
-     }
-     numDocsDeleted.getAndAdd(totDeleted);
+     if (logPos > 0) ulog.sync(logPos);
      madeIt=true;
     } finally {
       if (!madeIt) {
@@ -350,24 +780,41 @@ public class DirectUpdateHandler2 extends UpdateHandler {
     }
    }
 
+  /** A queued deleteByQuery command */
+  protected static class PendingDeleteQuery {
+    final Query query;
+    // the number of docs added since the last commit before the command
+    final long writerDocs;
+
+    PendingDeleteQuery(Query query, long writerDocs) {
+      this.query = query;
+      this.writerDocs = writerDocs;
+    }
+  }
+
 
   ///////////////////////////////////////////////////////////////////
   /////////////////// helper method for each add type ///////////////
   ///////////////////////////////////////////////////////////////////
 
   // methods return 1 if the document is to be added; 0 otherwise.
-  // methods must be called in synchronized context
+  // methods must be called with iwAccess held, and synchronize on the
+  // pset map for the id of the document themselves
 
   protected int addConditionally(AddUpdateCommand cmd) throws IOException {
     if (cmd.indexedId ==null) {
       cmd.indexedId =getIndexedId(cmd.doc);
     }
-    Integer saveCount = pset.get(cmd.indexedId);
-    if (saveCount!=null && saveCount!=0) {
-      // a doc with this id already exists in the pending set
-      return 0;
+    Map<String,Integer> ids = pset(cmd.indexedId);
+    synchronized (ids) {
+      Integer saveCount = ids.get(cmd.indexedId);
+      if (saveCount!=null && saveCount!=0) {
+        // a doc with this id already exists in the pending set
+        return 0;
+      }
+      boolean isNew = addToIdFilter(cmd.indexedId) && saveCount==null;
+      ids.put(cmd.indexedId, isNew ? NEW : ONE);
     }
-    pset.put(cmd.indexedId, ONE);
     return 1;
   }
 
@@ -377,7 +824,11 @@ public class DirectUpdateHandler2 extends UpdateHandler {
     if (cmd.indexedId ==null) {
       cmd.indexedId =getIndexedId(cmd.doc);
     }
-    pset.put(cmd.indexedId, ONE);
+    Map<String,Integer> ids = pset(cmd.indexedId);
+    synchronized (ids) {
+      boolean isNew = addToIdFilter(cmd.indexedId) && !ids.containsKey(cmd.indexedId);
+      ids.put(cmd.indexedId, isNew ? NEW : ONE);
+    }
     return 1;
   }
 
@@ -388,45 +839,124 @@ public class DirectUpdateHandler2 extends UpdateHandler {
       cmd.indexedId =getIndexedIdOptional(cmd.doc);
     }
     if (cmd.indexedId != null) {
-      Integer saveCount = pset.get(cmd.indexedId);
-      
-      // if there weren't any docs marked for deletion before, then don't mark
-      // any for deletion now.
-      if (saveCount == null) return 1;
+      Map<String,Integer> ids = pset(cmd.indexedId);
+      synchronized (ids) {
+        addToIdFilter(cmd.indexedId);
+        Integer saveCount = ids.get(cmd.indexedId);
 
-      // If there were docs marked for deletion, then increment the number of
-      // docs to save at the end.
+        // if there weren't any docs marked for deletion before, then don't mark
+        // any for deletion now.
+        if (saveCount == null || saveCount == NEW) return 1;
 
-      // the following line is optional, but it saves an allocation in the common case.
-      if (saveCount == ZERO) saveCount=ONE;
-      else saveCount++;
+        // If there were docs marked for deletion, then increment the number of
+        // docs to save at the end.
 
-      pset.put(cmd.indexedId, saveCount);
+        // the following line is optional, but it saves an allocation in the common case.
+        if (saveCount == ZERO) saveCount=ONE;
+        else saveCount++;
+
+        ids.put(cmd.indexedId, saveCount);
+      }
     }
     return 1;
   }
 
+  /** The changes made between two commits, see {@link #takePending} */
+  protected static class PendingChanges {
+    Map<String,Integer>[] pset;
+    List<PendingDeleteQuery> queries;
+    // the number of docs added
+    long writerDocs;
+  }
+
+  //
+  // Takes the pending changes, so that changes from now on are kept for
+  // the next commit.
+  // call with iwCommit lock held
+  //
+  protected PendingChanges takePending() {
+    PendingChanges changes = new PendingChanges();
+    changes.pset = pset;
+    pset = newPset();
+    synchronized (pendingDeleteQueries) {
+      changes.queries = new ArrayList<PendingDeleteQuery>(pendingDeleteQueries);
+      pendingDeleteQueries.clear();
+    }
+    numDeleteQueriesPending.set(0);
+    changes.writerDocs = writerDocs.getAndSet(0);
+    numDocsPending.set(0);
+    return changes;
+  }
+
+  //
+  // Puts back the changes taken by a failed commit, for the next commit.
+  // Changes made since to the same ids take precedence.
+  // call with iwCommit lock held
+  //
+  protected void restorePending(PendingChanges changes) {
+    for (Map<String,Integer> stripe : changes.pset) {
+      for (Map.Entry<String,Integer> entry : stripe.entrySet()) {
+        Map<String,Integer> ids = pset(entry.getKey());
+        if (!ids.containsKey(entry.getKey())) ids.put(entry.getKey(), entry.getValue());
+      }
+    }
+    synchronized (pendingDeleteQueries) {
+      // the docs the queries were limited to may have been flushed, so
+      // they now apply to all docs before the current ones
+      for (int i=changes.queries.size()-1; i>=0; i--) {
+        pendingDeleteQueries.add(0, new PendingDeleteQuery(changes.queries.get(i).query, 0));
+      }
+      numDeleteQueriesPending.set(pendingDeleteQueries.size());
+    }
+  }
+
   //
   // do all needed deletions.
   // call with iwCommit lock held
   //
   protected void doDeletions() throws IOException {
+    doDeletions(takePending());
+  }
+
+  //
+  // do the deletions of the given changes.
+  // call with iwCommit lock held, or while a commit buffers adds
+  //
+  protected void doDeletions(PendingChanges changes) throws IOException {
     int[] docnums = new int[0];
 
-    if (pset.size() > 0) { // optimization: only open searcher if there is something to delete...
-      log.info("DirectUpdateHandler2 deleting and removing dups for " + pset.size() +" ids");
+    int psetSize=0;
+    for (Map<String,Integer> ids : changes.pset) psetSize += ids.size();
+    List<PendingDeleteQuery> queries = changes.queries;
+
+    if (psetSize > 0 || queries.size() > 0) { // optimization: only open searcher if there is something to delete...
+      log.info("DirectUpdateHandler2 deleting and removing dups for " + psetSize +" ids");
       int numDeletes=0;
 
+      // the docs added through the writer are the last in the index
+      long added = changes.writerDocs;
       closeWriter();
       openSearcher();
       IndexReader reader = searcher.getReader();
       TermDocs tdocs = reader.termDocs();
       String fieldname = idField.getName();
 
-      for (Map.Entry<String,Integer> entry : pset.entrySet()) {
+      // merge the maps so ids are visited in order
+      TreeMap<String,Integer> ids = new TreeMap<String,Integer>();
+      for (Map<String,Integer> stripe : changes.pset) {
+        ids.putAll(stripe);
+      }
+
+      for (Map.Entry<String,Integer> entry : ids.entrySet()) {
         String id = entry.getKey();
         int saveLast = entry.getValue();  // save the last "saveLast" documents
 
+        if (saveLast < 0) {
+          // NEW: all docs with this id were added since the last commit
+          idFilterSkips.incrementAndGet();
+          continue;
+        }
+
         //expand our array that keeps track of docs if needed.
         if (docnums==null || saveLast > docnums.length) {
           docnums = new int[saveLast];
@@ -445,7 +975,9 @@ public class DirectUpdateHandler2 extends UpdateHandler {
         // the doc that was there from the index.
         //
         int pos=0;
+        boolean found=false;
         while (tdocs.next()) {
+          found=true;
           if (saveLast==0) {
             // special case - delete all the docs as we see them.
             reader.deleteDocument(tdocs.doc());
@@ -462,10 +994,25 @@ public class DirectUpdateHandler2 extends UpdateHandler {
 
           if (++pos >= saveLast) pos=0;
         }
+        // only a deleted id can be missing, as the filter said it might exist
+        if (!found) idFilterFalsePositives.incrementAndGet();
+      }
+
+
+      // now execute all queued deleteByQuery commands with the same reader
+      int numQueryDeletes=0;
+      for (PendingDeleteQuery pending : queries) {
+        // docs added after the command were given the highest doc ids
+        int maxDoc = (int)(reader.maxDoc() - (added - pending.writerDocs));
+        DeleteHitCollector deleter = new DeleteHitCollector(searcher, maxDoc);
+        searcher.search(pending.query, null, deleter);
+        numQueryDeletes += deleter.deleted;
+      }
+      if (queries.size() > 0) {
+        log.info("DirectUpdateHandler2 executed " + queries.size() + " deleteByQuery commands, docs deleted=" + numQueryDeletes);
+        numDeletes += numQueryDeletes;
       }
 
-      // should we ever shrink it again, or just clear it?
-      pset.clear();
       log.info("DirectUpdateHandler2 docs deleted=" + numDeletes);
       numDocsDeleted.addAndGet(numDeletes);
     }
@@ -476,85 +1023,289 @@ public class DirectUpdateHandler2 extends UpdateHandler {
 
   public void commit(CommitUpdateCommand cmd) throws IOException {
 
+    // Commits are grouped: a commit requested while another is in progress
+    // waits for it to finish, and is then done once for all the requests
+    // that arrived in the meantime.  A commit covers all changes made before
+    // it started, so a request only needs the first commit that starts
+    // after it arrives.  An optimize always does its own commit.
+    boolean leader=false;
+    long needed;
+    synchronized (commitLock) {
+      needed = commitsStarted + 1;
+      while (cmd.optimize || commitsFinished < needed) {
+        if (!commitRunning) {
+          commitRunning = true;
+          commitsStarted = needed = commitsFinished + 1;
+          leader = true;
+          break;
+        }
+        try {
+          commitLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SolrException(500,"interrupted waiting for commit", e);
+        }
+      }
+    }
+
+    Future searcherFuture;
+    if (leader) {
+      Future[] waitSearcher = new Future[1];
+      boolean done=false;
+      try {
+        doCommit(cmd, waitSearcher);
+        done=true;
+      } finally {
+        synchronized (commitLock) {
+          commitRunning = false;
+          // on failure, a waiting request will retry the commit
+          if (done) {
+            commitsFinished = needed;
+            lastCommitSearcher = waitSearcher[0];
+          }
+          commitLock.notifyAll();
+        }
+      }
+      searcherFuture = waitSearcher[0];
+    } else {
+      coalescedCommits.incrementAndGet();
+      synchronized (commitLock) {
+        searcherFuture = lastCommitSearcher;
+      }
+    }
+
+    // if we are supposed to wait for the searcher to be registered, then we should do it
+    // outside of the synchronized block so that other update operations can proceed.
+    if (cmd.waitSearcher && searcherFuture != null) {
+       try {
+        searcherFuture.get();
+      } catch (InterruptedException e) {
+        SolrException.log(log,e);
+      } catch (ExecutionException e) {
+        SolrException.log(log,e);
+      }
+    }
+
+    return;
+  }
+
+  // does a single commit; call through commit() which serializes them
+  protected void doCommit(CommitUpdateCommand cmd, Future[] waitSearcher) throws IOException {
+
     if (cmd.optimize) {
       optimizeCommands.incrementAndGet();
     } else {
       commitCommands.incrementAndGet();
     }
 
-    Future[] waitSearcher = null;
-    if (cmd.waitSearcher) {
-      waitSearcher = new Future[1];
+    // Take the changes made so far, and buffer adds from now on.  This is
+    // the only time adds are blocked: the writer and searcher are then only
+    // used by this commit until the buffered adds are replayed.
+    PendingChanges changes;
+    // the last log file with updates of this commit
+    long logSeq = -1;
+    iwCommit.lock();
+    try {
+      log.info("start "+cmd);
+      changes = takePending();
+      if (ulog != null) logSeq = ulog.rollover();
+      if (realtime != null) realtime.startCommit(changes.pset);
+      tracker.didCommit();
+      addCommands.set(0);
+      deleteByIdCommands.set(0);
+      deleteByQueryCommands.set(0);
+      numErrors.set(0);
+
+      // rebuild the id filter once it has had as many ids added as it was
+      // sized for, to keep its false positive rate low.  Ids added while
+      // the commit runs go to both filters.
+      BloomFilter filter = idFilter;
+      if (filter != null && filter.size() > filter.capacity() / idFilterBitsPerId) {
+        nextIdFilter = new BloomFilter(filter.size()*2, idFilterBitsPerId);
+      }
+      bufferAdds = true;
+    } finally {
+      iwCommit.unlock();
     }
 
     boolean error=true;
-    iwCommit.lock();
     try {
-      log.info("start "+cmd);
-      doDeletions();
-        
-      if (cmd.optimize) {
+      doDeletions(changes);
+
+      if (cmd.optimize && !cmd.background) {
+        optimizer.cancel();
         closeSearcher();
-        openWriter(); 
+        openWriter();
         writer.optimize();
       }
 
       closeSearcher();
       closeWriter();
 
+      // the index doesn't change until the buffered adds are replayed
+      boolean optimized = optimizer.install() || (cmd.optimize && !cmd.background);
+      if (cmd.background && !optimizer.start()) {
+        log.warning("background optimize already running");
+      }
+
+      if (nextIdFilter != null) {
+        openSearcher();
+        addIdTerms(nextIdFilter, searcher.getReader());
+        closeSearcher();
+      }
+
+      // the side index is searched until a searcher on this is registered
+      if (realtime != null) realtime.committed(IndexReader.getCurrentVersion(core.getIndexDir()));
+
       callPostCommitCallbacks();
-      if (cmd.optimize) {
+      if (optimized) {
         callPostOptimizeCallbacks();
       }
-      // open a new searcher in the sync block to avoid opening it
-      // after a deleteByQuery changed the index, or in between deletes
-      // and adds of another commit being done.
+      // the index doesn't change until the buffered adds are replayed, so
+      // the new searcher sees exactly the changes of this commit.
       core.getSearcher(true,false,waitSearcher);
 
-      // reset commit tracking
-      tracker.didCommit();
-
       log.info("end_commit_flush");
 
+      // the logs of a failed commit are kept, for the next one
+      if (ulog != null) {
+        syncIndex();
+        ulog.deleteUpTo(logSeq);
+      }
+
       error=false;
     }
     finally {
+      if (error) numErrors.incrementAndGet();
+      endBuffering(error ? changes : null);
+    }
+  }
+
+  //
+  // Adds the docs buffered during a commit to the writer, and has adds
+  // use the writer again.  The changes of a failed commit are restored.
+  //
+  protected void endBuffering(PendingChanges failed) throws IOException {
+    // replay most of the buffer while adds keep being buffered
+    for (;;) {
+      List<Document> docs;
+      synchronized (commitBuffer) {
+        if (commitBuffer.size() < 100) break;
+        docs = new ArrayList<Document>(commitBuffer);
+        commitBuffer.clear();
+      }
+      synchronized (commitLock) {
+        commitLock.notifyAll();
+      }
+      replay(docs);
+    }
+
+    iwCommit.lock();
+    try {
+      List<Document> docs;
+      synchronized (commitBuffer) {
+        docs = new ArrayList<Document>(commitBuffer);
+        commitBuffer.clear();
+      }
+      replay(docs);
+
+      BloomFilter next = nextIdFilter;
+      nextIdFilter = null;
+      if (failed != null) {
+        restorePending(failed);
+        tracker.increment((int)failed.writerDocs);
+      } else if (next != null) {
+        idFilter = next;
+        log.info("DirectUpdateHandler2 rebuilt id filter for " + next.size() + " ids");
+      }
+      bufferAdds = false;
+
+      // commit what was changed during this commit in time too
+      if (psetSize() > 0 || numDeleteQueriesPending.get() > 0 || writerDocs.get() > 0) {
+        tracker.didChange();
+      }
+    } finally {
       iwCommit.unlock();
-      addCommands.set(0);
-      deleteByIdCommands.set(0);
-      deleteByQueryCommands.set(0);
-      numErrors.set(error ? 1 : 0);
     }
+    synchronized (commitLock) {
+      commitLock.notifyAll();
+    }
+  }
 
-    // if we are supposed to wait for the searcher to be registered, then we should do it
-    // outside of the synchronized block so that other update operations can proceed.
-    if (waitSearcher!=null && waitSearcher[0] != null) {
-       try {
-        waitSearcher[0].get();
-      } catch (InterruptedException e) {
-        SolrException.log(log,e);
-      } catch (ExecutionException e) {
-        SolrException.log(log,e);
+  // adds docs buffered during a commit.  Their ids are already pending,
+  // so a failure only loses that doc, as a failed add would.
+  protected void replay(List<Document> docs) throws IOException {
+    if (docs.isEmpty()) return;
+    bufferedAdds.addAndGet(docs.size());
+    closeSearcher();
+    openWriter();
+    for (Document doc : docs) {
+      try {
+        writer.addDocument(doc);
+      } catch (IOException e) {
+        numErrors.incrementAndGet();
+        numErrorsCumulative.incrementAndGet();
+        SolrException.log(log, "error adding document buffered during commit", e);
       }
     }
+  }
 
-    return;
+
+  /**
+   * Does the merges the merge scheduler deferred while the query load was
+   * high, once adds are quiet.
+   * @return false if a commit or a background optimize is using the index
+   */
+  protected boolean mergeDeferred() throws IOException {
+    iwCommit.lock();
+    try {
+      if (bufferAdds || optimizer.isRunning()) return false;
+      boolean opened = writer == null;
+      closeSearcher();
+      openWriter();
+      ((SolrIndexWriter)writer).mergeSegments();
+      if (opened) closeWriter();
+      return true;
+    } finally {
+      iwCommit.unlock();
+    }
   }
 
 
   public void close() throws IOException {
     log.info("closing " + this);
+    tracker.close();
+    optimizer.cancel();
+    if (mergeScheduler != null) mergeScheduler.close();
+    if (realtime != null) realtime.close();
     iwCommit.lock();
     try{
       doDeletions();
       closeSearcher();
       closeWriter();
+      // everything logged is in the index now
+      if (ulog != null) {
+        ulog.close();
+        syncIndex();
+        ulog.deleteUpTo(Long.MAX_VALUE);
+      }
     } finally {
       iwCommit.unlock();
     }
     log.info("closed " + this);
   }
 
+  public RefCounted<SolrIndexSearcher> getRealtimeSearcher(SolrIndexSearcher main) throws IOException {
+    if (realtime == null) return null;
+    // keeps a commit from taking the pending changes meanwhile
+    iwAccess.lock();
+    try {
+      return realtime.getSearcher(main, pset);
+    } finally {
+      iwAccess.unlock();
+    }
+  }
+
   /** Inform tracker that <code>docs</code> docs have been added.  Will 
    * perform commit and/or optimize if constraints are satisfied.
    */
@@ -568,6 +1319,7 @@ public class DirectUpdateHandler2 extends UpdateHandler {
         cmd.waitSearcher = waitSearcher;
         log.info("autocommitting: " + cmd);
         commit(cmd);
+        autoCommits.incrementAndGet();
       } 
     }
   }
@@ -578,36 +1330,113 @@ public class DirectUpdateHandler2 extends UpdateHandler {
    * definitely change in the future, so the interface should not be
    * relied-upon
    *
-   * Note: all access must be synchronized.
+   * Note: increment() and didChange() may be called concurrently (with
+   * iwAccess held), all other access must be synchronized.
    */
-  class CommitTracker {
+  class CommitTracker implements Runnable {
 
     // settings
     private final ConstraintTester commitTester;
+    // commit this many milliseconds after the first change, or -1
+    private final long timeUpperBound;
+    // runs time based commits, null if there is no time limit
+    private final ScheduledExecutorService scheduler;
 
     // state
-    private long timeOfCommit;
-    private long docsSinceCommit;    
-    private boolean needCommit;
+    private volatile long timeOfCommit;
+    private final AtomicLong docsSinceCommit = new AtomicLong();
+    private volatile boolean needCommit;
+    // time of the first change since the last commit, or 0 if none
+    private final AtomicLong timeOfFirstChange = new AtomicLong();
+    // the scheduled commit, protected by scheduleLock.  The tracker itself
+    // can't be used, as checkCommit() holds it while waiting for iwCommit.
+    private ScheduledFuture pending;
+    private final Object scheduleLock = new Object();
 
     public CommitTracker() {
       timeOfCommit = timestamp();
-      docsSinceCommit = 0;
       needCommit = false;
 
       commitTester = new ConstraintTester(
          SolrConfig.config.getInt("updateHandler/autoCommit/maxDocs", -1));
-      SolrCore.log.info("autocommit if " + commitTester);
+      timeUpperBound = SolrConfig.config.getInt("updateHandler/autoCommit/maxTime", -1);
+      if (timeUpperBound > 0) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DirectUpdateHandler2 autocommit");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      } else {
+        scheduler = null;
+      }
+      SolrCore.log.info("autocommit if " + commitTester +
+              (timeUpperBound > 0 ? " or " + timeUpperBound + "ms after the first change" : ""));
+    }
+
+    /** Indicate that the index has been changed (by an add or delete).
+     * The first change after a commit schedules a commit in maxTime, so
+     * that all changes until then are committed together.
+     */
+    public void didChange() {
+      if (timeOfFirstChange.compareAndSet(0, timestamp()) && scheduler != null) {
+        synchronized (scheduleLock) {
+          pending = scheduler.schedule(this, timeUpperBound, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+
+    /** Commits from the scheduler thread, once maxTime has passed */
+    public void run() {
+      // a commit since this was scheduled already included all changes
+      if (timeOfFirstChange.get() == 0) return;
+      try {
+        CommitUpdateCommand cmd = new CommitUpdateCommand(false);
+        cmd.waitSearcher = false;
+        log.info("autocommitting: " + cmd);
+        commit(cmd);
+        autoCommits.incrementAndGet();
+      } catch (Exception e) {
+        SolrException.log(log, "autocommit error", e);
+      }
+    }
+
+    /** @return milliseconds since the last commit */
+    public long getTimeSinceCommit() {
+      return timestamp() - timeOfCommit;
+    }
+
+    /** @return milliseconds since the oldest uncommitted change, or 0 if none */
+    public long getPendingAge() {
+      long first = timeOfFirstChange.get();
+      return first == 0 ? 0 : timestamp() - first;
+    }
+
+    /** @return the maxTime setting, or -1 if there is none */
+    public long getTimeUpperBound() {
+      return timeUpperBound;
+    }
+
+    /** @return the maxDocs setting, or -1 if there is none */
+    public long getDocsUpperBound() {
+      return commitTester.docsUpperBound;
+    }
+
+    /** Cancels any scheduled commit and stops the scheduler */
+    public void close() {
+      if (scheduler != null) scheduler.shutdownNow();
     }
 
     /** Indicate that <code>count</code> docs have been added.  May set
      * <code>needCommit()</code> and perhaps also <code>needOptimize</code>
      */
     public void increment(int count) {
-      docsSinceCommit += count;
-      if (docsSinceCommit > 0) {
-        needCommit = commitTester.testConstraints(docsSinceCommit);
+      long docs = docsSinceCommit.addAndGet(count);
+      if (docs > 0 && commitTester.testConstraints(docs)) {
+        needCommit = true;
       }
+      didChange();
     }
 
     /** @return true if commit is needed */
@@ -615,12 +1444,19 @@ public class DirectUpdateHandler2 extends UpdateHandler {
     
     /** Inform tracker that a commit has occurred */
     public void didCommit() {
-      didCommit(docsSinceCommit);
+      didCommit(docsSinceCommit.get());
     }
     public void didCommit(long docsCommitted) {
       timeOfCommit = timestamp();
-      docsSinceCommit -= docsCommitted;
-      needCommit = false;
+      long docs = docsSinceCommit.addAndGet(-docsCommitted);
+      needCommit = docs > 0 && commitTester.testConstraints(docs);
+      timeOfFirstChange.set(0);
+      synchronized (scheduleLock) {
+        if (pending != null) {
+          pending.cancel(false);
+          pending = null;
+        }
+      }
 
     }    
 
@@ -679,9 +1515,37 @@ public class DirectUpdateHandler2 extends UpdateHandler {
     NamedList lst = new NamedList();
     lst.add("commits", commitCommands.get());
     lst.add("optimizes", optimizeCommands.get());
+    lst.add("autocommit maxDocs", tracker.getDocsUpperBound());
+    lst.add("autocommit maxTime", tracker.getTimeUpperBound());
+    lst.add("autocommits", autoCommits.get());
+    lst.add("coalescedCommits", coalescedCommits.get());
+    lst.add("backgroundOptimize", optimizer.getState());
+    lst.add("backgroundOptimizeProgress", optimizer.getProgress());
+    lst.add("backgroundOptimize maxMBPerSec", optimizer.getMaxMBPerSec());
+    lst.add("backgroundOptimizes", optimizer.getInstalled());
+    if (mergeScheduler != null) {
+      lst.add("queriesPerSec", mergeScheduler.getQueriesPerSec());
+      lst.add("segments", mergeScheduler.getSegments());
+      lst.add("largeMergesDeferred", mergeScheduler.isDeferring());
+      lst.add("mergeDeferrals", mergeScheduler.getDeferrals());
+      lst.add("deferredMergeCatchUps", mergeScheduler.getCatchUps());
+    }
+    lst.add("addsBufferedDuringCommit", bufferedAdds.get());
+    if (ulog != null) {
+      lst.add("updateLogReplayed", updateLogReplayed.get());
+    }
+    if (realtime != null) {
+      lst.add("realtimeDocs", realtime.getNumDocs());
+      lst.add("realtimeViewsOpened", realtime.getViewsOpened());
+    }
+    lst.add("timeSinceLastCommit", tracker.getTimeSinceCommit());
+    lst.add("pendingDocsAge", tracker.getPendingAge());
     lst.add("docsPending", numDocsPending.get());
-    // pset.size() not synchronized, but it should be fine to access.
-    lst.add("deletesPending", pset.size());
+    IndexWriter w = writer;
+    lst.add("ramBufferedBytes", w instanceof SolrIndexWriter ? ((SolrIndexWriter)w).getBufferedBytes() : 0L);
+    // psetSize() not synchronized, but it should be fine to access.
+    lst.add("deletesPending", psetSize());
+    lst.add("deletesByQueryPending", numDeleteQueriesPending.get());
     lst.add("adds", addCommands.get());
     lst.add("deletesById", deleteByIdCommands.get());
     lst.add("deletesByQuery", deleteByQueryCommands.get());
@@ -691,6 +1555,13 @@ public class DirectUpdateHandler2 extends UpdateHandler {
     lst.add("cumulative_deletesByQuery", deleteByQueryCommandsCumulative.get());
     lst.add("cumulative_errors", numErrorsCumulative.get());
     lst.add("docsDeleted", numDocsDeleted.get());
+    BloomFilter filter = idFilter;
+    if (filter != null) {
+      lst.add("idFilterIds", filter.size());
+      lst.add("idFilterFalsePositiveRate", filter.getFalsePositiveRate());
+      lst.add("idFilterFalsePositives", idFilterFalsePositives.get());
+      lst.add("idFilterSkips", idFilterSkips.get());
+    }
 
     return lst;
   }
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.document.Document;
+
+import java.util.ArrayList;
+
+/**
+ * A document as read from an update request: field names and external
+ * values with their boosts, before any schema processing.  Reading a
+ * document this way lets it be turned into a Lucene Document by a
+ * {@link DocumentBuilder} on a different thread than the one that read it.
+ *
+ * @version $Id$
+ */
+public class InputDocument {
+  private float boost = 1.0f;
+  private final ArrayList<String> names = new ArrayList<String>();
+  private final ArrayList<String> values = new ArrayList<String>();
+  private final ArrayList<Float> boosts = new ArrayList<Float>();
+
+  public void setBoost(float boost) {
+    this.boost = boost;
+  }
+
+  public float getBoost() {
+    return boost;
+  }
+
+  /** Adds a value for the field <code>name</code> */
+  public void addField(String name, String val, float boost) {
+    names.add(name);
+    values.add(val);
+    boosts.add(boost);
+  }
+
+  /** The number of field values */
+  public int size() {
+    return names.size();
+  }
+
+  public String getName(int idx) {
+    return names.get(idx);
+  }
+
+  public String getValue(int idx) {
+    return values.get(idx);
+  }
+
+  public float getBoost(int idx) {
+    return boosts.get(idx);
+  }
+
+  /** Returns the first value of the field <code>name</code>, or null */
+  public String getFieldValue(String name) {
+    int idx = names.indexOf(name);
+    return idx<0 ? null : values.get(idx);
+  }
+
+  /** Builds the Lucene Document for this document using <code>builder</code> */
+  public Document build(DocumentBuilder builder) {
+    builder.startDoc();
+    if (boost != 1.0f) builder.setBoost(boost);
+    for (int i=0; i<names.size(); i++) {
+      float b = boosts.get(i);
+      if (b != 1.0f) {
+        builder.addField(names.get(i), values.get(i), b);
+      } else {
+        builder.addField(names.get(i), values.get(i));
+      }
+    }
+    builder.endDoc();
+    return builder.getDoc();
+  }
+}
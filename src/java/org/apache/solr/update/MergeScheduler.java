@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.solr.core.SolrException;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.NamedList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Defers large segment merges of the main index while the query load is
+ * high, so that they happen during quiet periods instead.
+ * <p>
+ * The IndexWriter merges segments as documents are added.  Every
+ * <code>interval</code> milliseconds this samples the number of queries
+ * per second (the sum of the <code>requests</code> statistic of all query
+ * handlers) and the number of segments in the index.  While the rate is
+ * above <code>maxQueriesPerSec</code>, the writer is limited to merges
+ * into segments of at most <code>deferMergeDocs</code> documents.  Once
+ * the load drops, or the index has <code>maxSegments</code> segments, the
+ * configured limit is restored.  The deferred merges are then done once
+ * no documents have been added for <code>quietInterval</code>
+ * milliseconds, or earlier as documents are flushed.
+ * </p>
+ * <p>
+ * <code>deferMergeDocs</code> must be at least the writer's
+ * <code>maxBufferedDocs</code>, or no segments are merged at all while
+ * merges are deferred.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MergeScheduler implements Runnable {
+  private static Logger log = Logger.getLogger(MergeScheduler.class.getName());
+
+  private final DirectUpdateHandler2 updateHandler;
+  private final String indexDir;
+  private final int maxMergeDocs;
+  private final double maxQueriesPerSec;
+  private final int deferMergeDocs;
+  private final int maxSegments;
+  private final long quietInterval;
+  private final ScheduledExecutorService scheduler;
+
+  private volatile IndexWriter writer;
+  private volatile boolean deferring;
+  private volatile double queriesPerSec;
+  private volatile int segments;
+  private volatile long deferrals;
+  private volatile long catchUps;
+  private volatile long lastAdd;
+  // merges were deferred and aren't done yet, synchronized on this
+  private boolean behind;
+  private ScheduledFuture<?> catchUpTask;
+  // the last sample, only used by the scheduler thread
+  private long lastRequests = -1;
+  private long lastTime;
+
+  /**
+   * @param updateHandler the handler that does the deferred merges
+   * @param indexDir the directory of the index the writers write to
+   * @param maxMergeDocs the maximum merge size the writers are configured with
+   * @param maxQueriesPerSec the query rate above which large merges are deferred
+   * @param deferMergeDocs the maximum merge size while merges are deferred
+   * @param maxSegments the number of segments at which merges are no longer deferred
+   * @param interval milliseconds between samples of the query rate, or 0 to only sample on {@link #run}
+   * @param quietInterval milliseconds without adds after which the deferred merges are done
+   */
+  public MergeScheduler(DirectUpdateHandler2 updateHandler, String indexDir, int maxMergeDocs,
+                        double maxQueriesPerSec, int deferMergeDocs, int maxSegments,
+                        long interval, long quietInterval) {
+    this.updateHandler = updateHandler;
+    this.indexDir = indexDir;
+    this.maxMergeDocs = maxMergeDocs;
+    this.maxQueriesPerSec = maxQueriesPerSec;
+    this.deferMergeDocs = deferMergeDocs;
+    this.maxSegments = maxSegments;
+    this.quietInterval = quietInterval;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MergeScheduler");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    if (interval > 0) {
+      scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    log.info("deferring merges to more than " + deferMergeDocs + " docs above "
+            + maxQueriesPerSec + " queries/sec, unless there are " + maxSegments + " segments");
+  }
+
+  /**
+   * Sets the writer currently open on the index, or null once it is
+   * closed, and applies the current merge limit to it.
+   */
+  public void setWriter(IndexWriter writer) {
+    this.writer = writer;
+    if (writer != null) apply(writer);
+  }
+
+  /** Called for each document added, to delay the deferred merges until adds are quiet */
+  public void added() {
+    lastAdd = System.currentTimeMillis();
+  }
+
+  /** Samples the query rate and the number of segments, and updates the merge limit */
+  public void run() {
+    try {
+      sample();
+      IndexWriter w = writer;
+      if (w != null) apply(w);
+    } catch (Throwable e) {
+      SolrException.log(log, "error scheduling merges", e);
+    }
+  }
+
+  private void sample() {
+    long now = System.currentTimeMillis();
+    long requests = getRequests();
+    if (lastRequests >= 0 && now > lastTime) {
+      queriesPerSec = (requests - lastRequests) * 1000.0 / (now - lastTime);
+    }
+    lastRequests = requests;
+    lastTime = now;
+    segments = countSegments();
+
+    boolean defer = queriesPerSec > maxQueriesPerSec && segments < maxSegments;
+    if (defer != deferring) {
+      if (defer) deferrals++;
+      log.info((defer ? "deferring" : "resuming") + " large merges: " + queriesPerSec
+              + " queries/sec, " + segments + " segments");
+      deferring = defer;
+      synchronized (this) {
+        if (defer) {
+          behind = true;
+        } else if (behind && catchUpTask == null) {
+          scheduleCatchUp(quietInterval);
+        }
+      }
+    }
+  }
+
+  // call synchronized
+  private void scheduleCatchUp(long delay) {
+    if (scheduler.isShutdown()) return;
+    catchUpTask = scheduler.schedule(new Runnable() {
+      public void run() {
+        catchUpIfQuiet();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void catchUpIfQuiet() {
+    synchronized (this) {
+      catchUpTask = null;
+      // deferring again, scheduled once it stops
+      if (!behind || deferring) return;
+      long quiet = System.currentTimeMillis() - lastAdd;
+      if (quiet < quietInterval) {
+        scheduleCatchUp(quietInterval - quiet);
+        return;
+      }
+    }
+    boolean done = false;
+    try {
+      done = catchUp();
+    } catch (Throwable e) {
+      SolrException.log(log, "error doing deferred merges", e);
+    }
+    synchronized (this) {
+      if (done) {
+        behind = false;
+        catchUps++;
+      } else if (catchUpTask == null) {
+        scheduleCatchUp(quietInterval);
+      }
+    }
+  }
+
+  /**
+   * Does the deferred merges, once no documents have been added for
+   * <code>quietInterval</code> milliseconds.
+   * @return false if they couldn't be done now, to try again later
+   */
+  protected boolean catchUp() throws IOException {
+    log.info("doing deferred merges");
+    return updateHandler.mergeDeferred();
+  }
+
+  private void apply(IndexWriter w) {
+    w.setMaxMergeDocs(deferring ? Math.min(deferMergeDocs, maxMergeDocs) : maxMergeDocs);
+  }
+
+  /** The total number of requests handled by the query handlers */
+  protected long getRequests() {
+    long requests = 0;
+    Map<String,SolrInfoMBean> registry = SolrInfoRegistry.getRegistry();
+    synchronized (registry) {
+      for (SolrInfoMBean info : registry.values()) {
+        if (info.getCategory() != SolrInfoMBean.Category.QUERYHANDLER) continue;
+        NamedList stats = info.getStatistics();
+        Object n = stats == null ? null : stats.get("requests");
+        if (n instanceof Number) requests += ((Number)n).longValue();
+      }
+    }
+    return requests;
+  }
+
+  /** The number of segments in the index, counted from their files */
+  protected int countSegments() {
+    String[] files = new File(indexDir).list();
+    if (files == null) return 0;
+    int n = 0;
+    for (String file : files) {
+      // each segment has either a compound file or a field infos file
+      if (file.endsWith(".cfs") || file.endsWith(".fnm")) n++;
+    }
+    return n;
+  }
+
+  /** Stops sampling and merging */
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  public boolean isDeferring() { return deferring; }
+  public double getQueriesPerSec() { return queriesPerSec; }
+  public int getSegments() { return segments; }
+  public long getDeferrals() { return deferrals; }
+  public long getCatchUps() { return catchUps; }
+}
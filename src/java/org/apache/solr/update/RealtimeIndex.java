@@ -0,0 +1,534 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.core.SolrException;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory side index of the documents added since the last commit,
+ * so that queries can search them without waiting for a commit and the
+ * warming of a new searcher.
+ * <p>
+ * Documents are added to a RAMDirectory as well as to the main index.
+ * Requests that ask for it get a realtime searcher: a MultiReader over the
+ * index of the registered searcher followed by the side index, in which
+ * the documents that the pending deletes and overwrites will remove at the
+ * next commit are hidden.  Uncommitted documents are ranked, sorted, paged
+ * and faceted together with the committed ones.
+ * </p>
+ * <p>
+ * A realtime searcher has caches of its own, and is shared by requests
+ * until an add or delete changes what it would see, or the registered
+ * searcher changes.  Opening the next one writes out the buffered docs of
+ * the side index without closing its writer, so that docs keep their
+ * numbers, and only the ids changed since are looked up again to find the
+ * hidden docs.  Its FieldCache and norms are those of a new top level
+ * reader though, so sorting or faceting on it loads them for the whole
+ * index each time one is opened.  The interval bounds how often that
+ * happens while updates arrive: a realtime searcher is reused for that
+ * long even if documents were added since.
+ * </p>
+ * <p>
+ * A commit starts a new side index.  The previous one stays visible, with
+ * the deletes of that commit, until a searcher on the committed index is
+ * registered.  Pending deleteByQuery commands are not applied until they
+ * are committed.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class RealtimeIndex {
+  private static Logger log = Logger.getLogger(RealtimeIndex.class.getName());
+
+  private final IndexSchema schema;
+  private final String idField;
+  private final SolrIndexConfig config;
+  private final long interval;
+
+  // the docs added since the last commit
+  private volatile Segment current;
+  // the docs of commits whose searcher isn't registered yet, oldest first
+  private final List<Segment> committed = new ArrayList<Segment>();
+  // changes on each add or delete, so the cached view is reopened
+  private final AtomicLong generation = new AtomicLong();
+  // the ids added or deleted since the last view was opened, whose hidden
+  // docs must be found again.  Synchronize on it before use.
+  private final Set<String> changedIds = new HashSet<String>();
+  // adds share the writer of the current segment, flushing it excludes them
+  private final ReadWriteLock writerLock = new ReentrantReadWriteLock();
+
+  // the view last opened, or null
+  private View cached;
+  private final AtomicLong viewsOpened = new AtomicLong();
+
+  /** The documents added between two commits */
+  private class Segment {
+    final RAMDirectory dir = new RAMDirectory();
+    // null once the segment is committed
+    SolrIndexWriter writer;
+    // true if docs were added since the buffered docs were written out
+    volatile boolean changed;
+    // the number of docs, once the writer is closed
+    int numDocs;
+    // the deletes taken by the commit of this segment, applied to it and
+    // the docs before it
+    Map<String,Integer>[] pset;
+    // the version of the index committed with these docs, or 0
+    long version;
+
+    Segment() throws IOException {
+      writer = new SolrIndexWriter("RealtimeIndex", dir, true, schema, config);
+    }
+
+    void add(Document doc) throws IOException {
+      writer.addDocument(doc);
+      changed = true;
+    }
+
+    int docCount() {
+      return writer != null ? writer.docCount() : numDocs;
+    }
+
+    // Opens a reader on the docs added so far.  The buffered docs are
+    // written out by the writer, which stays open.  There are no deletes
+    // in the side index, so merges keep the numbers of the docs, and the
+    // docs hidden in one reader are those hidden in the next.
+    IndexReader openReader() throws IOException {
+      writerLock.writeLock().lock();
+      try {
+        if (writer != null && changed) {
+          writer.mergeSegments();
+          changed = false;
+        }
+        return IndexReader.open(dir);
+      } finally {
+        writerLock.writeLock().unlock();
+      }
+    }
+
+    void close() {
+      writerLock.writeLock().lock();
+      try {
+        if (writer == null) return;
+        numDocs = writer.docCount();
+        writer.close();
+      } catch (IOException e) {
+        SolrException.log(log, e);
+      } finally {
+        writer = null;
+        writerLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * @param interval the minimum number of milliseconds between opening
+   * realtime searchers while documents are added or deleted
+   */
+  public RealtimeIndex(IndexSchema schema, SolrIndexConfig config, long interval) throws IOException {
+    this.schema = schema;
+    this.idField = schema.getUniqueKeyField().getName();
+    this.config = config;
+    this.interval = interval;
+    current = new Segment();
+  }
+
+  /**
+   * Adds a document that was added to the main index
+   * @param indexedId the indexed id of the document, or null if it has none
+   */
+  public void add(String indexedId, Document doc) throws IOException {
+    writerLock.readLock().lock();
+    try {
+      current.add(doc);
+    } finally {
+      writerLock.readLock().unlock();
+    }
+    // after the add, so the next view has the doc when it looks up the id
+    if (indexedId != null) {
+      synchronized (changedIds) {
+        changedIds.add(indexedId);
+      }
+    }
+    generation.incrementAndGet();
+  }
+
+  /** Notes that the pending deletes for <code>indexedId</code> changed */
+  public void changed(String indexedId) {
+    synchronized (changedIds) {
+      changedIds.add(indexedId);
+    }
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Starts a new side index for the docs added after this, when a commit
+   * takes the pending deletes.  Must not be called concurrently with
+   * {@link #add} or {@link #getSearcher}.
+   * @param pset the pending deletes taken by the commit
+   */
+  public synchronized void startCommit(Map<String,Integer>[] pset) throws IOException {
+    Segment seg = current;
+    seg.pset = pset;
+    // no more docs are added to it
+    seg.close();
+    committed.add(seg);
+    current = new Segment();
+    // the next view finds all the hidden docs again
+    release();
+    synchronized (changedIds) {
+      changedIds.clear();
+    }
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Notes that the docs of the started commits are in the main index, so
+   * that they can be dropped once a searcher on it is registered.
+   * @param version the version of the committed index
+   */
+  public synchronized void committed(long version) {
+    for (Segment seg : committed) {
+      if (seg.version == 0) seg.version = version;
+    }
+  }
+
+  /**
+   * Returns a searcher over the index of <code>main</code> followed by the
+   * uncommitted docs, without the docs that the pending deletes remove,
+   * with the refcount incremented, or null if there are no changes.
+   * <code>main</code> must stay open while the searcher is used.
+   * @param main the registered searcher
+   * @param pset the pending deletes, which must not be taken while this runs
+   */
+  public synchronized RefCounted<SolrIndexSearcher> getSearcher(SolrIndexSearcher main, Map<String,Integer>[] pset) throws IOException {
+    // drop the docs the registered searcher has
+    long mainVersion = main.getReader().getVersion();
+    for (Iterator<Segment> it = committed.iterator(); it.hasNext();) {
+      Segment seg = it.next();
+      if (seg.version != 0 && seg.version <= mainVersion) {
+        it.remove();
+        seg.close();
+        generation.incrementAndGet();
+      }
+    }
+
+    long gen = generation.get();
+    long now = System.currentTimeMillis();
+    if (cached != null && cached.main == main
+        && (cached.generation == gen || now - cached.time < interval)) {
+      return cached.holder.incref();
+    }
+
+    if (committed.isEmpty() && current.docCount() == 0 && isEmpty(pset)) {
+      release();
+      return null;
+    }
+
+    // taken before the readers are opened, so that an id changed after
+    // this is looked up again by the next view
+    List<String> ids;
+    synchronized (changedIds) {
+      ids = new ArrayList<String>(changedIds);
+      changedIds.clear();
+    }
+
+    Segment[] segments = committed.toArray(new Segment[committed.size()+1]);
+    segments[segments.length-1] = current;
+    IndexReader[] readers = new IndexReader[segments.length+1];
+    readers[0] = main.getReader();
+    for (int i=0; i<segments.length; i++) {
+      readers[i+1] = segments[i].openReader();
+    }
+
+    BitSet[] committedHidden;
+    BitSet[] pendingHidden = new BitSet[readers.length];
+    View prev = cached;
+    if (prev != null && prev.main == main && Arrays.equals(prev.segments, segments)) {
+      // the same docs, with the same numbers, as the last view plus those
+      // added since: only the changed ids need to be looked up.  The last
+      // view may still be in use, so its hidden docs are copied.
+      committedHidden = prev.committedHidden;
+      for (int i=0; i<readers.length; i++) {
+        pendingHidden[i] = (BitSet)prev.pendingHidden[i].clone();
+      }
+      hide(pset, ids, readers, readers.length, committedHidden, pendingHidden);
+    } else {
+      committedHidden = new BitSet[readers.length];
+      for (int i=0; i<readers.length; i++) {
+        committedHidden[i] = new BitSet();
+        pendingHidden[i] = new BitSet();
+      }
+      // each commit's deletes apply to its docs and those before them
+      for (int i=0; i<committed.size(); i++) {
+        Map<String,Integer>[] commitPset = committed.get(i).pset;
+        hide(commitPset, getIds(commitPset), readers, i+2, committedHidden, committedHidden);
+      }
+      hide(pset, getIds(pset), readers, readers.length, committedHidden, pendingHidden);
+    }
+
+    IndexReader[] filtered = new IndexReader[readers.length];
+    for (int i=0; i<readers.length; i++) {
+      // only the readers of the side index are closed with the view
+      filtered[i] = new HiddenDocsReader(readers[i], union(committedHidden[i], pendingHidden[i]), i > 0);
+    }
+    release();
+    cached = new View(main, segments, committedHidden, pendingHidden, new MultiReader(filtered), gen, now);
+    viewsOpened.incrementAndGet();
+    return cached.holder.incref();
+  }
+
+  // drops the reference of the cache to the view
+  private void release() {
+    if (cached != null) {
+      cached.holder.decref();
+      cached = null;
+    }
+  }
+
+  private static boolean isEmpty(Map<String,Integer>[] pset) {
+    for (Map<String,Integer> ids : pset) {
+      synchronized (ids) {
+        if (!ids.isEmpty()) return false;
+      }
+    }
+    return true;
+  }
+
+  // the ids with docs to delete in pset
+  private static List<String> getIds(Map<String,Integer>[] pset) {
+    List<String> ids = new ArrayList<String>();
+    for (Map<String,Integer> map : pset) {
+      synchronized (map) {
+        for (Map.Entry<String,Integer> entry : map.entrySet()) {
+          // a new id has no docs to delete
+          if (entry.getValue() >= 0) ids.add(entry.getKey());
+        }
+      }
+    }
+    return ids;
+  }
+
+  private static BitSet union(BitSet a, BitSet b) {
+    if (a.isEmpty()) return b;
+    if (b.isEmpty()) return a;
+    BitSet both = (BitSet)a.clone();
+    both.or(b);
+    return both;
+  }
+
+  //
+  // Hides the docs that the commit of the pending deletes will delete: all
+  // but the last "n" docs with each of the ids, in the first numReaders
+  // readers.  Docs already hidden by older deletes are left as they are,
+  // and docs of the ids hidden before are shown again if they're kept.
+  //
+  private void hide(Map<String,Integer>[] pset, List<String> ids, IndexReader[] readers, int numReaders, BitSet[] older, BitSet[] hidden) throws IOException {
+    int[] docs = new int[16];
+    for (String id : ids) {
+      // the map for the id, as chosen by DirectUpdateHandler2.pset(id)
+      Map<String,Integer> map = pset[id.hashCode() & (pset.length-1)];
+      Integer count;
+      synchronized (map) {
+        count = map.get(id);
+      }
+      // no docs of a new id are deleted
+      int keep = count == null || count < 0 ? Integer.MAX_VALUE : count;
+
+      Term term = new Term(idField, id);
+      for (int r=numReaders-1; r>=0; r--) {
+        int n = 0;
+        TermDocs td = readers[r].termDocs(term);
+        try {
+          while (td.next()) {
+            if (n == docs.length) {
+              int[] larger = new int[n*2];
+              System.arraycopy(docs, 0, larger, 0, n);
+              docs = larger;
+            }
+            docs[n++] = td.doc();
+          }
+        } finally {
+          td.close();
+        }
+        // the last docs are kept
+        for (int j=n-1; j>=0; j--) {
+          if (older[r].get(docs[j])) continue;
+          if (keep > 0) {
+            keep--;
+            hidden[r].clear(docs[j]);
+          } else {
+            hidden[r].set(docs[j]);
+          }
+        }
+      }
+    }
+  }
+
+  /** The number of realtime searchers opened */
+  public long getViewsOpened() {
+    return viewsOpened.get();
+  }
+
+  /** The number of docs in the side index */
+  public synchronized int getNumDocs() {
+    int n = current.docCount();
+    for (Segment seg : committed) n += seg.docCount();
+    return n;
+  }
+
+  public synchronized void close() {
+    release();
+    for (Segment seg : committed) seg.close();
+    committed.clear();
+    current.close();
+  }
+
+
+  /**
+   * A realtime searcher, with the hidden docs of each of its readers so
+   * that the next one only looks up the ids changed since.
+   */
+  private class View {
+    final SolrIndexSearcher main;
+    final Segment[] segments;
+    // the docs hidden by the deletes of started commits, not changed once
+    // the view is opened
+    final BitSet[] committedHidden;
+    // the docs hidden by the pending deletes
+    final BitSet[] pendingHidden;
+    final long generation;
+    final long time;
+    final RefCounted<SolrIndexSearcher> holder;
+
+    View(SolrIndexSearcher main, Segment[] segments, BitSet[] committedHidden, BitSet[] pendingHidden,
+         final IndexReader reader, long generation, long time) {
+      this.main = main;
+      this.segments = segments;
+      this.committedHidden = committedHidden;
+      this.pendingHidden = pendingHidden;
+      this.generation = generation;
+      this.time = time;
+      final SolrIndexSearcher searcher = new SolrIndexSearcher(schema, "realtime", reader, true);
+      holder = new RefCounted<SolrIndexSearcher>(searcher) {
+        public void close() {
+          try {
+            searcher.close();
+            reader.close();
+          } catch (IOException e) {
+            SolrException.log(log, "Error closing realtime searcher", e);
+          }
+        }
+      };
+      // the reference of the cache
+      holder.incref();
+    }
+  }
+
+
+  /** A reader without the hidden documents */
+  static class HiddenDocsReader extends FilterIndexReader {
+    private final BitSet hidden;
+    private final boolean closeReader;
+    private final int numDocs;
+
+    HiddenDocsReader(IndexReader in, BitSet hidden, boolean closeReader) {
+      super(in);
+      this.hidden = hidden;
+      this.closeReader = closeReader;
+      numDocs = in.numDocs() - hidden.cardinality();
+    }
+
+    public int numDocs() {
+      return numDocs;
+    }
+
+    public boolean isDeleted(int n) {
+      return hidden.get(n) || in.isDeleted(n);
+    }
+
+    public boolean hasDeletions() {
+      return !hidden.isEmpty() || in.hasDeletions();
+    }
+
+    public TermDocs termDocs() throws IOException {
+      return new HiddenTermPositions(in.termPositions());
+    }
+
+    public TermPositions termPositions() throws IOException {
+      return new HiddenTermPositions(in.termPositions());
+    }
+
+    protected void doClose() throws IOException {
+      if (closeReader) in.close();
+    }
+
+    private class HiddenTermPositions extends FilterTermPositions {
+      HiddenTermPositions(TermPositions in) {
+        super(in);
+      }
+
+      public boolean next() throws IOException {
+        while (in.next()) {
+          if (!hidden.get(in.doc())) return true;
+        }
+        return false;
+      }
+
+      public boolean skipTo(int target) throws IOException {
+        if (!in.skipTo(target)) return false;
+        return !hidden.get(in.doc()) || next();
+      }
+
+      public int read(int[] docs, int[] freqs) throws IOException {
+        int n = 0;
+        while (n < docs.length && next()) {
+          docs[n] = in.doc();
+          freqs[n] = in.freq();
+          n++;
+        }
+        return n;
+      }
+    }
+  }
+}
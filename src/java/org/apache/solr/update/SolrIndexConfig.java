@@ -40,6 +40,7 @@ public class SolrIndexConfig {
   public static final int defMaxFieldLength=SolrConfig.config.getInt(defaultsName +"/maxFieldLength", -1);
   public static final int defWriteLockTimeout=SolrConfig.config.getInt(defaultsName +"/writeLockTimeout", -1);
   public static final int defCommitLockTimeout=SolrConfig.config.getInt(defaultsName +"/commitLockTimeout", -1);
+  public static final float defRamBufferSizeMB=SolrConfig.config.getFloat(defaultsName +"/ramBufferSizeMB", -1);
 
   /*** These are "final" in lucene 1.9
   static {
@@ -55,6 +56,7 @@ public class SolrIndexConfig {
   public final int maxFieldLength;
   public final int writeLockTimeout;
   public final int commitLockTimeout;
+  public final float ramBufferSizeMB;
 
   public SolrIndexConfig(String prefix)  {
     useCompoundFile=SolrConfig.config.getBool(prefix+"/useCompoundFile", defUseCompoundFile);
@@ -64,5 +66,6 @@ public class SolrIndexConfig {
     maxFieldLength= SolrConfig.config.getInt(prefix+"/maxFieldLength",defMaxFieldLength);
     writeLockTimeout= SolrConfig.config.getInt(prefix+"/writeLockTimeout", defWriteLockTimeout);
     commitLockTimeout= SolrConfig.config.getInt(prefix+"/commitLockTimeout", defCommitLockTimeout);
+    ramBufferSizeMB= SolrConfig.config.getFloat(prefix+"/ramBufferSizeMB", defRamBufferSizeMB);
   }
 }
\ No newline at end of file
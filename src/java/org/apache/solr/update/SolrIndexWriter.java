@@ -17,14 +17,25 @@
 
 package org.apache.solr.update;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
 import org.apache.solr.schema.IndexSchema;
 
+import java.util.List;
 import java.util.logging.Logger;
 import java.io.IOException;
 
 /**
  * An IndexWriter that is configured via Solr config mechanisms.
+ * <p>
+ * Besides flushing buffered documents every <code>maxBufferedDocs</code>
+ * documents, it flushes them once their estimated size reaches
+ * <code>ramBufferSizeMB</code>, if set.  <code>maxBufferedDocs</code>
+ * keeps its usual meaning and default either way.
+ * </p>
  *
 * @author yonik
 * @version $Id$
@@ -38,6 +49,14 @@ public class SolrIndexWriter extends IndexWriter {
   String name;
   IndexSchema schema;
 
+  // flush once the buffered docs are estimated to use this many bytes, or -1
+  private long ramBufferBytes = -1;
+  // the estimated size of the buffered docs, and their number, synchronized
+  // on bufferLock rather than the writer, which is held while it flushes
+  private final Object bufferLock = new Object();
+  private long bufferedBytes;
+  private int bufferedDocs;
+
   private void init(String name, IndexSchema schema, SolrIndexConfig config) {
     log.fine("Opened Writer " + name);
     this.name = name;
@@ -53,6 +72,7 @@ public class SolrIndexWriter extends IndexWriter {
       if (config.maxFieldLength != -1) setMaxFieldLength(config.maxFieldLength);
       if (config.writeLockTimeout != -1) setWriteLockTimeout(config.writeLockTimeout);
       if (config.commitLockTimeout != -1) setWriteLockTimeout(config.commitLockTimeout);
+      if (config.ramBufferSizeMB > 0) ramBufferBytes = (long)(config.ramBufferSizeMB * 1024 * 1024);
     }
 
   }
@@ -67,6 +87,11 @@ public class SolrIndexWriter extends IndexWriter {
     init(name, schema,config);
   }
 
+  public SolrIndexWriter(String name, Directory directory, boolean create, IndexSchema schema, SolrIndexConfig config) throws IOException {
+    super(directory, schema.getAnalyzer(), create);
+    init(name, schema,config);
+  }
+
   /*** use DocumentBuilder now...
   private final void addField(Document doc, String name, String val) {
       SchemaField ftype = schema.getField(name);
@@ -96,6 +121,79 @@ public class SolrIndexWriter extends IndexWriter {
   }
   ******/
 
+  public void addDocument(Document doc, Analyzer analyzer) throws IOException {
+    super.addDocument(doc, analyzer);
+    if (ramBufferBytes == -1) return;
+
+    long size = ramBytesUsed(doc);
+    boolean flush = false;
+    synchronized (bufferLock) {
+      bufferedBytes += size;
+      if (++bufferedDocs >= getMaxBufferedDocs()) {
+        // flushed by IndexWriter
+        bufferedBytes = 0;
+        bufferedDocs = 0;
+      } else if (bufferedBytes >= ramBufferBytes) {
+        flush = true;
+        bufferedBytes = 0;
+        bufferedDocs = 0;
+      }
+    }
+
+    if (flush) {
+      log.fine("flushing buffered documents of " + name);
+      mergeSegments();
+    }
+  }
+
+  /**
+   * Flushes the buffered documents, and does the merges a flush would at
+   * the current maxMergeDocs.  Adding no indexes is the only way
+   * IndexWriter offers to merge segments without adding documents.
+   */
+  public void mergeSegments() throws IOException {
+    addIndexesNoOptimize(new Directory[0]);
+    synchronized (bufferLock) {
+      bufferedBytes = 0;
+      bufferedDocs = 0;
+    }
+  }
+
+  /**
+   * The estimated number of bytes used by the buffered documents.
+   * @return 0 unless ramBufferSizeMB is set
+   */
+  public long getBufferedBytes() {
+    synchronized (bufferLock) {
+      return bufferedBytes;
+    }
+  }
+
+  /**
+   * Estimates the memory a document uses while it is buffered: its stored
+   * values, plus the postings of its indexed values, which take about as
+   * much again.
+   */
+  protected long ramBytesUsed(Document doc) {
+    long size = 0;
+    for (Fieldable f : (List<Fieldable>)doc.getFields()) {
+      // per field objects and norms
+      size += 64 + 2*f.name().length();
+      int valueBytes;
+      if (f.isBinary()) {
+        valueBytes = f.binaryValue().length;
+      } else if (f.stringValue() != null) {
+        valueBytes = 2*f.stringValue().length();
+      } else {
+        // a Reader, whose length isn't known
+        valueBytes = 4096;
+      }
+      if (f.isStored()) size += valueBytes;
+      if (f.isIndexed()) size += valueBytes;
+    }
+    return size;
+  }
+
   public void close() throws IOException {
     log.fine("Closing Writer " + name);
     super.close();
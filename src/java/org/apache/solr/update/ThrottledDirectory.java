@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Directory that limits the rate at which files are written to it, so
+ * that a merge running in the background doesn't saturate the disk that
+ * searches are reading from.  Reads are not limited.
+ * <p>
+ * Writes may also be cancelled, which makes them throw an IOException so
+ * that the IndexWriter using the directory gives up.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class ThrottledDirectory extends Directory {
+  // check the rate each time this many bytes have been written
+  private static final int CHECK_BYTES = 64*1024;
+
+  private final Directory dir;
+  private final double bytesPerMs;
+  private final long start = System.currentTimeMillis();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private volatile boolean cancelled;
+
+  /**
+   * @param maxMBPerSec the maximum average write rate, or 0 for no limit
+   */
+  public ThrottledDirectory(Directory dir, double maxMBPerSec) {
+    this.dir = dir;
+    this.bytesPerMs = maxMBPerSec * 1024 * 1024 / 1000;
+  }
+
+  /** The number of bytes written so far */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /** Makes all further writes fail */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  // called each time CHECK_BYTES more bytes have been written, and when
+  // a file is closed
+  private void throttle(long bytes) throws IOException {
+    if (cancelled) throw new IOException("writing to " + dir + " was cancelled");
+    if (bytesPerMs <= 0) return;
+    long wait = (long)(bytes / bytesPerMs) - (System.currentTimeMillis() - start);
+    if (wait > 0) {
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted writing to " + dir);
+      }
+    }
+  }
+
+  public IndexOutput createOutput(String name) throws IOException {
+    if (cancelled) throw new IOException("writing to " + dir + " was cancelled");
+    return new ThrottledOutput(dir.createOutput(name));
+  }
+
+  public String[] list() throws IOException { return dir.list(); }
+  public boolean fileExists(String name) throws IOException { return dir.fileExists(name); }
+  public long fileModified(String name) throws IOException { return dir.fileModified(name); }
+  public void touchFile(String name) throws IOException { dir.touchFile(name); }
+  public void deleteFile(String name) throws IOException { dir.deleteFile(name); }
+  public void renameFile(String from, String to) throws IOException { dir.renameFile(from, to); }
+  public long fileLength(String name) throws IOException { return dir.fileLength(name); }
+  public IndexInput openInput(String name) throws IOException { return dir.openInput(name); }
+  public Lock makeLock(String name) { return dir.makeLock(name); }
+  public String getLockID() { return dir.getLockID(); }
+  public void close() throws IOException { dir.close(); }
+
+  public String toString() {
+    return "ThrottledDirectory(" + dir + ")";
+  }
+
+  private class ThrottledOutput extends IndexOutput {
+    private final IndexOutput out;
+    private int unchecked;
+
+    ThrottledOutput(IndexOutput out) {
+      this.out = out;
+    }
+
+    private void wrote(int n) throws IOException {
+      unchecked += n;
+      if (unchecked >= CHECK_BYTES) {
+        throttle(bytesWritten.addAndGet(unchecked));
+        unchecked = 0;
+      }
+    }
+
+    public void writeByte(byte b) throws IOException {
+      out.writeByte(b);
+      wrote(1);
+    }
+
+    public void writeBytes(byte[] b, int length) throws IOException {
+      out.writeBytes(b, length);
+      wrote(length);
+    }
+
+    public void flush() throws IOException { out.flush(); }
+    public long getFilePointer() { return out.getFilePointer(); }
+    public void seek(long pos) throws IOException { out.seek(pos); }
+    public long length() throws IOException { return out.length(); }
+
+    public void close() throws IOException {
+      out.close();
+      long bytes = bytesWritten.addAndGet(unchecked);
+      unchecked = 0;
+      throttle(bytes);
+    }
+  }
+}
@@ -26,11 +26,14 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
 
 import java.util.logging.Logger;
+import java.util.Collection;
+import java.util.List;
 import java.util.Vector;
 import java.io.IOException;
 
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.util.DOMUtil;
+import org.apache.solr.util.RefCounted;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.FieldType;
@@ -145,21 +148,70 @@ public abstract class UpdateHandler implements SolrInfoMBean {
 
 
   public abstract int addDoc(AddUpdateCommand cmd) throws IOException;
+
+  /**
+   * Adds the documents of <code>cmds</code> in order, as {@link #addDoc}
+   * would one at a time, removing each command from the list once it is
+   * done.  If an exception is thrown, the list holds the command that
+   * failed followed by those that were not tried.
+   * This implementation adds each document with {@link #addDoc}.
+   */
+  public void addDocs(List<AddUpdateCommand> cmds) throws IOException {
+    while (!cmds.isEmpty()) {
+      addDoc(cmds.get(0));
+      cmds.remove(0);
+    }
+  }
   public abstract void delete(DeleteUpdateCommand cmd) throws IOException;
+
+  /**
+   * Deletes the documents with any of the external <code>ids</code>, both
+   * pending and committed.
+   * This implementation deletes each id with {@link #delete(DeleteUpdateCommand)}.
+   */
+  public void delete(Collection<String> ids) throws IOException {
+    DeleteUpdateCommand cmd = new DeleteUpdateCommand();
+    cmd.fromPending = true;
+    cmd.fromCommitted = true;
+    for (String id : ids) {
+      cmd.id = id;
+      delete(cmd);
+    }
+  }
+
   public abstract void deleteByQuery(DeleteUpdateCommand cmd) throws IOException;
   public abstract void commit(CommitUpdateCommand cmd) throws IOException;
   public abstract void close() throws IOException;
 
+  /**
+   * Returns a searcher over the index of <code>main</code> that also sees
+   * the changes that aren't committed yet, with the refcount incremented,
+   * or null if there are none or they aren't supported.  The caller must
+   * keep <code>main</code> open while it uses the searcher.  This
+   * implementation returns null.
+   */
+  public RefCounted<SolrIndexSearcher> getRealtimeSearcher(SolrIndexSearcher main) throws IOException {
+    return null;
+  }
+
 
   class DeleteHitCollector extends HitCollector {
     public int deleted=0;
     public final SolrIndexSearcher searcher;
+    // only docs before maxDoc are deleted
+    public final int maxDoc;
 
     public DeleteHitCollector(SolrIndexSearcher searcher) {
+      this(searcher, Integer.MAX_VALUE);
+    }
+
+    public DeleteHitCollector(SolrIndexSearcher searcher, int maxDoc) {
       this.searcher = searcher;
+      this.maxDoc = maxDoc;
     }
 
     public void collect(int doc, float score) {
+      if (doc >= maxDoc) return;
       try {
         searcher.getReader().deleteDocument(doc);
         deleted++;
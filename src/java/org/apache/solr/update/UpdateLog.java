@@ -0,0 +1,436 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.solr.core.SolrException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the updates made since the last commit, so that
+ * they can be replayed after a crash.
+ * <p>
+ * Each update is appended to the current log file as a record: its
+ * length, the command in a compact binary form, and a CRC32 of it.  Adds
+ * are logged as the Lucene Document that was indexed, so replaying them
+ * doesn't depend on the schema.  A commit starts a new file with
+ * {@link #rollover}, and deletes the previous ones once it succeeds.
+ * Files left over at startup hold uncommitted updates; reading stops at
+ * the first incomplete or corrupt record, which is where the crash
+ * interrupted writing.
+ * </p>
+ * <p>
+ * How durable an update is when it returns depends on the sync level:
+ * </p>
+ * <ul>
+ * <li><code>none</code>: buffered, and written at the latest when the log rolls over</li>
+ * <li><code>flush</code>: written to the operating system, so it survives the process crashing</li>
+ * <li><code>fsync</code>: written to disk.  Updates waiting at the same time share one fsync.</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class UpdateLog {
+  private static Logger log = Logger.getLogger(UpdateLog.class.getName());
+
+  public static final byte ADD = 1;
+  public static final byte DELETE = 2;
+  public static final byte DELETE_QUERY = 3;
+
+  public static final int SYNC_NONE = 0;
+  public static final int SYNC_FLUSH = 1;
+  public static final int SYNC_FSYNC = 2;
+
+  private static final String PREFIX = "tlog.";
+
+  /** Records longer than this are taken to be corrupt when replaying */
+  public static final int MAX_RECORD_SIZE = 64*1024*1024;
+
+  private final File dir;
+  private final int syncLevel;
+  private final File[] oldLogs;
+
+  // the current file, protected by synchronizing on this
+  private long seq;
+  private FileOutputStream file;
+  private DataOutputStream out;
+  // bytes written to all files so far
+  private long written;
+
+  // syncs are serialized by syncLock (before this is locked), so an
+  // update waiting for one that has already covered it doesn't sync again
+  private final Object syncLock = new Object();
+  private long synced;
+
+  /**
+   * Opens a new log file in <code>dir</code>.  Existing files are left
+   * for {@link #getOldLogs}.
+   * @param syncLevel one of SYNC_NONE, SYNC_FLUSH, SYNC_FSYNC
+   */
+  public UpdateLog(File dir, int syncLevel) throws IOException {
+    this.dir = dir;
+    this.syncLevel = syncLevel;
+    dir.mkdirs();
+    String[] names = dir.list();
+    List<File> files = new ArrayList<File>();
+    long max = 0;
+    for (String name : names == null ? new String[0] : names) {
+      long n = getSeq(name);
+      if (n < 0) continue;
+      files.add(new File(dir, name));
+      max = Math.max(max, n);
+    }
+    oldLogs = files.toArray(new File[files.size()]);
+    Arrays.sort(oldLogs, new java.util.Comparator<File>() {
+      public int compare(File a, File b) {
+        long sa = getSeq(a.getName()), sb = getSeq(b.getName());
+        return sa < sb ? -1 : (sa == sb ? 0 : 1);
+      }
+    });
+    seq = max;
+    open(max + 1);
+  }
+
+  /** Parses a sync level: "none", "flush" or "fsync" */
+  public static int parseSyncLevel(String level) {
+    if ("none".equals(level)) return SYNC_NONE;
+    if ("flush".equals(level)) return SYNC_FLUSH;
+    if ("fsync".equals(level)) return SYNC_FSYNC;
+    throw new SolrException(500, "Unknown updateLog sync level: " + level);
+  }
+
+  private static long getSeq(String name) {
+    if (!name.startsWith(PREFIX)) return -1;
+    try {
+      return Long.parseLong(name.substring(PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // call synchronized
+  private void open(long n) throws IOException {
+    seq = n;
+    file = new FileOutputStream(new File(dir, PREFIX + n));
+    out = new DataOutputStream(new BufferedOutputStream(file));
+  }
+
+  /** The log files that existed when this log was opened, oldest first */
+  public File[] getOldLogs() {
+    return oldLogs;
+  }
+
+  /**
+   * Logs an add.
+   * @return the position to pass to {@link #sync}
+   */
+  public long add(AddUpdateCommand cmd) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(ADD);
+    data.writeByte((cmd.allowDups ? 1 : 0) | (cmd.overwritePending ? 2 : 0) | (cmd.overwriteCommitted ? 4 : 0));
+    writeDocument(data, cmd.doc);
+    return append(bytes.toByteArray());
+  }
+
+  /**
+   * Logs a delete of all documents with the indexed id.
+   * @return the position to pass to {@link #sync}
+   */
+  public long delete(String indexedId) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(DELETE);
+    writeString(data, indexedId);
+    return append(bytes.toByteArray());
+  }
+
+  /**
+   * Logs a delete by query.
+   * @return the position to pass to {@link #sync}
+   */
+  public long deleteByQuery(String query) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(DELETE_QUERY);
+    writeString(data, query);
+    return append(bytes.toByteArray());
+  }
+
+  private synchronized long append(byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    out.writeInt(record.length);
+    out.write(record);
+    out.writeInt((int)crc.getValue());
+    written += record.length + 8;
+    if (syncLevel == SYNC_FLUSH) out.flush();
+    return written;
+  }
+
+  /**
+   * Makes sure the records up to <code>pos</code> are written as
+   * required by the sync level.  Should be called once the caller no
+   * longer blocks other updates.
+   */
+  public void sync(long pos) throws IOException {
+    if (syncLevel != SYNC_FSYNC) return;
+    synchronized (syncLock) {
+      if (synced >= pos) return;
+      FileOutputStream f;
+      long end;
+      synchronized (this) {
+        out.flush();
+        f = file;
+        end = written;
+      }
+      // other updates may be appended meanwhile
+      f.getFD().sync();
+      synced = end;
+    }
+  }
+
+  /**
+   * Starts a new log file, for the updates after a commit.
+   * @return the sequence number of the previous file, see {@link #deleteUpTo}
+   */
+  public long rollover() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        long previous = seq;
+        closeFile();
+        synced = written;
+        open(previous + 1);
+        return previous;
+      }
+    }
+  }
+
+  /** Deletes the log files up to and including <code>seqNum</code>, once their updates are committed */
+  public void deleteUpTo(long seqNum) {
+    String[] names = dir.list();
+    if (names == null) return;
+    for (String name : names) {
+      long n = getSeq(name);
+      if (n >= 0 && n <= seqNum) new File(dir, name).delete();
+    }
+  }
+
+  // call synchronized
+  private void closeFile() throws IOException {
+    out.flush();
+    if (syncLevel == SYNC_FSYNC) file.getFD().sync();
+    out.close();
+  }
+
+  /** One of SYNC_NONE, SYNC_FLUSH, SYNC_FSYNC */
+  public int getSyncLevel() {
+    return syncLevel;
+  }
+
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        closeFile();
+      }
+    }
+  }
+
+  /** Receives the updates of a log file being replayed */
+  public interface Replayer {
+    public void add(AddUpdateCommand cmd) throws IOException;
+    public void delete(String indexedId) throws IOException;
+    public void deleteByQuery(String query) throws IOException;
+  }
+
+  /**
+   * Replays the complete records of a log file.
+   * @return the number of records replayed
+   */
+  public static int replay(File logFile, Replayer replayer) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+    int n = 0;
+    try {
+      for (;;) {
+        byte type;
+        AddUpdateCommand cmd = null;
+        String value = null;
+        try {
+          int length = in.readInt();
+          // a zero filled tail, as left by some file systems, has length 0
+          if (length <= 0 || length > MAX_RECORD_SIZE) throw new IOException("bad record length " + length);
+          byte[] record = new byte[length];
+          in.readFully(record);
+          int checksum = in.readInt();
+          CRC32 crc = new CRC32();
+          crc.update(record);
+          if ((int)crc.getValue() != checksum) throw new IOException("checksum mismatch");
+
+          DataInputStream data = new DataInputStream(new java.io.ByteArrayInputStream(record));
+          type = data.readByte();
+          if (type == ADD) {
+            cmd = new AddUpdateCommand();
+            int flags = data.readByte();
+            cmd.allowDups = (flags & 1) != 0;
+            cmd.overwritePending = (flags & 2) != 0;
+            cmd.overwriteCommitted = (flags & 4) != 0;
+            cmd.doc = readDocument(data);
+          } else if (type == DELETE || type == DELETE_QUERY) {
+            value = readString(data);
+          } else {
+            throw new IOException("unknown record type " + type);
+          }
+        } catch (EOFException e) {
+          break;
+        } catch (IOException e) {
+          log.warning("ignoring the rest of " + logFile + " after " + n + " records: " + e);
+          break;
+        } catch (RuntimeException e) {
+          // a record that passed the checksum but can't be decoded
+          log.warning("ignoring the rest of " + logFile + " after " + n + " records: " + e);
+          break;
+        }
+
+        if (type == ADD) {
+          replayer.add(cmd);
+        } else if (type == DELETE) {
+          replayer.delete(value);
+        } else {
+          replayer.deleteByQuery(value);
+        }
+        n++;
+      }
+    } finally {
+      in.close();
+    }
+    return n;
+  }
+
+
+  // field flags
+  private static final int STORED = 1;
+  private static final int COMPRESSED = 2;
+  private static final int INDEXED = 4;
+  private static final int TOKENIZED = 8;
+  private static final int OMIT_NORMS = 16;
+  private static final int BINARY = 32;
+  private static final int VECTORS = 64;
+  private static final int VECTOR_POSITIONS = 128;
+  private static final int VECTOR_OFFSETS = 256;
+
+  private static void writeDocument(DataOutputStream out, Document doc) throws IOException {
+    List<Fieldable> fields = (List<Fieldable>)doc.getFields();
+    out.writeFloat(doc.getBoost());
+    out.writeInt(fields.size());
+    for (Fieldable f : fields) {
+      if (f.readerValue() != null) {
+        throw new SolrException(500, "can't log the Reader value of field " + f.name());
+      }
+      int flags = (f.isStored() ? STORED : 0)
+              | (f.isCompressed() ? COMPRESSED : 0)
+              | (f.isIndexed() ? INDEXED : 0)
+              | (f.isTokenized() ? TOKENIZED : 0)
+              | (f.getOmitNorms() ? OMIT_NORMS : 0)
+              | (f.isBinary() ? BINARY : 0)
+              | (f.isTermVectorStored() ? VECTORS : 0)
+              | (f.isStorePositionWithTermVector() ? VECTOR_POSITIONS : 0)
+              | (f.isStoreOffsetWithTermVector() ? VECTOR_OFFSETS : 0);
+      out.writeShort(flags);
+      writeString(out, f.name());
+      out.writeFloat(f.getBoost());
+      if (f.isBinary()) {
+        byte[] value = f.binaryValue();
+        out.writeInt(value.length);
+        out.write(value);
+      } else {
+        writeString(out, f.stringValue());
+      }
+    }
+  }
+
+  private static Document readDocument(DataInputStream in) throws IOException {
+    Document doc = new Document();
+    doc.setBoost(in.readFloat());
+    int numFields = in.readInt();
+    for (int i=0; i<numFields; i++) {
+      int flags = in.readShort();
+      String name = readString(in);
+      float boost = in.readFloat();
+      Field.Store store = (flags & COMPRESSED) != 0 ? Field.Store.COMPRESS
+              : (flags & STORED) != 0 ? Field.Store.YES : Field.Store.NO;
+      Field f;
+      if ((flags & BINARY) != 0) {
+        byte[] value = new byte[readLength(in)];
+        in.readFully(value);
+        f = new Field(name, value, store);
+      } else {
+        Field.Index index = (flags & INDEXED) == 0 ? Field.Index.NO
+                : (flags & TOKENIZED) != 0 ? Field.Index.TOKENIZED : Field.Index.UN_TOKENIZED;
+        Field.TermVector vector = Field.TermVector.NO;
+        if ((flags & VECTORS) != 0) {
+          boolean positions = (flags & VECTOR_POSITIONS) != 0;
+          boolean offsets = (flags & VECTOR_OFFSETS) != 0;
+          vector = positions && offsets ? Field.TermVector.WITH_POSITIONS_OFFSETS
+                  : positions ? Field.TermVector.WITH_POSITIONS
+                  : offsets ? Field.TermVector.WITH_OFFSETS : Field.TermVector.YES;
+        }
+        f = new Field(name, readString(in), store, index, vector);
+        f.setOmitNorms((flags & OMIT_NORMS) != 0);
+      }
+      f.setBoost(boost);
+      doc.add(f);
+    }
+    return doc;
+  }
+
+  // reads the length of a value, which can't be more than what's left of the record
+  private static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > in.available()) throw new IOException("bad value length " + length);
+    return length;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over Strings: a set that may report false positives,
+ * but never false negatives.
+ * <p>
+ * Strings may be added and tested concurrently without synchronization.
+ * Each String sets <code>numHashes</code> bits derived from two independent
+ * hashes of its characters.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class BloomFilter {
+  private final AtomicLongArray bits;
+  private final long numBits;
+  private final int numHashes;
+  private final AtomicInteger numAdded = new AtomicInteger();
+  private final AtomicInteger numBitsSet = new AtomicInteger();
+
+  /**
+   * Creates a filter with a false positive rate of about
+   * <code>0.6185^bitsPerItem</code> once <code>expectedItems</code>
+   * Strings have been added.
+   */
+  public BloomFilter(int expectedItems, int bitsPerItem) {
+    long n = Math.max(64, (long)Math.max(1,expectedItems) * bitsPerItem);
+    bits = new AtomicLongArray((int)((n+63)>>>6));
+    numBits = (long)bits.length() << 6;
+    // the number of hashes that minimizes the false positive rate is ln(2) * bits per item
+    numHashes = Math.max(1, (int)Math.round(bitsPerItem * Math.log(2)));
+  }
+
+  /**
+   * Adds <code>s</code> to the set.
+   * @return false if <code>s</code> was possibly already in the set
+   */
+  public boolean add(String s) {
+    int h1 = s.hashCode();
+    int h2 = hash2(s);
+    boolean changed = false;
+    for (int i=0; i<numHashes; i++) {
+      long bit = index(h1 + i*h2);
+      int word = (int)(bit >>> 6);
+      long mask = 1L << (bit & 63);
+      for (;;) {
+        long old = bits.get(word);
+        if ((old & mask) != 0) break;
+        if (bits.compareAndSet(word, old, old | mask)) {
+          numBitsSet.incrementAndGet();
+          changed = true;
+          break;
+        }
+      }
+    }
+    if (changed) numAdded.incrementAndGet();
+    return changed;
+  }
+
+  /** Returns false if <code>s</code> is definitely not in the set */
+  public boolean mightContain(String s) {
+    int h1 = s.hashCode();
+    int h2 = hash2(s);
+    for (int i=0; i<numHashes; i++) {
+      long bit = index(h1 + i*h2);
+      if ((bits.get((int)(bit >>> 6)) & (1L << (bit & 63))) == 0) return false;
+    }
+    return true;
+  }
+
+  /** The number of Strings added, not counting those already possibly in the set */
+  public int size() {
+    return numAdded.get();
+  }
+
+  /** The number of bits used */
+  public long capacity() {
+    return numBits;
+  }
+
+  /** The estimated probability that a String not in the set is reported as contained */
+  public double getFalsePositiveRate() {
+    return Math.pow((double)numBitsSet.get() / numBits, numHashes);
+  }
+
+  private long index(int hash) {
+    return (hash & 0x7fffffffL) % numBits;
+  }
+
+  /** a second hash independent of String.hashCode(), never zero */
+  private static int hash2(String s) {
+    int h = 0x811c9dc5;  // FNV-1a
+    for (int i=0; i<s.length(); i++) {
+      h = (h ^ s.charAt(i)) * 0x01000193;
+    }
+    return h | 1;
+  }
+}
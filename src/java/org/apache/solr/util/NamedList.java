@@ -190,7 +190,15 @@ public class NamedList implements Cloneable, Serializable {
 
   /** Appends the elements of the given NamedList to this one. */
   public boolean addAll(NamedList nl) {
-    nvPairs.addAll(nl.nvPairs);
+    if (nl.getClass() == NamedList.class) {
+      nvPairs.addAll(nl.nvPairs);
+    } else {
+      // subclasses may not be backed by nvPairs
+      int sz = nl.size();
+      for (int i=0; i<sz; i++) {
+        add(nl.getName(i), nl.getVal(i));
+      }
+    }
     return nl.size()>0;
   }
 
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+
+/**
+ * Tests the autoCommit settings of DirectUpdateHandler2
+ * (maxDocs=5, maxTime=500ms).
+ */
+public class AutoCommitTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-autocommit.xml"; }
+
+  private NamedList getStats() {
+    SolrInfoMBean updateHandler = SolrInfoRegistry.getRegistry().get("updateHandler");
+    return updateHandler.getStatistics();
+  }
+
+  /** waits up to 10 seconds for <code>n</code> autocommits */
+  private void waitForAutoCommits(long n) throws InterruptedException {
+    for (int i=0; i<100 && (Long)getStats().get("autocommits") < n; i++) {
+      Thread.sleep(100);
+    }
+  }
+
+  public void testMaxTime() throws Exception {
+    assertU(adoc("id", "1"));
+    assertU(adoc("id", "2"));
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='0']"
+            );
+    assertTrue((Long)getStats().get("pendingDocsAge") >= 0);
+
+    waitForAutoCommits(1);
+    // the commit doesn't wait for the new searcher
+    Thread.sleep(200);
+    assertEquals(1L, getStats().get("autocommits"));
+    assertEquals(0L, getStats().get("pendingDocsAge"));
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='2']"
+            );
+
+    // deletes are committed too
+    assertU(delI("1"));
+    waitForAutoCommits(2);
+    Thread.sleep(200);
+    assertEquals(2L, getStats().get("autocommits"));
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='1']"
+            );
+  }
+
+  public void testMaxDocsCancelsMaxTime() throws Exception {
+    for (int i=0; i<5; i++) {
+      assertU(adoc("id", Integer.toString(i)));
+    }
+    // committed by the 5th add, which waits for the new searcher
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='5']"
+            );
+    assertEquals(1L, getStats().get("autocommits"));
+
+    // nothing is left for the time based commit to do
+    Thread.sleep(1000);
+    assertEquals(1L, getStats().get("autocommits"));
+  }
+
+  public void testManualCommitCancelsMaxTime() throws Exception {
+    assertU(adoc("id", "1"));
+    assertU(commit());
+    Thread.sleep(1000);
+    assertEquals(0L, getStats().get("autocommits"));
+    assertEquals(1L, getStats().get("commits"));
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.request.FieldCacheTermCounts;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.request.StandardRequestHandler;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Tests caching facet field counts in the facetCache.
+ */
+public class FacetCacheTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-facetcache.xml"; }
+
+  public void testFacetCache() {
+    assertU(adoc("id", "1",  "t_s", "A"));
+    assertU(adoc("id", "2",  "t_s", "B"));
+    assertU(adoc("id", "3",  "t_s", "B"));
+    assertU(commit());
+
+    for (String start : new String[] {"0", "1", "2"}) {
+      assertQ("facet counts should not depend on start",
+              req("q", "id:[* TO *]"
+                  ,"start", start
+                  ,"facet", "true"
+                  ,"facet.field", "t_s"
+                  )
+              ,"*[count(//lst[@name='facet_fields']/lst[@name='t_s']/int)=2]"
+              ,"//lst[@name='t_s']/int[@name='A'][.='1']"
+              ,"//lst[@name='t_s']/int[@name='B'][.='2']"
+              );
+    }
+
+    RefCounted<SolrIndexSearcher> holder = h.getCore().getSearcher();
+    try {
+      NamedList stats = holder.get().getCache(SimpleFacets.FACET_CACHE).getStatistics();
+      assertEquals(3L, stats.get("lookups"));
+      assertEquals(2L, stats.get("hits"));
+    } finally {
+      holder.decref();
+    }
+
+    assertQ("facet params are part of the cache key",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.limit", "1"
+                ,"facet.field", "t_s"
+                )
+            ,"*[count(//lst[@name='facet_fields']/lst[@name='t_s']/int)=1]"
+            ,"//lst[@name='t_s']/int[@name='B'][.='2']"
+            );
+
+    assertU(adoc("id", "4",  "t_s", "A"));
+    assertU(adoc("id", "5",  "t_s", "A"));
+    assertU(commit());
+
+    assertQ("autowarmed facet counts reflect the new searcher",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                )
+            ,"//lst[@name='t_s']/int[1][@name='A'][.='3']"
+            ,"//lst[@name='t_s']/int[2][@name='B'][.='2']"
+            );
+  }
+
+  public void testUnlimitedCountsNotCached() throws Exception {
+    assertU(adoc("id", "1",  "t_s1", "A"));
+    assertU(adoc("id", "2",  "t_s1", "B"));
+    assertU(commit());
+
+    // unlimited counts are returned as a FieldCacheTermCounts, which
+    // refers to the counts of every term, and is streamed rather than cached
+    SolrQueryRequest req = req("q", "id:[* TO *]"
+                               ,"facet", "true"
+                               ,"facet.limit", "-1"
+                               ,"facet.field", "t_s1"
+                               );
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      DocSet docs = searcher.getDocSet(QueryParsing.parseQuery("id:[* TO *]", searcher.getSchema()));
+      SimpleFacets f = new SimpleFacets(searcher, docs, req.getParams(),
+                                        QueryParsing.parseQuery("id:[* TO *]", searcher.getSchema()), null);
+      NamedList counts = (NamedList)f.getFacetFieldCounts().get("t_s1");
+      assertTrue(counts instanceof FieldCacheTermCounts);
+      assertEquals("{A=1,B=1}", counts.toString());
+      assertEquals(0, searcher.getCache(SimpleFacets.FACET_CACHE).size());
+    } finally {
+      req.close();
+    }
+  }
+
+  public void testOverrideFacetInfo() throws Exception {
+    assertU(adoc("id", "1",  "t_s", "A"));
+    assertU(commit());
+
+    // handlers call the 3 argument getFacetInfo, with the query and
+    // filters in the request context
+    final Object[] query = new Object[1];
+    StandardRequestHandler handler = new StandardRequestHandler() {
+      protected NamedList getFacetInfo(SolrQueryRequest req, SolrQueryResponse rsp, DocSet mainSet) {
+        query[0] = req.getContext().get(SimpleFacets.CONTEXT_QUERY_KEY);
+        return super.getFacetInfo(req, rsp, mainSet);
+      }
+    };
+    handler.init(new NamedList());
+    SolrQueryRequest req = req("q", "id:[* TO *]"
+                               ,"facet", "true"
+                               ,"facet.field", "t_s"
+                               );
+    try {
+      SolrQueryResponse rsp = new SolrQueryResponse();
+      handler.handleRequest(req, rsp);
+      assertNotNull(query[0]);
+      NamedList facets = (NamedList)rsp.getValues().get("facet_counts");
+      assertEquals("{A=1}", ((NamedList)facets.get("facet_fields")).get("t_s").toString());
+    } finally {
+      req.close();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests facet.pivot
+ */
+public class FacetPivotTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testFacetPivot() {
+    assertU(adoc("id", "1", "cat_s1", "book",  "manu_s1", "acme"));
+    assertU(adoc("id", "2", "cat_s1", "book",  "manu_s1", "acme"));
+    assertU(adoc("id", "3", "cat_s1", "book",  "manu_s1", "zeta"));
+    assertU(adoc("id", "4", "cat_s1", "music", "manu_s1", "zeta"));
+    assertU(adoc("id", "5", "cat_s1", "music"));
+    assertU(adoc("id", "6", "cat_s1", "video", "manu_s1", "acme"));
+    assertU(adoc("id", "7",                    "manu_s1", "beta"));
+    assertU(commit());
+
+    String pivot = "//lst[@name='facet_pivot']/arr[@name='cat_s1,manu_s1']";
+    assertQ("two level pivot",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.pivot", "cat_s1,manu_s1"
+                ,"f.cat_s1.facet.limit", "2"
+                ,"f.manu_s1.facet.missing", "true"
+                )
+            ,"*[count(" + pivot + "/lst)=2]"
+            ,pivot + "/lst[1]/str[@name='field'][.='cat_s1']"
+            ,pivot + "/lst[1]/str[@name='value'][.='book']"
+            ,pivot + "/lst[1]/int[@name='count'][.='3']"
+            ,"*[count(" + pivot + "/lst[1]/arr[@name='pivot']/lst)=2]"
+            ,pivot + "/lst[1]/arr[@name='pivot']/lst[1]/str[@name='field'][.='manu_s1']"
+            ,pivot + "/lst[1]/arr[@name='pivot']/lst[1]/str[@name='value'][.='acme']"
+            ,pivot + "/lst[1]/arr[@name='pivot']/lst[1]/int[@name='count'][.='2']"
+            ,pivot + "/lst[1]/arr[@name='pivot']/lst[2]/str[@name='value'][.='zeta']"
+            ,pivot + "/lst[1]/arr[@name='pivot']/lst[2]/int[@name='count'][.='1']"
+            ,pivot + "/lst[2]/str[@name='value'][.='music']"
+            ,pivot + "/lst[2]/int[@name='count'][.='2']"
+            ,pivot + "/lst[2]/arr[@name='pivot']/lst[1]/str[@name='value'][.='zeta']"
+            ,pivot + "/lst[2]/arr[@name='pivot']/lst[2]/null[@name='value']"
+            ,pivot + "/lst[2]/arr[@name='pivot']/lst[2]/int[@name='count'][.='1']"
+            );
+
+    assertQ("pivot of a filtered set",
+            req("q", "id:[* TO *]"
+                ,"fq", "manu_s1:acme"
+                ,"facet", "true"
+                ,"facet.pivot", "manu_s1, cat_s1"
+                )
+            ,"*[count(//lst[@name='facet_pivot']/arr/lst)=1]"
+            ,"//lst[@name='facet_pivot']/arr/lst/int[@name='count'][.='3']"
+            ,"*[count(//lst[@name='facet_pivot']/arr/lst/arr[@name='pivot']/lst)=2]"
+            ,"//lst[@name='facet_pivot']/arr/lst/arr/lst[1]/str[@name='value'][.='book']"
+            ,"//lst[@name='facet_pivot']/arr/lst/arr/lst[2]/str[@name='value'][.='video']"
+            );
+  }
+
+  public void testPrunedLevels() {
+    // counts below the values pruned by facet.limit aren't returned
+    for (int i=0; i<10; i++) {
+      String cat = i < 5 ? "a" : (i < 8 ? "b" : "c");
+      String manu = i%2 == 0 ? "x" : "y";
+      assertU(adoc("id", Integer.toString(i), "cat_s1", cat, "manu_s1", manu, "tag_s1", "v" + (i%3)));
+    }
+    assertU(commit());
+
+    String pivot = "//lst[@name='facet_pivot']/arr[@name='cat_s1,manu_s1,tag_s1']";
+    assertQ("three level pivot",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.pivot", "cat_s1,manu_s1,tag_s1"
+                ,"f.cat_s1.facet.limit", "2"
+                ,"f.manu_s1.facet.limit", "1"
+                ,"f.tag_s1.facet.limit", "-1"
+                )
+            ,"*[count(" + pivot + "/lst)=2]"
+            ,pivot + "/lst[1]/str[@name='value'][.='a']"
+            ,pivot + "/lst[1]/int[@name='count'][.='5']"
+            ,"*[count(" + pivot + "/lst[1]/arr/lst)=1]"
+            ,pivot + "/lst[1]/arr/lst/str[@name='value'][.='x']"
+            ,pivot + "/lst[1]/arr/lst/int[@name='count'][.='3']"
+            // docs 0, 2 and 4
+            ,"*[count(" + pivot + "/lst[1]/arr/lst/arr/lst)=3]"
+            ,pivot + "/lst[1]/arr/lst/arr/lst[1]/str[@name='value'][.='v0']"
+            ,pivot + "/lst[2]/str[@name='value'][.='b']"
+            ,pivot + "/lst[2]/int[@name='count'][.='3']"
+            // docs 5 and 7
+            ,pivot + "/lst[2]/arr/lst/str[@name='value'][.='y']"
+            ,pivot + "/lst[2]/arr/lst/int[@name='count'][.='2']"
+            ,"*[count(" + pivot + "/lst[2]/arr/lst/arr/lst)=2]"
+            ,pivot + "/lst[2]/arr/lst/arr/lst[1]/str[@name='value'][.='v1']"
+            ,pivot + "/lst[2]/arr/lst/arr/lst[2]/str[@name='value'][.='v2']"
+            );
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.ConstantScoreRangeQuery;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Tests facet.prefix restricting the facet field constraints.
+ */
+public class FacetPrefixTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testFacetPrefix() throws IOException {
+    assertU(adoc("id", "1", "t_s", "AAA"));
+    assertU(adoc("id", "2", "t_s", "AB"));
+    assertU(adoc("id", "3", "t_s", "AB"));
+    assertU(adoc("id", "4", "t_s", "BB"));
+    assertU(adoc("id", "5", "t_s", "A"));
+    assertU(adoc("id", "6"));
+    assertU(commit());
+
+    assertQ("prefix restricts the constraints",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                ,"facet.prefix", "A"
+                ,"facet.missing", "true"
+                )
+            ,"*[count(//lst[@name='t_s']/int)=4]"
+            ,"//lst[@name='t_s']/int[1][@name='AB'][.='2']"
+            ,"//lst[@name='t_s']/int[@name='A'][.='1']"
+            ,"//lst[@name='t_s']/int[@name='AAA'][.='1']"
+            ,"//lst[@name='t_s']/int[not(@name)][.='1']"
+            );
+
+    assertQ("per field prefix that matches nothing",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                ,"f.t_s.facet.prefix", "AC"
+                )
+            ,"*[count(//lst[@name='t_s']/int)=0]"
+            );
+
+    // fields in the test schema are multiValued, so exercise the
+    // FieldCache path used for single valued fields directly
+    RefCounted<SolrIndexSearcher> holder = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = holder.get();
+      DocSet all = searcher.getDocSet(new ConstantScoreRangeQuery("id", null, null, false, false));
+      NamedList counts = SimpleFacets.getFieldCacheCounts(searcher, all, "t_s", -1, true, true, "A");
+      assertEquals(4, counts.size());
+      assertEquals("A", counts.getName(0));
+      assertEquals(1, counts.getVal(0));
+      assertEquals("AAA", counts.getName(1));
+      assertEquals(1, counts.getVal(1));
+      assertEquals("AB", counts.getName(2));
+      assertEquals(2, counts.getVal(2));
+      assertEquals(null, counts.getName(3));
+      assertEquals(1, counts.getVal(3));
+
+      assertEquals(1, SimpleFacets.getFieldCacheCounts(searcher, all, "t_s", -1, true, false, "B").size());
+      assertEquals(0, SimpleFacets.getFieldCacheCounts(searcher, all, "t_s", -1, true, false, "C").size());
+      assertEquals(0, SimpleFacets.getFieldCacheCounts(searcher, all, "t_s", -1, true, false, "0").size());
+    } finally {
+      holder.decref();
+    }
+  }
+}
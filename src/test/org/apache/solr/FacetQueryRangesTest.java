@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests range facet.query constraints counted together per field.
+ */
+public class FacetQueryRangesTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testFacetQueryRanges() {
+    for (int i=1; i<=10; i++) {
+      assertU(adoc("id", Integer.toString(i), "range_i", Integer.toString(i*10)));
+    }
+    assertU(adoc("id", "11"));
+    assertU(commit());
+
+    assertQ("ranges over the same field are counted together",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.query", "range_i:[* TO 30]"
+                ,"facet.query", "range_i:[30 TO 70]"
+                ,"facet.query", "range_i:{30 TO 70}"
+                ,"facet.query", "range_i:[65 TO *]"
+                ,"facet.query", "range_i:[200 TO 300]"
+                ,"facet.query", "range_i:[*  TO *]"
+                ,"facet.query", "id:[4 TO 6]"
+                )
+            ,"//lst[@name='facet_queries']/int[@name='range_i:[* TO 30]'][.='3']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:[30 TO 70]'][.='5']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:{30 TO 70}'][.='3']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:[65 TO *]'][.='4']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:[200 TO 300]'][.='0']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:[*  TO *]'][.='10']"
+            ,"//lst[@name='facet_queries']/int[@name='id:[4 TO 6]'][.='3']"
+            );
+
+    assertQ("ranges over a small result set",
+            req("q", "id:[* TO *]"
+                ,"fq", "id:5"
+                ,"facet", "true"
+                ,"facet.query", "range_i:[10 TO 50]"
+                ,"facet.query", "range_i:{10 TO 50}"
+                ,"facet.query", "range_i:{50 TO *}"
+                )
+            ,"//lst[@name='facet_queries']/int[@name='range_i:[10 TO 50]'][.='1']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:{10 TO 50}'][.='0']"
+            ,"//lst[@name='facet_queries']/int[@name='range_i:{50 TO *}'][.='0']"
+            );
+  }
+}
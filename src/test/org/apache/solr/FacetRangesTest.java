@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.ConstantScoreRangeQuery;
+import org.apache.solr.core.SolrException;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Tests facet.range counts over numeric and date fields.
+ */
+public class FacetRangesTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testFacetRanges() throws IOException {
+    assertU(adoc("id", "1", "price_f", "1.5",  "bday_dt", "1976-07-04T12:08:56Z"));
+    assertU(adoc("id", "2", "price_f", "10",   "bday_dt", "1976-07-05T00:00:00Z"));
+    assertU(adoc("id", "3", "price_f", "19.9", "bday_dt", "1976-07-05T00:00:00.5Z"));
+    assertU(adoc("id", "4", "price_f", "20",   "bday_dt", "1976-07-07T23:59:59Z"));
+    assertU(adoc("id", "5", "price_f", "55",   "bday_dt", "1976-08-01T00:00:00Z"));
+    assertU(adoc("id", "6"));
+    assertU(commit());
+
+    assertQ("numeric range facets",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.range", "price_f"
+                ,"facet.range.start", "0"
+                ,"facet.range.end", "50"
+                ,"facet.range.gap", "10"
+                )
+            ,"*[count(//lst[@name='facet_ranges']/lst[@name='price_f']/int)=5]"
+            ,"//lst[@name='price_f']/int[@name='0.0'][.='1']"
+            ,"//lst[@name='price_f']/int[@name='10.0'][.='2']"
+            ,"//lst[@name='price_f']/int[@name='20.0'][.='1']"
+            ,"//lst[@name='price_f']/int[@name='30.0'][.='0']"
+            ,"//lst[@name='price_f']/int[@name='40.0'][.='0']"
+            ,"//lst[@name='price_f']/str[@name='gap'][.='10']"
+            ,"//lst[@name='price_f']/str[@name='end'][.='50.0']"
+            );
+
+    assertQ("date range facets with per field params",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.range", "bday_dt"
+                ,"f.bday_dt.facet.range.start", "1976-07-04T00:00:00Z"
+                ,"f.bday_dt.facet.range.end", "1976-07-04T00:00:00Z+4DAYS"
+                ,"f.bday_dt.facet.range.gap", "+1DAY"
+                )
+            ,"*[count(//lst[@name='facet_ranges']/lst[@name='bday_dt']/int)=4]"
+            ,"//lst[@name='bday_dt']/int[@name='1976-07-04T00:00:00Z'][.='1']"
+            ,"//lst[@name='bday_dt']/int[@name='1976-07-05T00:00:00Z'][.='2']"
+            ,"//lst[@name='bday_dt']/int[@name='1976-07-06T00:00:00Z'][.='0']"
+            ,"//lst[@name='bday_dt']/int[@name='1976-07-07T00:00:00Z'][.='1']"
+            ,"//lst[@name='bday_dt']/str[@name='end'][.='1976-07-08T00:00:00Z']"
+            );
+
+    // fields in the test schema are multiValued, so exercise the single
+    // pass FieldCache counting used for single valued fields directly
+    FieldType ft = h.getCore().getSchema().getFieldType("price_f");
+    ConstantScoreRangeQuery[] ranges = {
+      new ConstantScoreRangeQuery("price_f", ft.toInternal("0"), ft.toInternal("10"), true, false),
+      new ConstantScoreRangeQuery("price_f", ft.toInternal("10"), ft.toInternal("20"), true, false),
+      new ConstantScoreRangeQuery("price_f", ft.toInternal("10"), null, false, false),
+      new ConstantScoreRangeQuery("price_f", null, ft.toInternal("20"), false, true)
+    };
+    RefCounted<SolrIndexSearcher> holder = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = holder.get();
+      DocSet all = searcher.getDocSet(new ConstantScoreRangeQuery("id", null, null, false, false));
+      int[] counts = SimpleFacets.getFieldCacheRangeCounts(searcher, all, "price_f", ranges);
+      assertEquals(1, counts[0]);
+      assertEquals(2, counts[1]);
+      assertEquals(3, counts[2]);
+      assertEquals(4, counts[3]);
+      for (int i=0; i<ranges.length; i++) {
+        assertEquals(searcher.numDocs(ranges[i], all), counts[i]);
+      }
+    } finally {
+      holder.decref();
+    }
+  }
+
+  public void testTooManyRanges() throws Exception {
+    assertU(adoc("id", "1", "price_f", "1.5"));
+    assertU(commit());
+
+    try {
+      h.query(req("q", "id:[* TO *]"
+                  ,"facet", "true"
+                  ,"facet.range", "price_f"
+                  ,"facet.range.start", "0"
+                  ,"facet.range.end", "1000000"
+                  ,"facet.range.gap", "1"
+                  ));
+      fail("more than " + SimpleFacets.MAX_RANGES + " ranges accepted");
+    } catch (SolrException e) {
+      assertEquals(400, e.code());
+    }
+  }
+
+  public void testSectionsOnlyWhenRequested() throws Exception {
+    assertU(adoc("id", "1", "price_f", "1.5", "t_s", "A"));
+    assertU(commit());
+
+    assertQ(req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                )
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[@name='A'][.='1']"
+            ,"*[count(//lst[@name='facet_ranges'])=0]"
+            ,"*[count(//lst[@name='facet_pivot'])=0]"
+            );
+  }
+}
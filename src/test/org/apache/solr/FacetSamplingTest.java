@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests facet field counts computed over a sample of the matching documents.
+ */
+public class FacetSamplingTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testFacetSampling() {
+    for (int i=1; i<=20; i++) {
+      String val = i<=10 ? "A" : (i<=16 ? "B" : "C");
+      assertU(adoc("id", Integer.toString(i), "t_s", val));
+    }
+    assertU(commit());
+
+    assertQ("no sampling below the threshold",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                ,"facet.sample.threshold", "20"
+                )
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[@name='A'][.='10']"
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[@name='B'][.='6']"
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[@name='C'][.='4']"
+            ,"*[count(//lst[@name='facet_sampling'])=0]"
+            );
+
+    assertQ("sampled counts are scaled",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                ,"facet.sample.threshold", "10"
+                ,"facet.sample.size", "10"
+                )
+            ,"*[count(//lst[@name='facet_fields']/lst[@name='t_s']/int)=3]"
+            ,"*[sum(//lst[@name='facet_fields']/lst[@name='t_s']/int)=20]"
+            ,"//lst[@name='facet_sampling']/lst[@name='t_s']/int[@name='numDocs'][.='20']"
+            ,"//lst[@name='facet_sampling']/lst[@name='t_s']/int[@name='sampleSize'][.='10']"
+            ,"//lst[@name='facet_sampling']/lst[@name='t_s']/bool[@name='exact'][.='false']"
+            ,"//lst[@name='facet_sampling']/lst[@name='t_s']/float[@name='confidence'][.='0.95']"
+            ,"*[count(//lst[@name='facet_sampling']/lst[@name='t_s']/lst[@name='errors']/int)=3]"
+            );
+
+    assertQ("sampled constraints are recounted",
+            req("q", "id:[* TO *]"
+                ,"facet", "true"
+                ,"facet.field", "t_s"
+                ,"facet.sample.threshold", "10"
+                ,"facet.sample.size", "10"
+                ,"f.t_s.facet.sample.recount", "true"
+                ,"facet.missing", "true"
+                )
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[1][@name='A'][.='10']"
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[2][@name='B'][.='6']"
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[3][@name='C'][.='4']"
+            ,"//lst[@name='facet_fields']/lst[@name='t_s']/int[not(@name)][.='0']"
+            ,"//lst[@name='facet_sampling']/lst[@name='t_s']/bool[@name='exact'][.='true']"
+            ,"*[count(//lst[@name='facet_sampling']/lst[@name='t_s']/lst[@name='errors'])=0]"
+            );
+  }
+
+  public void testMarginOfError() {
+    // p=.5 of 20 docs, from a sample of 10
+    assertEquals(5, SimpleFacets.getMarginOfError(10, 20, 10));
+    // no error when the sample is the whole set
+    assertEquals(0, SimpleFacets.getMarginOfError(10, 20, 20));
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests facet counts read from stored term vectors (facet.method=tv).
+ */
+public class FacetTermVectorsTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testFacetTermVectors() {
+    assertU(adoc("id", "1", "tv_text", "red green"));
+    assertU(adoc("id", "2", "tv_text", "red red blue"));
+    assertU(adoc("id", "3", "tv_text", "green yellow"));
+    assertU(adoc("id", "4", "tv_text", "pink"));
+    assertU(adoc("id", "5"));
+    assertU(commit());
+
+    for (String method : new String[] {"enum", "tv"}) {
+      assertQ("counts from " + method,
+              req("q", "id:[1 TO 3] id:5"
+                  ,"facet", "true"
+                  ,"facet.field", "tv_text"
+                  ,"facet.method", method
+                  ,"facet.limit", "6"
+                  ,"facet.missing", "true"
+                  )
+              ,"*[count(//lst[@name='tv_text']/int)=6]"
+              ,"//lst[@name='tv_text']/int[1][@name='green'][.='2']"
+              ,"//lst[@name='tv_text']/int[2][@name='red'][.='2']"
+              ,"//lst[@name='tv_text']/int[3][@name='blue'][.='1']"
+              ,"//lst[@name='tv_text']/int[4][@name='yellow'][.='1']"
+              ,"//lst[@name='tv_text']/int[5][@name='pink'][.='0']"
+              ,"//lst[@name='tv_text']/int[not(@name)][.='1']"
+              );
+
+      assertQ("limited counts with a prefix from " + method,
+              req("q", "id:1"
+                  ,"facet", "true"
+                  ,"facet.field", "tv_text"
+                  ,"f.tv_text.facet.method", method
+                  ,"facet.limit", "2"
+                  ,"facet.prefix", "gr"
+                  )
+              ,"*[count(//lst[@name='tv_text']/int)=1]"
+              ,"//lst[@name='tv_text']/int[@name='green'][.='1']"
+              );
+
+      assertQ("no zeros from " + method,
+              req("q", "id:3"
+                  ,"facet", "true"
+                  ,"facet.field", "tv_text"
+                  ,"facet.method", method
+                  ,"facet.zeros", "false"
+                  ,"facet.limit", "-1"
+                  )
+              ,"*[count(//lst[@name='tv_text']/int)=2]"
+              ,"//lst[@name='tv_text']/int[@name='green'][.='1']"
+              ,"//lst[@name='tv_text']/int[@name='yellow'][.='1']"
+              );
+    }
+  }
+
+  public void testUnlimitedInIndexOrder() {
+    assertU(adoc("id", "1", "tv_text", "red green"));
+    assertU(adoc("id", "2", "tv_text", "red red blue"));
+    assertU(commit());
+
+    assertQ(req("q", "id:[1 TO 2]"
+                ,"facet", "true"
+                ,"facet.field", "tv_text"
+                ,"facet.method", "tv"
+                ,"facet.limit", "-1"
+                ,"facet.zeros", "false"
+                )
+            ,"*[count(//lst[@name='tv_text']/int)=3]"
+            ,"//lst[@name='tv_text']/int[1][@name='blue'][.='1']"
+            ,"//lst[@name='tv_text']/int[2][@name='green'][.='1']"
+            ,"//lst[@name='tv_text']/int[3][@name='red'][.='2']"
+            );
+  }
+}
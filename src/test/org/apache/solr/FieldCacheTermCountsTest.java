@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import java.io.IOException;
+
+import org.apache.solr.request.FieldCacheTermCounts;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Tests the facet counts streamed from the FieldCache.
+ */
+public class FieldCacheTermCountsTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  private NamedList getCounts(String q, boolean zeros, boolean missing) throws IOException {
+    RefCounted<SolrIndexSearcher> holder = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = holder.get();
+      DocSet docs = searcher.getDocSet(QueryParsing.parseQuery(q, searcher.getSchema()));
+      return SimpleFacets.getFieldCacheCounts(searcher, docs, "t_s", -1, zeros, missing);
+    } finally {
+      holder.decref();
+    }
+  }
+
+  public void testFieldCacheTermCounts() throws IOException {
+    assertU(adoc("id", "1", "t_s", "A"));
+    assertU(adoc("id", "2", "t_s", "B"));
+    assertU(adoc("id", "3", "t_s", "C"));
+    assertU(adoc("id", "4", "t_s", "C"));
+    assertU(adoc("id", "5", "t_s", "D"));
+    assertU(adoc("id", "6"));
+    assertU(commit());
+
+    RefCounted<SolrIndexSearcher> holder = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = holder.get();
+      DocSet docs = searcher.getDocSet(QueryParsing.parseQuery("id:[2 TO 4] id:6", searcher.getSchema()));
+
+      NamedList counts = SimpleFacets.getFieldCacheCounts(searcher, docs, "t_s", -1, false, true);
+      assertTrue(counts instanceof FieldCacheTermCounts);
+      assertEquals("{B=1,C=2,null=1}", counts.toString());
+      // random access
+      assertEquals(2, counts.getVal(1));
+      assertEquals("B", counts.getName(0));
+      assertEquals(null, counts.getName(2));
+      assertEquals(2, counts.get("C"));
+
+      counts = SimpleFacets.getFieldCacheCounts(searcher, docs, "t_s", -1, true, false);
+      assertEquals("{A=0,B=1,C=2,D=0}", counts.toString());
+
+      NamedList copy = counts.clone();
+      copy.add("E", 0);
+      assertEquals("{A=0,B=1,C=2,D=0,E=0}", copy.toString());
+      NamedList all = new NamedList();
+      all.addAll(counts);
+      assertEquals(counts.toString(), all.toString());
+    } finally {
+      holder.decref();
+    }
+  }
+
+  public void testModify() throws Exception {
+    assertU(adoc("id", "1", "t_s", "A"));
+    assertU(adoc("id", "2", "t_s", "B"));
+    assertU(adoc("id", "3"));
+    assertU(commit());
+
+    NamedList counts = getCounts("id:[1 TO 3]", true, true);
+    assertTrue(counts instanceof FieldCacheTermCounts);
+    counts.setVal(1, 5);
+    assertEquals("{A=1,B=5,null=1}", counts.toString());
+
+    counts = getCounts("id:[1 TO 3]", true, false);
+    counts.add("C", 0);
+    counts.setName(0, "a");
+    assertEquals("{a=1,B=1,C=0}", counts.toString());
+    assertEquals(3, counts.size());
+    assertEquals(0, counts.get("C"));
+    assertEquals("{a=1,B=1,C=0}", counts.clone().toString());
+
+    counts = getCounts("id:[1 TO 3]", false, false);
+    NamedList more = new NamedList();
+    more.add("D", 2);
+    counts.addAll(more);
+    assertEquals("{A=1,B=1,D=2}", counts.toString());
+  }
+
+  public void testJSONMap() throws Exception {
+    assertU(adoc("id", "1", "t_s1", "A"));
+    assertU(adoc("id", "2", "t_s1", "B"));
+    assertU(adoc("id", "3"));
+    assertU(commit());
+
+    String json = h.query(req("q", "id:[1 TO 3]"
+                              ,"wt", "json"
+                              ,"facet", "true"
+                              ,"facet.field", "t_s1"
+                              ,"facet.limit", "-1"
+                              ,"facet.missing", "true"
+                              ));
+    assertTrue(json, json.indexOf("\"t_s1\":{\"A\":1,\"B\":1,\"\":1}") >= 0);
+
+    // the missing count is renamed if a term is empty
+    assertU(adoc("id", "4", "t_s1", ""));
+    assertU(commit());
+    json = h.query(req("q", "id:[1 TO 4]"
+                       ,"wt", "json"
+                       ,"facet", "true"
+                       ,"facet.field", "t_s1"
+                       ,"facet.limit", "-1"
+                       ,"facet.missing", "true"
+                       ));
+    assertTrue(json, json.indexOf("\"t_s1\":{\"\":1,\"A\":1,\"B\":1,\" 1\":1}") >= 0);
+  }
+}
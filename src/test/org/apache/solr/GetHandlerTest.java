@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests the get handler, which returns documents by uniqueKey.
+ */
+public class GetHandlerTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-get.xml"; }
+
+  public void testGetHandler() throws Exception {
+    for (int i=1; i<=5; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s", "A"));
+    }
+    assertU(adoc("id", "2", "val_s", "B"));
+    assertU(commit());
+
+    // returned in index order
+    assertQ(req("qt", "get", "id", "3", "id", "1")
+            ,"//*[@numFound='2']"
+            ,"//result/doc[1]/arr[@name='id']/int[.='1']"
+            ,"//result/doc[2]/arr[@name='id']/int[.='3']"
+            );
+    assertQ(req("qt", "get", "ids", "4, 99,5,4", "fl", "id")
+            ,"//*[@numFound='2']"
+            ,"count(//result/doc/arr[@name='val_s'])=0"
+            );
+    assertQ(req("qt", "get", "id", "2")
+            ,"//*[@numFound='1']"
+            ,"//result/doc/arr[@name='val_s']/str[.='B']"
+            );
+    assertQ(req("qt", "get", "id", "99")
+            ,"//*[@numFound='0']"
+            );
+
+    // lookups are cached, and autowarmed
+    SolrInfoMBean idCache = SolrInfoRegistry.getRegistry().get("idCache");
+    long hits = (Long)idCache.getStatistics().get("hits");
+    assertQ(req("qt", "get", "id", "1")
+            ,"//*[@numFound='1']"
+            );
+    assertEquals(hits+1, idCache.getStatistics().get("hits"));
+
+    assertU(delI("1"));
+    assertU(commit());
+    idCache = SolrInfoRegistry.getRegistry().get("idCache");
+    hits = (Long)idCache.getStatistics().get("hits");
+    assertQ(req("qt", "get", "id", "1", "id", "3")
+            ,"//*[@numFound='1']"
+            ,"//result/doc/arr[@name='id']/int[.='3']"
+            );
+    assertEquals(hits+2, idCache.getStatistics().get("hits"));
+  }
+}
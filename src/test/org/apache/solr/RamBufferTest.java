@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import java.io.File;
+
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests flushing buffered documents by size (ramBufferSizeMB=0.01,
+ * without maxBufferedDocs).
+ */
+public class RamBufferTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-rambuffer.xml"; }
+
+  private long getBufferedBytes() {
+    SolrInfoMBean updateHandler = SolrInfoRegistry.getRegistry().get("updateHandler");
+    return (Long)updateHandler.getStatistics().get("ramBufferedBytes");
+  }
+
+  private String bigText(int words) {
+    StringBuilder text = new StringBuilder();
+    for (int i=0; i<words; i++) text.append("word").append(i).append(' ');
+    return text.toString();
+  }
+
+  /** the number of segments, which all use the compound file format */
+  private int getSegmentCount() {
+    int n = 0;
+    for (String file : new File(dataDir, "index").list()) {
+      if (file.endsWith(".cfs")) n++;
+    }
+    return n;
+  }
+
+  public void testFlushBySize() throws Exception {
+    assertU(adoc("id", "1", "val_s", "small"));
+    long small = getBufferedBytes();
+    assertTrue(small > 0 && small < 10*1024);
+
+    assertU(adoc("id", "2", "text", bigText(1000)));
+    assertEquals(0L, getBufferedBytes());
+
+    assertU(adoc("id", "3", "val_s", "small"));
+    assertEquals(small, getBufferedBytes());
+
+    assertU(commit());
+    assertEquals(0L, getBufferedBytes());
+    assertQ(req("id:[1 TO 3]")
+            ,"//*[@numFound='3']"
+            );
+    assertQ(req("text:word999")
+            ,"//*[@numFound='1']"
+            );
+  }
+
+  public void testSegmentsMerged() throws Exception {
+    // every third doc fills the buffer, so this flushes 15 segments, and
+    // the first 10 are merged
+    String text = bigText(250);
+    for (int i=0; i<45; i++) {
+      assertU(adoc("id", Integer.toString(i), "text", text));
+    }
+    assertEquals(0L, getBufferedBytes());
+    assertEquals(6, getSegmentCount());
+
+    assertU(commit());
+    assertQ(req("text:word249")
+            ,"//*[@numFound='45']"
+            );
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+
+/**
+ * Tests searching uncommitted documents through the realtime side index
+ * of DirectUpdateHandler2.
+ */
+public class RealtimeTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-realtime.xml"; }
+
+  private NamedList getStats() {
+    SolrInfoMBean updateHandler = SolrInfoRegistry.getRegistry().get("updateHandler");
+    return updateHandler.getStatistics();
+  }
+
+  // a realtime query, with the number of matches
+  private void assertRealtime(String q, int numFound) {
+    assertQ(req("q", q, "realtime", "true")
+            ,"//result[@numFound='" + numFound + "']"
+            );
+  }
+
+  public void testUncommittedAdds() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(adoc("id", "2", "val_s", "A"));
+    assertRealtime("id:[0 TO 99]", 2);
+    // only if asked for
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='0']"
+            );
+    assertEquals(2, getStats().get("realtimeDocs"));
+
+    // the searcher is reused until something changes
+    long opened = (Long)getStats().get("realtimeViewsOpened");
+    assertRealtime("val_s:A", 2);
+    assertEquals(opened, getStats().get("realtimeViewsOpened"));
+    assertU(adoc("id", "3", "val_s", "A"));
+    assertRealtime("val_s:A", 3);
+    assertEquals(opened+1, getStats().get("realtimeViewsOpened"));
+
+    assertU(commit());
+    // the committed docs are searched in the main index
+    assertRealtime("id:[0 TO 99]", 3);
+    assertEquals(0, getStats().get("realtimeDocs"));
+  }
+
+  public void testMergedResults() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(adoc("id", "3", "val_s", "B"));
+    assertU(adoc("id", "5", "val_s", "A"));
+    assertU(commit());
+    assertU(adoc("id", "2", "val_s", "B"));
+    assertU(adoc("id", "4", "val_s", "A"));
+    assertU(adoc("id", "5", "val_s", "B"));
+
+    // uncommitted docs are sorted and paged with the committed ones
+    assertQ(req("q", "id:[0 TO 99];id desc", "realtime", "true", "start", "1", "rows", "3")
+            ,"//result[@numFound='5']"
+            ,"count(//result/doc)=3"
+            ,"//result/doc[1]/arr[@name='id']/int[.='4']"
+            ,"//result/doc[2]/arr[@name='id']/int[.='3']"
+            ,"//result/doc[3]/arr[@name='id']/int[.='2']"
+            );
+    assertQ(req("q", "id:5", "realtime", "true")
+            ,"//result[@numFound='1']"
+            ,"//result/doc/arr[@name='val_s']/str[.='B']"
+            );
+
+    // and counted in facets
+    assertQ(req("q", "id:[0 TO 99]", "realtime", "true", "facet", "true", "facet.field", "val_s")
+            ,"//lst[@name='val_s']/int[@name='A'][.='2']"
+            ,"//lst[@name='val_s']/int[@name='B'][.='3']"
+            );
+  }
+
+  public void testGet() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(commit());
+    assertU(adoc("id", "1", "val_s", "B"));
+    assertU(adoc("id", "2", "val_s", "B"));
+    assertQ(req("qt", "get", "ids", "1,2", "realtime", "true")
+            ,"//result[@numFound='2']"
+            ,"count(//result/doc/arr[@name='val_s']/str[.='B'])=2"
+            );
+    assertQ(req("qt", "get", "ids", "1,2")
+            ,"//result[@numFound='1']"
+            ,"//result/doc/arr[@name='val_s']/str[.='A']"
+            );
+  }
+
+  public void testUncommittedDeletes() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(adoc("id", "2", "val_s", "A"));
+    assertU(adoc("id", "3", "val_s", "A"));
+    assertU(commit());
+
+    // overwrites hide the committed doc
+    assertU(adoc("id", "1", "val_s", "B"));
+    assertRealtime("id:[0 TO 99]", 3);
+    assertRealtime("val_s:A", 2);
+    assertRealtime("val_s:B", 1);
+
+    // and so do deletes, of committed and uncommitted docs
+    assertU(delI("2"));
+    assertU(adoc("id", "4", "val_s", "B"));
+    assertU(adoc("id", "4", "val_s", "C"));
+    assertRealtime("id:[0 TO 99]", 3);
+    assertRealtime("val_s:B", 1);
+    assertRealtime("val_s:C", 1);
+    assertU(delI("4"));
+    assertRealtime("id:[0 TO 99]", 2);
+    // a deleted id added again
+    assertU(adoc("id", "2", "val_s", "D"));
+    assertRealtime("id:[0 TO 99]", 3);
+    assertRealtime("val_s:D", 1);
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='3']"
+            );
+
+    assertU(commit());
+    assertRealtime("id:[0 TO 99]", 3);
+    assertRealtime("val_s:A", 1);
+    assertRealtime("val_s:B", 1);
+  }
+}
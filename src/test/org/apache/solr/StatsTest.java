@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests the statistics of numeric and date fields.
+ */
+public class StatsTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testStats() {
+    assertU(adoc("id", "1", "price_f1", "1.5", "qty_i1", "4",  "cat_s1", "a", "bday_dt1", "1976-07-04T12:00:00Z"));
+    assertU(adoc("id", "2", "price_f1", "2.5", "qty_i1", "-2", "cat_s1", "b", "bday_dt1", "1976-07-06T12:00:00Z"));
+    assertU(adoc("id", "3", "price_f1", "5",                   "cat_s1", "a"));
+    assertU(adoc("id", "4",                    "qty_i1", "10"));
+    assertU(commit());
+
+    String p = "//lst[@name='stats']/lst[@name='stats_fields']/lst[@name='price_f1']";
+    String q = "//lst[@name='stats']/lst[@name='stats_fields']/lst[@name='qty_i1']";
+    assertQ("stats of numeric fields",
+            req("q", "id:[* TO *]"
+                ,"stats", "true"
+                ,"stats.field", "price_f1"
+                ,"stats.field", "qty_i1"
+                ,"f.price_f1.stats.facet", "cat_s1"
+                )
+            ,p + "/double[@name='min'][.='1.5']"
+            ,p + "/double[@name='max'][.='5.0']"
+            ,p + "/double[@name='sum'][.='9.0']"
+            ,p + "/int[@name='count'][.='3']"
+            ,p + "/int[@name='missing'][.='1']"
+            ,p + "/double[@name='mean'][.='3.0']"
+            ,p + "/double[@name='stddev'][.='1.8027756377319946']"
+            ,q + "/double[@name='min'][.='-2.0']"
+            ,q + "/double[@name='max'][.='10.0']"
+            ,q + "/int[@name='count'][.='3']"
+            ,q + "/double[@name='mean'][.='4.0']"
+            ,"*[count(" + q + "/lst[@name='facets'])=0]"
+            ,p + "/lst[@name='facets']/lst[@name='cat_s1']/lst[@name='a']/double[@name='sum'][.='6.5']"
+            ,p + "/lst[@name='facets']/lst[@name='cat_s1']/lst[@name='a']/int[@name='count'][.='2']"
+            ,p + "/lst[@name='facets']/lst[@name='cat_s1']/lst[@name='b']/double[@name='mean'][.='2.5']"
+            ,p + "/lst[@name='facets']/lst[@name='cat_s1']/lst[@name='b']/double[@name='stddev'][.='0.0']"
+            ,p + "/lst[@name='facets']/lst[@name='cat_s1']/lst[not(@name)]/int[@name='missing'][.='1']"
+            ,p + "/lst[@name='facets']/lst[@name='cat_s1']/lst[not(@name)]/null[@name='min']"
+            );
+
+    assertQ("stats of a date field over a filtered set",
+            req("q", "id:[* TO *]"
+                ,"fq", "cat_s1:[* TO *]"
+                ,"stats", "true"
+                ,"stats.field", "bday_dt1"
+                )
+            ,"//lst[@name='bday_dt1']/date[@name='min'][.='1976-07-04T12:00:00Z']"
+            ,"//lst[@name='bday_dt1']/date[@name='max'][.='1976-07-06T12:00:00Z']"
+            ,"//lst[@name='bday_dt1']/date[@name='mean'][.='1976-07-05T12:00:00Z']"
+            ,"//lst[@name='bday_dt1']/int[@name='count'][.='2']"
+            ,"//lst[@name='bday_dt1']/int[@name='missing'][.='1']"
+            );
+
+    assertQ("no stats unless asked for",
+            req("q", "id:[* TO *]"
+                ,"stats.field", "price_f1"
+                )
+            ,"*[count(//lst[@name='stats'])=0]"
+            );
+  }
+
+  public void testLargeCloseValues() {
+    // a sum of squares has no precision left for their variance
+    assertU(adoc("id", "1", "qty_i1", "1000000001"));
+    assertU(adoc("id", "2", "qty_i1", "1000000002"));
+    assertU(adoc("id", "3", "qty_i1", "1000000003"));
+    assertU(commit());
+
+    assertQ(req("q", "id:[* TO *]"
+                ,"stats", "true"
+                ,"stats.field", "qty_i1"
+                )
+            ,"//lst[@name='qty_i1']/double[@name='mean'][.='1.000000002E9']"
+            ,"//lst[@name='qty_i1']/double[@name='stddev'][.='1.0']"
+            );
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr;
+
+import java.io.File;
+
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DocumentBuilder;
+import org.apache.solr.update.UpdateLog;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.TestHarness;
+
+/**
+ * Tests replaying the update log of DirectUpdateHandler2, by restarting
+ * the core with updates that weren't committed left in the log.
+ */
+public class UpdateLogTest extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-updatelog.xml"; }
+
+  private File getLogDir() {
+    return new File(dataDir, "tlog");
+  }
+
+  private AddUpdateCommand logAdd(String id, String val) {
+    DocumentBuilder builder = new DocumentBuilder(h.getCore().getSchema());
+    builder.startDoc();
+    builder.addField("id", id);
+    builder.addField("val_s", val);
+    builder.endDoc();
+    AddUpdateCommand cmd = new AddUpdateCommand();
+    cmd.doc = builder.getDoc();
+    cmd.allowDups = false;
+    cmd.overwritePending = true;
+    cmd.overwriteCommitted = true;
+    return cmd;
+  }
+
+  /** opens a new core on the index, once the previous one is closed */
+  private void reopen() {
+    h = new TestHarness(dataDir.getAbsolutePath(), getSolrConfigFile(), getSchemaFile());
+    lrf = h.getRequestFactory("standard",0,20,"version","2.2");
+  }
+
+  private long getReplayed() {
+    SolrInfoMBean updateHandler = SolrInfoRegistry.getRegistry().get("updateHandler");
+    return (Long)updateHandler.getStatistics().get("updateLogReplayed");
+  }
+
+  public void testReplay() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(adoc("id", "2", "val_s", "A"));
+    assertU(commit());
+    assertEquals(0L, getReplayed());
+
+    // the updates a crash left in the log, without a commit
+    h.close();
+    UpdateLog ulog = new UpdateLog(getLogDir(), UpdateLog.SYNC_FLUSH);
+    ulog.add(logAdd("3", "B"));
+    ulog.add(logAdd("1", "B"));
+    ulog.delete("2");
+    ulog.add(logAdd("4", "C"));
+    ulog.deleteByQuery("val_s:C");
+    ulog.add(logAdd("5", "C"));
+    ulog.close();
+
+    reopen();
+    assertEquals(6L, getReplayed());
+    assertU(commit());
+    assertQ(req("id:[1 TO 5]")
+            ,"//*[@numFound='3']"
+            );
+    assertQ(req("val_s:B")
+            ,"//*[@numFound='2']"
+            );
+    assertQ(req("id:5")
+            ,"//*[@numFound='1']"
+            );
+    // committed, so only the empty log for the next updates is left
+    File[] logs = getLogDir().listFiles();
+    assertEquals(1, logs.length);
+    assertEquals(0, logs[0].length());
+  }
+
+  public void testCloseCommits() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(commit());
+    assertU(adoc("id", "2", "val_s", "A"));
+    assertU(delI("1"));
+    assertEquals(1, getLogDir().list().length);
+
+    // closing the core commits, so there is nothing to replay
+    h.close();
+    assertEquals(0, getLogDir().list().length);
+    reopen();
+    assertEquals(0L, getReplayed());
+    assertQ(req("id:[1 TO 2]")
+            ,"//*[@numFound='1']"
+            );
+    assertQ(req("id:2")
+            ,"//*[@numFound='1']"
+            );
+  }
+
+  public void testFailedAddSkipped() throws Exception {
+    // adds are logged before they are done, so an add that failed is
+    // in the log, and fails again when replayed
+    h.close();
+    UpdateLog ulog = new UpdateLog(getLogDir(), UpdateLog.SYNC_FLUSH);
+    AddUpdateCommand bad = logAdd("1", "A");
+    bad.overwritePending = false;
+    bad.overwriteCommitted = false;
+    ulog.add(bad);
+    ulog.add(logAdd("2", "A"));
+    ulog.close();
+
+    reopen();
+    assertU(commit());
+    assertQ(req("id:[1 TO 2]")
+            ,"//*[@numFound='1']"
+            );
+    assertQ(req("id:2")
+            ,"//*[@numFound='1']"
+            );
+  }
+}
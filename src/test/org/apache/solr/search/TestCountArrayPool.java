@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * @version $Id$
+ */
+public class TestCountArrayPool extends TestCase {
+  Random rand = new Random();
+
+  public void checkZero(int[] arr) {
+    for (int i=0; i<arr.length; i++) {
+      assertEquals(0, arr[i]);
+    }
+  }
+
+  public void testReuse() {
+    CountArrayPool pool = new CountArrayPool(2);
+    CountArrayPool.Counts c1 = pool.acquire("a", 100);
+    CountArrayPool.Counts c2 = pool.acquire("a", 100);
+    CountArrayPool.Counts c3 = pool.acquire("a", 100);
+    assertNotSame(c1, c2);
+    pool.release("a", c1);
+    pool.release("a", c2);
+    pool.release("a", c3);  // discarded, pool is full
+
+    assertSame(c2, pool.acquire("a", 100));
+    assertSame(c1, pool.acquire("a", 100));
+    assertNotSame(c3, pool.acquire("a", 100));
+
+    // different field or size is never shared
+    pool.release("a", c1);
+    assertNotSame(c1, pool.acquire("b", 100));
+    assertNotSame(c1, pool.acquire("a", 101));
+
+    assertEquals(2L, pool.getStatistics().get("hits"));
+    assertEquals(6L, pool.getStatistics().get("misses"));
+    assertEquals(1L, pool.getStatistics().get("discards"));
+  }
+
+  public void testClear() {
+    CountArrayPool pool = new CountArrayPool(1);
+    for (int iter=0; iter<100; iter++) {
+      int sz = rand.nextInt(50)+1;
+      int incs = rand.nextInt(sz*2);
+      CountArrayPool.Counts c = pool.acquire("f", sz);
+      checkZero(c.count);
+      for (int i=0; i<incs; i++) {
+        c.inc(rand.nextInt(sz));
+      }
+      pool.release("f", c);
+      checkZero(c.count);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.core.SolrException;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests adding documents with several threads; the test config has a
+ * pipeline of 2 threads, with batches of 3 docs.
+ *
+ * @version $Id$
+ */
+public class TestAddPipeline extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig-pipeline.xml"; }
+
+  private UpdateHandler getUpdateHandler() {
+    return (UpdateHandler)SolrInfoRegistry.getRegistry().get("updateHandler");
+  }
+
+  private AddPipeline newPipeline() {
+    return new AddPipeline(getUpdateHandler(), h.getCore().getSchema(), 2, 4, 3);
+  }
+
+  private AddPipeline.Session newSession(AddPipeline pipeline) {
+    AddUpdateCommand cmd = new AddUpdateCommand();
+    cmd.allowDups = false;
+    cmd.overwritePending = true;
+    cmd.overwriteCommitted = true;
+    return pipeline.newSession(cmd);
+  }
+
+  private InputDocument doc(String id, String field) {
+    InputDocument doc = new InputDocument();
+    doc.addField("id", id, 1.0f);
+    doc.addField(field, "x", 1.0f);
+    return doc;
+  }
+
+  public void testAddPipeline() {
+    // the test config adds documents with several threads: documents with
+    // the same id must still be added in order, and overwrite each other
+    StringBuilder sb = new StringBuilder("<add>");
+    for (int i=0; i<50; i++) {
+      sb.append("<doc><field name=\"id\">").append(i%10).append("</field>");
+      sb.append("<field name=\"val_s\">v").append(i).append("</field></doc>");
+    }
+    sb.append("</add>");
+    assertEquals("<result status=\"0\"></result>", h.update(sb.toString()));
+    assertU("<commit/>");
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='10']"
+            );
+    assertQ(req("val_s:v43")
+            ,"//*[@numFound='1']"
+            ,"//arr[@name='id']/int[.='3']"
+            );
+    assertQ(req("val_s:v33")
+            ,"//*[@numFound='0']"
+            );
+
+    // an error adding any document is reported
+    String res = h.update("<add><doc><field name=\"id\">100</field></doc>" +
+                          "<doc><field name=\"id\">101</field><field name=\"no_such_field\">x</field></doc>" +
+                          "</add>");
+    assertTrue(res, res.indexOf("status=\"400\"") >= 0);
+  }
+
+  public void testAddDocs() throws Exception {
+    DocumentBuilder builder = new DocumentBuilder(h.getCore().getSchema());
+    List<AddUpdateCommand> cmds = new ArrayList<AddUpdateCommand>();
+    for (int i=0; i<4; i++) {
+      AddUpdateCommand cmd = new AddUpdateCommand();
+      // the third has unsupported options
+      cmd.overwritePending = i != 2;
+      cmd.overwriteCommitted = i != 2;
+      cmd.doc = doc(Integer.toString(i), "val_s").build(builder);
+      cmds.add(cmd);
+    }
+
+    // the commands left are the one that failed and those after it
+    try {
+      getUpdateHandler().addDocs(cmds);
+      fail("doc without an id added");
+    } catch (SolrException e) {
+      assertEquals(400, e.code());
+    }
+    assertEquals(2, cmds.size());
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='2']"
+            );
+    assertQ(req("id:0 OR id:1")
+            ,"//*[@numFound='2']"
+            );
+  }
+
+  public void testSmallRequestInline() throws Exception {
+    AddPipeline pipeline = newPipeline();
+    AddPipeline.Session session = newSession(pipeline);
+    for (int i=0; i<3; i++) {
+      session.add(doc(Integer.toString(i), "val_s"));
+    }
+    session.finish();
+    assertFalse(session.isStarted());
+    assertEquals(Arrays.asList("0", "1", "2"), session.getAdded());
+
+    session = newSession(pipeline);
+    for (int i=0; i<4; i++) {
+      session.add(doc(Integer.toString(10+i), "val_s"));
+    }
+    assertTrue(session.isStarted());
+    session.finish();
+    assertEquals(Arrays.asList("10", "11", "12", "13"), session.getAdded());
+    pipeline.close();
+
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='7']"
+            );
+  }
+
+  public void testAddedAfterFailure() throws Exception {
+    AddPipeline pipeline = newPipeline();
+    AddPipeline.Session session = newSession(pipeline);
+    try {
+      for (int i=0; i<100; i++) {
+        session.add(doc(Integer.toString(i), i == 20 ? "no_such_field" : "val_s"));
+      }
+      session.finish();
+      fail("bad document added");
+    } catch (Exception e) {
+      // expected
+    } finally {
+      session.close();
+    }
+    pipeline.close();
+
+    // exactly the docs reported were added
+    int numAdded = session.getNumAdded();
+    assertTrue(numAdded < 100);
+    assertFalse(session.getAdded().contains("20"));
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='" + numAdded + "']"
+            );
+    for (String id : session.getAdded()) {
+      assertQ(req("id:" + id)
+              ,"//*[@numFound='1']"
+              );
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+import org.apache.solr.util.TestHarness;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @version $Id$
+ */
+public class TestBackgroundOptimizer extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  private DirectUpdateHandler2 getUpdateHandler() {
+    return (DirectUpdateHandler2)SolrInfoRegistry.getRegistry().get("updateHandler");
+  }
+
+  private NamedList getStats() {
+    return getUpdateHandler().getStatistics();
+  }
+
+  private void addDocs() {
+    // several segments, with a deleted doc
+    for (int i=0; i<20; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s", "old"));
+      if (i%5 == 4) assertU(commit());
+    }
+    assertU(delI("0"));
+    assertU(commit());
+  }
+
+  // closes the core, and opens a new one on the same index
+  private void restart(Runnable whileClosed) {
+    h.close();
+    whileClosed.run();
+    h = new TestHarness(dataDir.getAbsolutePath(), getSolrConfigFile(), getSchemaFile());
+    lrf = h.getRequestFactory("standard",0,20,"version","2.2");
+  }
+
+  public void testChangesWhileMerging() throws Exception {
+    addDocs();
+
+    // the merge waits until the changes below are committed
+    BackgroundOptimizer optimizer = getUpdateHandler().optimizer;
+    CountDownLatch latch = new CountDownLatch(1);
+    optimizer.mergeLatch = latch;
+    assertU("<optimize background=\"true\"/>");
+    assertEquals("merging", getStats().get("backgroundOptimize"));
+
+    assertU(adoc("id", "100", "val_s", "new"));
+    assertU(adoc("id", "1", "val_s", "new"));
+    assertU(delI("2"));
+    assertU(delQ("id:3"));
+    assertU(commit());
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='18']"
+            );
+    assertEquals(0L, getStats().get("backgroundOptimizes"));
+
+    // installed by the commit done once it is merged
+    latch.countDown();
+    optimizer.join();
+    assertEquals(1L, getStats().get("backgroundOptimizes"));
+    assertEquals("idle", getStats().get("backgroundOptimize"));
+
+    assertU(adoc("id", "101", "val_s", "new"));
+    assertU(commit());
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='19']"
+            );
+    assertQ(req("val_s:new")
+            ,"//*[@numFound='3']"
+            );
+    assertQ(req("id:1")
+            ,"//*[@numFound='1']"
+            ,"//str[.='new']"
+            );
+    assertQ(req("id:2 id:3")
+            ,"//*[@numFound='0']"
+            );
+  }
+
+  public void testRecoverBeforeInstall() throws Exception {
+    addDocs();
+    final File index = new File(dataDir, "index");
+    final File old = new File(dataDir, "index.old");
+
+    // a crash after the main index was renamed
+    restart(new Runnable() {
+      public void run() {
+        assertTrue(index.renameTo(old));
+      }
+    });
+    assertTrue(index.exists());
+    assertFalse(old.exists());
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='19']"
+            );
+  }
+
+  public void testRecoverAfterInstall() throws Exception {
+    addDocs();
+    final File old = new File(dataDir, "index.old");
+
+    // a crash after the optimized index was installed, while the old
+    // one was being deleted
+    restart(new Runnable() {
+      public void run() {
+        assertTrue(old.mkdir());
+      }
+    });
+    assertFalse(old.exists());
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='19']"
+            );
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.lucene.document.Document;
+import org.apache.solr.util.AbstractSolrTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.StringWriter;
+
+/**
+ * Tests add requests in the binary update format.
+ *
+ * @version $Id$
+ */
+public class TestBinaryUpdate extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testBinaryUpdate() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryUpdateWriter out = new BinaryUpdateWriter(bytes, false);
+    for (int i=0; i<20; i++) {
+      InputDocument doc = new InputDocument();
+      doc.addField("id", Integer.toString(i%10), 1.0f);
+      doc.addField("val_s", "v" + i, 1.0f);
+      if (i == 15) {
+        doc.setBoost(2.0f);
+        doc.addField("subject", "h\u00e9llo", 3.0f);
+      }
+      out.addDoc(doc);
+    }
+    out.close();
+
+    // the documents read back as written
+    BinaryUpdateReader in = new BinaryUpdateReader(new ByteArrayInputStream(bytes.toByteArray()));
+    AddUpdateCommand cmd = new AddUpdateCommand();
+    in.getAddOptions(cmd);
+    assertFalse(cmd.allowDups);
+    assertTrue(cmd.overwritePending);
+    assertTrue(cmd.overwriteCommitted);
+    DocumentBuilder builder = new DocumentBuilder(h.getCore().getSchema());
+    for (int i=0; i<15; i++) assertNotNull(in.readDoc(builder));
+    Document doc = in.readDoc(builder);
+    assertEquals(2.0f, doc.getBoost());
+    assertEquals("h\u00e9llo", doc.get("subject"));
+    assertEquals(3.0f, doc.getField("subject").getBoost());
+    for (int i=16; i<20; i++) assertNotNull(in.readDoc());
+    assertNull(in.readDoc());
+
+    StringWriter res = new StringWriter();
+    h.getCore().update(new ByteArrayInputStream(bytes.toByteArray()), res);
+    assertEquals("<result status=\"0\"></result>", res.toString());
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='10']"
+            );
+    assertQ(req("val_s:v15")
+            ,"//*[@numFound='1']"
+            ,"//arr[@name='id']/int[.='5']"
+            );
+
+    // garbage is rejected
+    res = new StringWriter();
+    h.getCore().update(new ByteArrayInputStream("<add></add>".getBytes("UTF-8")), res);
+    assertTrue(res.toString(), res.toString().indexOf("status=\"400\"") >= 0);
+  }
+
+  public void testValueTooLong() throws Exception {
+    // a field name claiming to be 2GB long
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(BinaryUpdateReader.MAGIC);
+    out.writeByte(BinaryUpdateReader.VERSION);
+    out.writeByte(0);
+    out.writeByte(BinaryUpdateReader.NAME);
+    out.write(new byte[] {(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x07});
+    out.close();
+
+    StringWriter res = new StringWriter();
+    h.getCore().update(new ByteArrayInputStream(bytes.toByteArray()), res);
+    assertTrue(res.toString(), res.toString().indexOf("status=\"400\"") >= 0);
+  }
+
+  public void testTruncated() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryUpdateWriter out = new BinaryUpdateWriter(bytes, false);
+    InputDocument doc = new InputDocument();
+    doc.addField("id", "1", 1.0f);
+    doc.addField("val_s", "hello", 1.0f);
+    out.addDoc(doc);
+    out.close();
+    byte[] all = bytes.toByteArray();
+
+    // cut off in the header, and in the middle of the document
+    for (int len : new int[] {0, 2, all.length-4}) {
+      StringWriter res = new StringWriter();
+      h.getCore().update(new ByteArrayInputStream(all, 0, len), res);
+      assertTrue(res.toString(), res.toString().indexOf("status=\"400\"") >= 0);
+    }
+    assertU(commit());
+    assertQ(req("id:1")
+            ,"//*[@numFound='0']"
+            );
+  }
+}
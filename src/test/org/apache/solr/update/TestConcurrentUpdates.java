@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.NamedList;
+
+/**
+ * Tests adds, deletes and commits made by several threads at once.
+ *
+ * @version $Id$
+ */
+public class TestConcurrentUpdates extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  private DirectUpdateHandler2 getUpdateHandler() {
+    return (DirectUpdateHandler2)SolrInfoRegistry.getRegistry().get("updateHandler");
+  }
+
+  /** Runs <code>during</code> in another thread while the next commit flushes the index */
+  private void duringNextCommit(final Runnable during) {
+    getUpdateHandler().commitCallbacks.add(new SolrEventListener() {
+      private boolean done;
+      public void init(NamedList args) {}
+      public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {}
+      public void postCommit() {
+        if (done) return;
+        done = true;
+        Thread t = new Thread(during);
+        t.start();
+        try {
+          // adds don't wait for the commit
+          t.join(10000);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        assertFalse("blocked by the commit", t.isAlive());
+      }
+    });
+  }
+
+  public void testConcurrentAdds() throws Exception {
+    // several clients adding overlapping ids at once must leave exactly
+    // one document per id after a commit
+    Thread[] threads = new Thread[4];
+    final String[] errors = new String[threads.length];
+    for (int t=0; t<threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i=0; i<25; i++) {
+            String res = h.update(adoc("id", Integer.toString(i), "val_s", "t" + thread));
+            if (!"<result status=\"0\"></result>".equals(res)) errors[thread] = res;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) thread.join();
+    for (String error : errors) assertNull(error, error);
+
+    assertU(delI("3"));
+    assertU("<commit/>");
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='24']"
+            );
+  }
+
+  public void testAddsDuringCommit() throws Exception {
+    for (int i=0; i<200; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s", "pass0"));
+    }
+
+    // adds made while the commit runs are buffered and added after it,
+    // and must still overwrite the docs it committed
+    final String[] error = new String[1];
+    duringNextCommit(new Runnable() {
+      public void run() {
+        try {
+          for (int i=0; i<200; i++) {
+            h.update(adoc("id", Integer.toString(i), "val_s", "pass1"));
+          }
+        } catch (Exception e) {
+          error[0] = e.toString();
+        }
+      }
+    });
+    assertU(commit());
+    assertNull(error[0], error[0]);
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='200']"
+            );
+    assertQ(req("val_s:pass0")
+            ,"//*[@numFound='200']"
+            );
+
+    assertU(commit());
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='200']"
+            );
+    assertQ(req("val_s:pass1")
+            ,"//*[@numFound='200']"
+            );
+    assertEquals(0L, getUpdateHandler().getStatistics().get("cumulative_errors"));
+  }
+
+  public void testConcurrentCommits() throws Exception {
+    // commits requested while another is running are coalesced, but each
+    // must only return once the documents added before it are visible
+    Thread[] threads = new Thread[4];
+    final int commitsPerThread = 5;
+    final String[] errors = new String[threads.length];
+    for (int t=0; t<threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i=0; i<commitsPerThread; i++) {
+              String id = Integer.toString(thread*100 + i);
+              h.update(adoc("id", id));
+              h.update(commit());
+              String res = h.query(req("id:" + id));
+              if (res.indexOf("numFound=\"1\"") < 0) errors[thread] = res;
+            }
+          } catch (Exception e) {
+            errors[thread] = e.toString();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) thread.join();
+    for (String error : errors) assertNull(error, error);
+
+    NamedList stats = getUpdateHandler().getStatistics();
+    assertEquals((long)threads.length*commitsPerThread,
+                 (Long)stats.get("commits") + (Long)stats.get("coalescedCommits"));
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='20']"
+            );
+  }
+}
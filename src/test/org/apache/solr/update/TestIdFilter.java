@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.TestHarness;
+
+/**
+ * Tests skipping the lookup of ids that were never indexed.
+ *
+ * @version $Id$
+ */
+public class TestIdFilter extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  private SolrInfoMBean getUpdateHandler() {
+    return SolrInfoRegistry.getRegistry().get("updateHandler");
+  }
+
+  public void testIdFilter() throws Exception {
+    SolrInfoMBean updateHandler = getUpdateHandler();
+
+    // new ids and deletes of ids never indexed don't need to be looked up
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(adoc("id", "2", "val_s", "A"));
+    assertU(delI("3"));
+    assertU(commit());
+    assertEquals(3L, updateHandler.getStatistics().get("idFilterSkips"));
+    assertEquals(0L, updateHandler.getStatistics().get("docsDeleted"));
+
+    // but existing ids still are
+    assertU(adoc("id", "1", "val_s", "B"));
+    assertU(adoc("id", "4", "val_s", "B"));
+    assertU(adoc("id", "4", "val_s", "C"));
+    assertU(delI("2"));
+    assertU(commit());
+    assertEquals(3L, updateHandler.getStatistics().get("idFilterSkips"));
+    assertEquals(3L, updateHandler.getStatistics().get("docsDeleted"));
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='2']"
+            );
+    assertQ(req("val_s:A")
+            ,"//*[@numFound='0']"
+            );
+    assertQ(req("val_s:C")
+            ,"//*[@numFound='1']"
+            );
+  }
+
+  public void testBuiltAtStartup() throws Exception {
+    for (int i=0; i<20; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s", "A"));
+    }
+    assertU(delI("5"));
+    assertU(commit());
+
+    // the filter of a new core has the ids of the index, including those
+    // of deleted docs that are still in it
+    h.close();
+    h = new TestHarness(dataDir.getAbsolutePath(), getSolrConfigFile(), getSchemaFile());
+    lrf = h.getRequestFactory("standard",0,20,"version","2.2");
+    assertEquals(20, getUpdateHandler().getStatistics().get("idFilterIds"));
+
+    assertU(adoc("id", "1", "val_s", "B"));
+    assertU(adoc("id", "100", "val_s", "B"));
+    assertU(commit());
+    assertEquals(1L, getUpdateHandler().getStatistics().get("idFilterSkips"));
+    assertQ(req("id:[0 TO 999]")
+            ,"//*[@numFound='20']"
+            );
+    assertQ(req("val_s:B")
+            ,"//*[@numFound='2']"
+            );
+  }
+}
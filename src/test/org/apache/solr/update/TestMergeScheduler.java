@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @version $Id$
+ */
+public class TestMergeScheduler extends TestCase {
+  private File indexDir;
+  private long requests;
+
+  public void setUp() throws Exception {
+    indexDir = new File(System.getProperty("java.io.tmpdir"), "TestMergeScheduler" + System.currentTimeMillis());
+    indexDir.mkdirs();
+  }
+
+  public void tearDown() throws Exception {
+    for (File f : indexDir.listFiles()) f.delete();
+    indexDir.delete();
+  }
+
+  private MergeScheduler newScheduler(int maxSegments) {
+    // 10 queries/sec at most, sampled only when run() is called
+    return new MergeScheduler(null, indexDir.getPath(), 1000000, 10, 100, maxSegments, 0, 100) {
+      protected long getRequests() {
+        return requests;
+      }
+    };
+  }
+
+  private void sampleAfter(MergeScheduler scheduler, int newRequests) throws InterruptedException {
+    Thread.sleep(50);
+    requests += newRequests;
+    scheduler.run();
+  }
+
+  public void testDefersUnderLoad() throws Exception {
+    MergeScheduler scheduler = newScheduler(100);
+    IndexWriter writer = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true);
+    scheduler.setWriter(writer);
+    scheduler.run();
+    assertFalse(scheduler.isDeferring());
+    assertEquals(1000000, writer.getMaxMergeDocs());
+
+    sampleAfter(scheduler, 1000);
+    assertTrue(scheduler.isDeferring());
+    assertTrue(scheduler.getQueriesPerSec() > 10);
+    assertEquals(100, writer.getMaxMergeDocs());
+    assertEquals(1, scheduler.getDeferrals());
+
+    // a writer opened meanwhile gets the current limit
+    IndexWriter writer2 = new IndexWriter(new RAMDirectory(), new WhitespaceAnalyzer(), true);
+    scheduler.setWriter(writer2);
+    assertEquals(100, writer2.getMaxMergeDocs());
+
+    // quiet again
+    sampleAfter(scheduler, 0);
+    assertFalse(scheduler.isDeferring());
+    assertEquals(1000000, writer2.getMaxMergeDocs());
+
+    writer.close();
+    writer2.close();
+    scheduler.close();
+  }
+
+  public void testMaxSegments() throws Exception {
+    new File(indexDir, "_1.cfs").createNewFile();
+    new File(indexDir, "_2.fnm").createNewFile();
+    new File(indexDir, "_2.frq").createNewFile();
+    new File(indexDir, "_3.cfs").createNewFile();
+
+    MergeScheduler scheduler = newScheduler(3);
+    scheduler.run();
+    sampleAfter(scheduler, 1000);
+    assertEquals(3, scheduler.getSegments());
+    assertFalse(scheduler.isDeferring());
+
+    new File(indexDir, "_3.cfs").delete();
+    sampleAfter(scheduler, 1000);
+    assertEquals(2, scheduler.getSegments());
+    assertTrue(scheduler.isDeferring());
+    scheduler.close();
+  }
+
+  public void testCatchUpWhenQuiet() throws Exception {
+    // the first catch-up fails, as if a commit was running
+    final CountDownLatch caughtUp = new CountDownLatch(2);
+    final long[] caughtUpAt = new long[2];
+    MergeScheduler scheduler = new MergeScheduler(null, indexDir.getPath(), 1000000, 10, 100, 100, 0, 100) {
+      protected long getRequests() {
+        return requests;
+      }
+      protected boolean catchUp() {
+        caughtUpAt[2 - (int)caughtUp.getCount()] = System.currentTimeMillis();
+        caughtUp.countDown();
+        return caughtUp.getCount() == 0;
+      }
+    };
+    scheduler.run();
+    sampleAfter(scheduler, 1000);
+    assertTrue(scheduler.isDeferring());
+    long lastAdd = System.currentTimeMillis();
+    scheduler.added();
+
+    sampleAfter(scheduler, 0);
+    assertFalse(scheduler.isDeferring());
+    assertTrue(caughtUp.await(10, TimeUnit.SECONDS));
+    assertTrue(caughtUpAt[0] - lastAdd >= 100);
+    assertTrue(caughtUpAt[1] - caughtUpAt[0] >= 100);
+    scheduler.close();
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.core.SolrInfoRegistry;
+import org.apache.solr.util.AbstractSolrTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests delete commands with several ids and queries.
+ *
+ * @version $Id$
+ */
+public class TestMultipleDeletes extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testMultipleDeletes() throws Exception {
+    for (int i=0; i<10; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s", i<5 ? "A" : "B"));
+    }
+    assertU(commit());
+
+    assertU("<delete><id>1</id><id>2</id><query>val_s:B</query><id>3</id><id>42</id></delete>");
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='2']"
+            );
+    assertQ(req("id:0 OR id:4")
+            ,"//*[@numFound='2']"
+            );
+
+    String res = h.update("<delete></delete>");
+    assertTrue(res, res.indexOf("status=\"400\"") >= 0);
+  }
+
+  public void testInterleaved() throws Exception {
+    for (int i=0; i<10; i++) {
+      assertU(adoc("id", Integer.toString(i), "val_s", i<5 ? "A" : "B"));
+    }
+    assertU(commit());
+
+    assertU("<delete><query>id:0</query><id>1</id><id>5</id>" +
+            "<query>val_s:B</query><id>2</id><query>id:3</query></delete>");
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='1']"
+            );
+    assertQ(req("id:4")
+            ,"//*[@numFound='1']"
+            );
+  }
+
+  public void testBadTagDeletesNothing() throws Exception {
+    assertU(adoc("id", "1"));
+    assertU(adoc("id", "2"));
+    assertU(commit());
+
+    // the whole command is read before anything is deleted
+    String res = h.update("<delete><id>1</id><query>id:2</query><foo>3</foo></delete>");
+    assertTrue(res, res.indexOf("status=\"400\"") >= 0);
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='2']"
+            );
+  }
+
+  public void testBulkDelete() throws Exception {
+    for (int i=0; i<10; i++) {
+      assertU(adoc("id", Integer.toString(i)));
+    }
+    assertU(commit());
+
+    UpdateHandler updateHandler = (UpdateHandler)SolrInfoRegistry.getRegistry().get("updateHandler");
+    updateHandler.delete(Arrays.asList("1", "3", "5", "42"));
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='7']"
+            );
+
+    // only pending and committed docs together may be deleted
+    String res = h.update("<delete fromPending=\"false\"><id>2</id><id>4</id></delete>");
+    assertTrue(res, res.indexOf("status=\"400\"") >= 0);
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import org.apache.solr.util.AbstractSolrTestCase;
+
+/**
+ * Tests deleteByQuery commands queued until the next commit.
+ *
+ * @version $Id$
+ */
+public class TestQueuedDeletes extends AbstractSolrTestCase {
+
+  public String getSchemaFile() { return "schema.xml"; }
+  public String getSolrConfigFile() { return "solrconfig.xml"; }
+
+  public void testQueuedDeleteByQuery() throws Exception {
+    assertU(adoc("id", "1", "val_s", "A"));
+    assertU(adoc("id", "2", "val_s", "B"));
+    assertU(commit());
+
+    // deletes are executed at the next commit, and only delete documents
+    // added before them
+    assertU(adoc("id", "3", "val_s", "A"));
+    assertU(delQ("val_s:A"));
+    assertU(adoc("id", "4", "val_s", "A"));
+    assertU(adoc("id", "2", "val_s", "A"));
+    assertU(delQ("id:4"));
+    assertU(adoc("id", "5", "val_s", "B"));
+    assertQ(req("val_s:A")
+            ,"//*[@numFound='1']"
+            );
+    assertU(commit());
+    assertQ(req("id:[0 TO 99]")
+            ,"//*[@numFound='2']"
+            );
+    assertQ(req("val_s:A")
+            ,"//*[@numFound='1']"
+            ,"//arr[@name='id']/int[.='2']"
+            );
+  }
+}
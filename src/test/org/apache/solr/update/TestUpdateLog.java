@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.update;
+
+import junit.framework.TestCase;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @version $Id$
+ */
+public class TestUpdateLog extends TestCase {
+  private File dir;
+
+  public void setUp() throws Exception {
+    dir = new File(System.getProperty("java.io.tmpdir"), "TestUpdateLog" + System.currentTimeMillis());
+  }
+
+  public void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) for (File f : files) f.delete();
+    dir.delete();
+  }
+
+  // records the replayed updates as strings
+  private static class Recorder implements UpdateLog.Replayer {
+    List<String> updates = new ArrayList<String>();
+    List<AddUpdateCommand> adds = new ArrayList<AddUpdateCommand>();
+
+    public void add(AddUpdateCommand cmd) {
+      adds.add(cmd);
+      updates.add("add:" + cmd.doc.get("id"));
+    }
+    public void delete(String indexedId) {
+      updates.add("delete:" + indexedId);
+    }
+    public void deleteByQuery(String query) {
+      updates.add("query:" + query);
+    }
+  }
+
+  private AddUpdateCommand add(String id) {
+    AddUpdateCommand cmd = new AddUpdateCommand();
+    cmd.allowDups = false;
+    cmd.overwritePending = true;
+    cmd.overwriteCommitted = true;
+    cmd.doc = new Document();
+    cmd.doc.add(new Field("id", id, Field.Store.YES, Field.Index.UN_TOKENIZED));
+    return cmd;
+  }
+
+  // the log files, oldest first
+  private File[] logs() {
+    File[] files = dir.listFiles();
+    java.util.Arrays.sort(files);
+    return files;
+  }
+
+  private Recorder replay(File file) throws IOException {
+    Recorder recorder = new Recorder();
+    UpdateLog.replay(file, recorder);
+    return recorder;
+  }
+
+  public void testRoundTrip() throws Exception {
+    UpdateLog ulog = new UpdateLog(dir, UpdateLog.SYNC_FSYNC);
+    assertEquals(0, ulog.getOldLogs().length);
+
+    AddUpdateCommand cmd = add("1");
+    cmd.allowDups = true;
+    cmd.overwritePending = false;
+    cmd.overwriteCommitted = false;
+    cmd.doc.setBoost(2.0f);
+    Field text = new Field("text", "h\u00e9llo world", Field.Store.COMPRESS, Field.Index.TOKENIZED,
+        Field.TermVector.WITH_POSITIONS_OFFSETS);
+    text.setBoost(3.0f);
+    cmd.doc.add(text);
+    Field norms = new Field("norms", "x", Field.Store.NO, Field.Index.UN_TOKENIZED);
+    norms.setOmitNorms(true);
+    cmd.doc.add(norms);
+    cmd.doc.add(new Field("bin", new byte[] {1,2,3}, Field.Store.YES));
+    ulog.sync(ulog.add(cmd));
+    ulog.sync(ulog.delete("2"));
+    ulog.sync(ulog.deleteByQuery("id:[3 TO 4]"));
+    ulog.close();
+
+    UpdateLog reopened = new UpdateLog(dir, UpdateLog.SYNC_NONE);
+    File[] logs = reopened.getOldLogs();
+    reopened.close();
+    assertEquals(1, logs.length);
+    Recorder r = replay(logs[0]);
+    assertEquals("[add:1, delete:2, query:id:[3 TO 4]]", r.updates.toString());
+
+    AddUpdateCommand replayed = r.adds.get(0);
+    assertTrue(replayed.allowDups);
+    assertFalse(replayed.overwritePending);
+    assertFalse(replayed.overwriteCommitted);
+    Document doc = replayed.doc;
+    assertEquals(2.0f, doc.getBoost());
+    assertEquals(4, doc.getFields().size());
+
+    Fieldable f = doc.getFieldable("text");
+    assertEquals("h\u00e9llo world", f.stringValue());
+    assertEquals(3.0f, f.getBoost());
+    assertTrue(f.isStored());
+    assertTrue(f.isCompressed());
+    assertTrue(f.isTokenized());
+    assertTrue(f.isTermVectorStored());
+    assertTrue(f.isStorePositionWithTermVector());
+    assertTrue(f.isStoreOffsetWithTermVector());
+
+    f = doc.getFieldable("norms");
+    assertFalse(f.isStored());
+    assertTrue(f.isIndexed());
+    assertFalse(f.isTokenized());
+    assertTrue(f.getOmitNorms());
+
+    f = doc.getFieldable("bin");
+    assertTrue(f.isBinary());
+    assertEquals(3, f.binaryValue().length);
+    assertEquals(3, f.binaryValue()[2]);
+  }
+
+  public void testRollover() throws Exception {
+    UpdateLog ulog = new UpdateLog(dir, UpdateLog.SYNC_FLUSH);
+    ulog.add(add("1"));
+    long seq = ulog.rollover();
+    ulog.add(add("2"));
+
+    // a crash before the commit finished leaves both files
+    File[] logs = logs();
+    assertEquals(2, logs.length);
+    assertEquals("[add:1]", replay(logs[0]).updates.toString());
+    assertEquals("[add:2]", replay(logs[1]).updates.toString());
+
+    // the commit succeeded
+    ulog.deleteUpTo(seq);
+    logs = logs();
+    assertEquals(1, logs.length);
+    assertEquals("[add:2]", replay(logs[0]).updates.toString());
+    ulog.close();
+
+    // the next log continues the sequence
+    ulog = new UpdateLog(dir, UpdateLog.SYNC_FLUSH);
+    assertEquals(1, ulog.getOldLogs().length);
+    ulog.add(add("3"));
+    ulog.close();
+    logs = logs();
+    assertEquals("[add:3]", replay(logs[1]).updates.toString());
+  }
+
+  public void testTornRecord() throws Exception {
+    UpdateLog ulog = new UpdateLog(dir, UpdateLog.SYNC_FLUSH);
+    ulog.add(add("1"));
+    ulog.add(add("2"));
+    ulog.close();
+    File file = logs()[0];
+
+    // a crash in the middle of writing the last record
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+    assertEquals("[add:1]", replay(file).updates.toString());
+
+    // a corrupt record, and everything after it, is ignored
+    raf = new RandomAccessFile(file, "rw");
+    raf.seek(10);
+    int b = raf.read();
+    raf.seek(10);
+    raf.write(b ^ 0xff);
+    raf.close();
+    assertEquals("[]", replay(file).updates.toString());
+  }
+
+  // a log with two adds, followed by tail
+  private File writeLog(byte[] tail) throws IOException {
+    UpdateLog ulog = new UpdateLog(dir, UpdateLog.SYNC_FLUSH);
+    ulog.add(add("1"));
+    ulog.add(add("2"));
+    ulog.close();
+    File file = logs()[0];
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(tail);
+    out.close();
+    return file;
+  }
+
+  // a record with a valid checksum
+  private byte[] record(byte[] record) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    out.writeInt(record.length);
+    out.write(record);
+    out.writeInt((int)crc.getValue());
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public void testZeroFilledTail() throws Exception {
+    // length 0 and checksum 0 would be a valid empty record
+    assertEquals("[add:1, add:2]", replay(writeLog(new byte[4096])).updates.toString());
+  }
+
+  public void testBadLength() throws Exception {
+    File file = writeLog(new byte[] {0x7f, 0, 0, 0, 1, 2, 3, 4});
+    assertEquals("[add:1, add:2]", replay(file).updates.toString());
+    file.delete();
+    file = writeLog(new byte[] {(byte)0xff, 0, 0, 0, 1, 2, 3, 4});
+    assertEquals("[add:1, add:2]", replay(file).updates.toString());
+  }
+
+  public void testUnknownRecordType() throws Exception {
+    File file = writeLog(record(new byte[] {9, 0, 0}));
+    assertEquals("[add:1, add:2]", replay(file).updates.toString());
+  }
+
+  public void testUndecodableRecord() throws Exception {
+    // a delete whose id is longer than the record
+    File file = writeLog(record(new byte[] {UpdateLog.DELETE, 0x7f, 0, 0, 0}));
+    assertEquals("[add:1, add:2]", replay(file).updates.toString());
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class TestBloomFilter extends TestCase {
+
+  public void testNoFalseNegatives() {
+    BloomFilter filter = new BloomFilter(1000, 10);
+    for (int i=0; i<1000; i++) {
+      filter.add("id" + i);
+    }
+    for (int i=0; i<1000; i++) {
+      assertTrue(filter.mightContain("id" + i));
+    }
+    assertFalse(filter.add("id5"));
+    assertTrue(filter.size() <= 1000);
+  }
+
+  public void testFalsePositiveRate() {
+    BloomFilter filter = new BloomFilter(10000, 10);
+    for (int i=0; i<10000; i++) {
+      filter.add(Integer.toString(i));
+    }
+    int falsePositives=0;
+    for (int i=10000; i<20000; i++) {
+      if (filter.mightContain(Integer.toString(i))) falsePositives++;
+    }
+    // the expected rate with 10 bits per item is about 1%
+    assertTrue("falsePositives=" + falsePositives, falsePositives < 300);
+    double rate = filter.getFalsePositiveRate();
+    assertTrue("rate=" + rate, rate > 0.001 && rate < 0.03);
+  }
+
+  public void testEmpty() {
+    BloomFilter filter = new BloomFilter(0, 10);
+    assertFalse(filter.mightContain(""));
+    assertFalse(filter.mightContain("foo"));
+    assertEquals(0.0, filter.getFalsePositiveRate(), 0.0);
+    assertTrue(filter.add("foo"));
+    assertTrue(filter.mightContain("foo"));
+  }
+}
@@ -20,6 +20,7 @@ import org.apache.solr.core.SolrException;
 import org.apache.solr.request.XMLResponseWriter;
 import org.apache.solr.request.SolrQueryResponse;
 import org.apache.solr.request.QueryResponseWriter;
+import org.apache.solr.update.BinaryUpdateReader;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -47,6 +48,14 @@ public class SolrUpdateServlet extends HttpServlet {
   }
 
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    String contentType = request.getContentType();
+    if (contentType != null && contentType.startsWith(BinaryUpdateReader.CONTENT_TYPE)) {
+      response.setContentType(QueryResponseWriter.CONTENT_TYPE_XML_UTF8);
+      PrintWriter responseWriter = response.getWriter();
+      core.update(request.getInputStream(), responseWriter);
+      return;
+    }
+
     BufferedReader requestReader = request.getReader();
     response.setContentType(QueryResponseWriter.CONTENT_TYPE_XML_UTF8);
     PrintWriter responseWriter = response.getWriter();